@@ -0,0 +1,64 @@
+package com.lucky.benchmark;
+
+import com.lucky.bean.ChatMsg;
+import com.lucky.codec.FrameCodec;
+import com.lucky.codec.MsgCodec;
+import com.lucky.codec.MsgCodecs;
+import com.lucky.constant.MsgType;
+import com.lucky.constant.ResponseStatus;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 聊天消息的编码与解码，json为原有的Gson路径，作为基准与binary对比
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+    @Param({"json", "binary"})
+    public String codecName;
+
+    @Param({"16", "256"})
+    public int msgLength;
+
+    private MsgCodec codec;
+    private ChatMsg chatMsg;
+    private byte[] encoded;
+
+    @Setup
+    public void setup() {
+        codec = MsgCodecs.forName(codecName);
+        StringBuilder msg = new StringBuilder(msgLength);
+        for (int i = 0; i < msgLength; i++) {
+            msg.append((char) ('a' + i % 26));
+        }
+        chatMsg = new ChatMsg("user-42", msg.toString(), new Date());
+        chatMsg.setSeq(12345);
+        encoded = codec.encodeChatMsg(chatMsg);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return codec.encodeChatMsg(chatMsg);
+    }
+
+    /**
+     * 编码并加上帧头，即分发时每种编码方式实际执行一次的工作
+     */
+    @Benchmark
+    public byte[] encodeFrame() {
+        return FrameCodec.encode(MsgType.CHAT, ResponseStatus.OK, codec.encodeChatMsg(chatMsg));
+    }
+
+    @Benchmark
+    public ChatMsg decode() {
+        return codec.decodeChatMsg(encoded, 0, encoded.length);
+    }
+}
@@ -0,0 +1,260 @@
+package com.lucky.benchmark;
+
+import com.lucky.Server;
+import com.lucky.codec.FrameCodec;
+import com.lucky.codec.FrameDecoder;
+import com.lucky.codec.FrameHandler;
+import com.lucky.constant.MsgType;
+import com.lucky.constant.ResponseStatus;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 在同一进程中启动真实的nio服务器，通过回环网络连接 rooms * roomSize 个客户端。
+ * 每次调用向每个房间各发送一条消息，等待所有成员收到后结束，结果为每秒分发的消息数；
+ * 对比不同的工作事件循环数(workers)与分配策略(balance)，观察吞吐量随workers的扩展情况。
+ * 客户端的读线程与服务器在同一台机器上，需要在核数不少于 workers + readers + 2 的机器上运行才有意义
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EventLoopScalingBenchmark {
+
+    private static final int ROOMS = 64;
+    private static final long DELIVERY_TIMEOUT = TimeUnit.SECONDS.toNanos(10);
+
+    @Param({"1", "2", "4", "8"})
+    public int workers;
+
+    @Param({"round_robin", "least_connections", "room_affinity"})
+    public String balance;
+
+    @Param({"16"})
+    public int roomSize;
+
+    @Param({"4"})
+    public int readers;  // 客户端读线程数
+
+    private Server server;
+    private Thread serverThread;
+    private List<SocketChannel> channels = new ArrayList<SocketChannel>();
+    private SocketChannel[] senders = new SocketChannel[ROOMS];
+    private Reader[] readerThreads;
+    private AtomicLong received = new AtomicLong();
+    private long expected;
+    private byte[] chatFrame = FrameCodec.encode(MsgType.CHAT + "hello everyone in this room");
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        int port = freePort();
+        Properties overrides = new Properties();
+        overrides.setProperty("port", String.valueOf(port));
+        overrides.setProperty("engine", "nio");
+        overrides.setProperty("nio.threads", String.valueOf(workers));
+        overrides.setProperty("nio.balance", balance);
+        overrides.setProperty("outbound.maxMessages", "65536");
+        overrides.setProperty("outbound.maxBytes", String.valueOf(64 * 1024 * 1024));
+        server = new Server(overrides);
+        serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                server.start();
+            }
+        }, "benchmark-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        readerThreads = new Reader[readers];
+        for (int i = 0; i < readers; i++) {
+            readerThreads[i] = new Reader("benchmark-reader-" + i);
+        }
+
+        // 阻塞模式下依次创建或加入房间，确认成功后再交给读线程
+        for (int room = 0; room < ROOMS; room++) {
+            for (int member = 0; member < roomSize; member++) {
+                SocketChannel channel = connect(port);
+                char type = member == 0 ? MsgType.CREATE_ROOM : MsgType.JOIN_ROOM;
+                writeFully(channel, FrameCodec.encode(type + "room-" + room));
+                readResponse(channel);
+                if (member == 0) {
+                    senders[room] = channel;
+                }
+                channels.add(channel);
+            }
+        }
+        for (int i = 0; i < channels.size(); i++) {
+            readerThreads[i % readers].add(channels.get(i));
+        }
+        for (Reader reader : readerThreads) {
+            reader.start();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        for (Reader reader : readerThreads) {
+            reader.shutdown();
+        }
+        for (SocketChannel channel : channels) {
+            channel.close();
+        }
+        server.stop();
+        serverThread.join(5000);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROOMS)
+    public long broadcast() throws IOException {
+        for (SocketChannel sender : senders) {
+            writeFully(sender, chatFrame);
+        }
+
+        expected += ROOMS * roomSize;
+        long deadline = System.nanoTime() + DELIVERY_TIMEOUT;
+        while (received.get() < expected) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("delivered " + received.get() + " of " + expected);
+            }
+            Thread.yield();
+        }
+
+        return expected;
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static SocketChannel connect(int port) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            try {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+                channel.socket().setTcpNoDelay(true);
+                return channel;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(50);  // 服务器还没有开始监听
+            }
+        }
+    }
+
+    /**
+     * 写出整个帧，可能与读线程同时使用该通道，非阻塞模式下发送缓冲区满时重试
+     */
+    private static void writeFully(SocketChannel channel, byte[] frame) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        while (buffer.hasRemaining()) {
+            if (channel.write(buffer) == 0) {
+                Thread.yield();
+            }
+        }
+    }
+
+    private static void readResponse(SocketChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FrameCodec.HEADER_LENGTH);
+        readFully(channel, header);
+        ByteBuffer body = ByteBuffer.allocate(header.getInt(0));
+        readFully(channel, body);
+        if (body.get(1) != ResponseStatus.OK) {
+            throw new IllegalStateException("enter room failed: "
+                    + FrameCodec.decodeString(body.array(), 2, body.capacity() - 2));
+        }
+    }
+
+    private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("connection closed by server");
+            }
+        }
+    }
+
+    /**
+     * 客户端读线程，负责一部分连接，只统计收到的聊天消息数
+     */
+    private final class Reader extends Thread implements FrameHandler {
+
+        private final Selector selector;
+        private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        private volatile boolean alive = true;
+
+        private Reader(String name) throws IOException {
+            super(name);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        private void add(SocketChannel channel) throws IOException {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, new FrameDecoder());
+        }
+
+        private void shutdown() throws InterruptedException {
+            alive = false;
+            selector.wakeup();
+            join(5000);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (alive) {
+                    selector.select(100);
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        read(key);
+                    }
+                }
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void read(SelectionKey key) throws IOException {
+            SocketChannel channel = (SocketChannel) key.channel();
+            FrameDecoder decoder = (FrameDecoder) key.attachment();
+            int len;
+            while ((len = channel.read(buffer)) > 0) {
+                decoder.decode(buffer.array(), 0, len, this);
+                buffer.clear();
+            }
+            if (len < 0) {
+                key.cancel();
+            }
+        }
+
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length) {
+            if (length > 0 && buffer[offset] == MsgType.CHAT) {
+                received.incrementAndGet();
+            }
+        }
+    }
+}
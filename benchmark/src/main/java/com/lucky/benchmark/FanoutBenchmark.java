@@ -0,0 +1,55 @@
+package com.lucky.benchmark;
+
+import com.lucky.Server;
+import com.lucky.bean.ChatMsg;
+import com.lucky.codec.MsgCodecs;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Date;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一条聊天消息分发给房间内的所有成员，成员为只计数的内存连接。
+ * mixed表示一半成员握手选择了binary编码，每条消息需要编码两次
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FanoutBenchmark {
+
+    private static final String ROOM = "bench";
+
+    @Param({"10", "1000", "10000"})
+    public int members;
+
+    @Param({"json", "mixed"})
+    public String codecs;
+
+    private Server server;
+
+    @Setup
+    public void setup() throws Exception {
+        Properties overrides = new Properties();
+        overrides.setProperty("room.actorThreads", "0");  // 在调用线程中分发，测量的是完整的分发耗时
+        server = new Server(overrides);
+        for (int i = 0; i < members; i++) {
+            MemorySink sink = new MemorySink("mixed".equals(codecs) && i % 2 == 1 ? MsgCodecs.BINARY : MsgCodecs.JSON);
+            if (i == 0) {
+                server.createChatRoom(sink, ROOM);
+            } else {
+                server.addSocketToRoom(sink, ROOM);
+            }
+        }
+    }
+
+    @Benchmark
+    public ChatMsg deliver() throws Exception {
+        ChatMsg chatMsg = new ChatMsg("user-1", "hello everyone in this room", new Date());
+        server.deliverChatMsg(ROOM, chatMsg);
+        return chatMsg;
+    }
+}
@@ -0,0 +1,84 @@
+package com.lucky.benchmark;
+
+import com.lucky.codec.MsgCodec;
+import com.lucky.codec.MsgCodecs;
+import com.lucky.codec.SharedFrame;
+import com.lucky.net.Connection;
+import com.lucky.net.OutboundQueue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 只在内存中计数的连接，用来测量服务器端分发本身的开销，不包含网络写
+ */
+public class MemorySink implements Connection {
+
+    private static final AtomicLong ID = new AtomicLong(0);
+
+    private final long id = ID.incrementAndGet();
+    private String chatRoom;
+    private MsgCodec codec;
+    private long frames;
+    private long bytes;
+
+    public MemorySink(MsgCodec codec) {
+        this.codec = codec;
+    }
+
+    public MemorySink() {
+        this(MsgCodecs.JSON);
+    }
+
+    @Override
+    public long getId() {
+        return id;
+    }
+
+    @Override
+    public String getChatRoom() {
+        return chatRoom;
+    }
+
+    @Override
+    public void setChatRoom(String chatRoom) {
+        this.chatRoom = chatRoom;
+    }
+
+    @Override
+    public MsgCodec getCodec() {
+        return codec;
+    }
+
+    @Override
+    public void setCodec(MsgCodec codec) {
+        this.codec = codec;
+    }
+
+    @Override
+    public void sendMsgWithType(char type, char status, String data) {
+        sendFrame(SharedFrame.of(type, status, data));
+    }
+
+    @Override
+    public void sendFrame(SharedFrame frame) {
+        frames++;
+        bytes += frame.length();
+    }
+
+    @Override
+    public OutboundQueue getOutbound() {
+        return null;  // 不排队，直接计数
+    }
+
+    @Override
+    public void close() {
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,92 @@
+package com.lucky.benchmark;
+
+import com.lucky.Server;
+import com.lucky.bean.ChatMsg;
+import com.lucky.codec.SharedFrame;
+import com.lucky.net.OutboundQueue;
+import com.lucky.net.SlowConsumerPolicy;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Date;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 大房间的单线程分发与分区并行分发对比。成员为带待发送队列的内存连接，
+ * 每次写入都经过真实的OutboundQueue入队与出队，接近bio连接的分发开销。
+ * 需要在核数不少于parallelism的机器上运行才有意义
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParallelFanoutBenchmark {
+
+    private static final String ROOM = "bench";
+
+    @Param({"1000", "10000", "50000"})
+    public int members;
+
+    @Param({"serial", "partitioned"})
+    public String mode;
+
+    @Param({"1024"})
+    public int partitionSize;
+
+    @Param({"4"})
+    public int parallelism;
+
+    private Server server;
+
+    @Setup
+    public void setup() throws Exception {
+        Properties overrides = new Properties();
+        overrides.setProperty("fanout.parallelThreshold", "serial".equals(mode) ? "0" : "1");
+        overrides.setProperty("fanout.partitionSize", String.valueOf(partitionSize));
+        overrides.setProperty("fanout.parallelism", String.valueOf(parallelism));
+        overrides.setProperty("room.actorThreads", "0");  // 在调用线程中分发，测量的是完整的分发耗时
+        server = new Server(overrides);
+        for (int i = 0; i < members; i++) {
+            QueuedSink sink = new QueuedSink();
+            if (i == 0) {
+                server.createChatRoom(sink, ROOM);
+            } else {
+                server.addSocketToRoom(sink, ROOM);
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Benchmark
+    public ChatMsg deliver() throws Exception {
+        ChatMsg chatMsg = new ChatMsg("user-1", "hello everyone in this room", new Date());
+        server.deliverChatMsg(ROOM, chatMsg);
+        return chatMsg;
+    }
+
+    /**
+     * 放入自己的待发送队列后立即取出释放，模拟写线程及时写出的连接
+     */
+    private static final class QueuedSink extends MemorySink {
+
+        private final OutboundQueue outbound = new OutboundQueue(1024, 1024 * 1024, SlowConsumerPolicy.DROP_OLDEST);
+
+        @Override
+        public void sendFrame(SharedFrame frame) {
+            super.sendFrame(frame);
+            outbound.offer(frame);
+            outbound.poll().release();
+        }
+
+        @Override
+        public OutboundQueue getOutbound() {
+            return outbound;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.lucky.benchmark;
+
+import com.lucky.Server;
+import com.lucky.bean.Room;
+import com.lucky.codec.MsgCodec;
+import com.lucky.codec.MsgCodecs;
+import com.lucky.codec.SharedFrame;
+import com.lucky.constant.MsgType;
+import com.lucky.constant.ResponseStatus;
+import com.lucky.room.RoomQuery;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 生成房间列表的响应帧，包括遍历注册表与编码。listRoomFrame为原来的全量列表，
+ * 其余为有序索引上的分页、top查询，以及注册表没有变化时命中缓存的第一页
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RoomListBenchmark {
+
+    @Param({"100", "10000"})
+    public int rooms;
+
+    @Param({"json", "binary"})
+    public String codecName;
+
+    private Server server;
+    private MsgCodec codec;
+    private RoomQuery firstPage;
+    private RoomQuery middlePage;
+    private RoomQuery top;
+
+    @Setup
+    public void setup() throws Exception {
+        server = new Server();
+        codec = MsgCodecs.forName(codecName);
+        for (int i = 0; i < rooms; i++) {
+            server.createChatRoom(new MemorySink(), "room-" + i);
+        }
+        firstPage = server.parseRoomQuery("");
+        middlePage = server.parseRoomQuery("after:room-" + (rooms / 2));
+        top = server.parseRoomQuery("top:10");
+    }
+
+    @Benchmark
+    public List<Room> snapshot() {
+        return server.getRoomList();
+    }
+
+    @Benchmark
+    public SharedFrame listRoomFrame() {
+        return SharedFrame.of(MsgType.LIST_ROOM, ResponseStatus.OK, codec.encodeRooms(server.getRoomList()));
+    }
+
+    @Benchmark
+    public SharedFrame cachedFirstPage() {
+        return server.roomListFrame(firstPage, codec);
+    }
+
+    @Benchmark
+    public SharedFrame cursorPage() {
+        return server.roomListFrame(middlePage, codec);
+    }
+
+    @Benchmark
+    public SharedFrame topRooms() {
+        return server.roomListFrame(top, codec);
+    }
+}
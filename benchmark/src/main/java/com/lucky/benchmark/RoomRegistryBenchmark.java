@@ -0,0 +1,71 @@
+package com.lucky.benchmark;
+
+import com.lucky.room.ChatRoom;
+import com.lucky.room.RoomRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 多线程同时创建、加入、退出聊天室。rooms=1时所有线程争用同一个房间，
+ * 房间数较多时主要测量ConcurrentHashMap分桶后的扩展性
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class RoomRegistryBenchmark {
+
+    @Param({"1", "1000"})
+    public int rooms;
+
+    private RoomRegistry registry;
+    private String[] roomNames;
+
+    @Setup
+    public void setup() throws Exception {
+        registry = new RoomRegistry(100, 1024 * 1024);
+        roomNames = new String[rooms];
+        for (int i = 0; i < rooms; i++) {
+            roomNames[i] = "room-" + i;
+            registry.create(new MemorySink(), roomNames[i]);  // 房主不退出，房间一直存在
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Member {
+
+        MemorySink sink = new MemorySink();
+        int created;
+    }
+
+    @Benchmark
+    public ChatRoom get() {
+        return registry.get(randomRoom());
+    }
+
+    @Benchmark
+    public void joinLeave(Member member) throws Exception {
+        String roomName = randomRoom();
+        registry.join(member.sink, roomName);
+        registry.leave(member.sink, roomName);
+    }
+
+    /**
+     * 创建一个新房间后立即退出，最后一人退出时房间被删除
+     */
+    @Benchmark
+    public void createRemove(Member member) throws Exception {
+        String roomName = "tmp-" + member.sink.getId() + "-" + member.created++;
+        registry.create(member.sink, roomName);
+        registry.leave(member.sink, roomName);
+    }
+
+    private String randomRoom() {
+        return roomNames[ThreadLocalRandom.current().nextInt(roomNames.length)];
+    }
+}
@@ -1,27 +1,57 @@
 package com.lucky;
 
+import com.lucky.codec.FrameCodec;
+import com.lucky.codec.MsgCodec;
+import com.lucky.codec.MsgCodecs;
+import com.lucky.constant.ErrorMsg;
 import com.lucky.constant.MsgType;
 import com.lucky.thread.ClientSocketThread;
+import com.lucky.thread.VirtualThreads;
 import org.apache.log4j.Logger;
 
 import java.io.*;
 import java.net.Socket;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Client {
 
     private static final Logger logger = Logger.getLogger(Client.class);
+    private static final long CONNECT_TIMEOUT = 5000;  // 等待服务器响应会话请求的毫秒数
 
     private String host;
     private int port;
     private int retry;         // 最大重连次数
+    private long reconnectBaseMillis;  // 第一次重连的最大等待时间，之后每次翻倍
+    private long reconnectMaxMillis;   // 重连等待时间的上限
+    private volatile long retryAfterMillis;  // 服务器繁忙时建议的重试等待时间
+    private volatile boolean busy;           // 本次连接被服务器以繁忙拒绝
+    private volatile CountDownLatch ready;   // 本次连接收到会话响应、被拒绝或断开时释放
+    private int maxFrameLength;  // 单个帧的最大字节数
+    private String threadMode;   // 接收线程: platform 或 virtual
+    private String codecName;    // 连接后协商的编码方式: json 或 binary
+    private int heartbeatMillis; // 多久没有收到服务器的数据时发送PING，0表示不发送
+    private volatile MsgCodec codec = MsgCodecs.JSON;
     private Socket socket;
     private InputStream is;
     private OutputStream os;
-    private boolean alive;
+    private final ReentrantLock writeLock = new ReentrantLock();  // 不使用synchronized，避免虚拟线程占住载体线程
+    private volatile boolean alive;
     private boolean chatting;  // 是否处于聊天模式
-    private String chatRoom;   // 存储当前属于的chat room
+    private volatile String chatRoom;   // 当前房间，聊天与回放默认使用该房间
+    private final Set<String> rooms = new CopyOnWriteArraySet<String>();  // 已加入的所有房间
+    private volatile String sessionToken;  // 服务器分配的会话令牌，重连时用于恢复身份和房间
+    // 各房间中最后收到的消息序号，序号只在同一个房间内有意义
+    private final Map<String, Long> lastSeqs = new ConcurrentHashMap<String, Long>();
+    private volatile boolean resuming;     // 已发出恢复会话请求，尚未收到响应
 
 
     /** Public Methods */
@@ -31,20 +61,12 @@ public class Client {
         addShutdownHook();
     }
 
+    /**
+     * 连接服务器，失败(包括服务器繁忙)时按退避策略重连
+     */
     public void connect() {
-        try {
-            socket = new Socket(host, port);
-            is = socket.getInputStream();
-            os = socket.getOutputStream();
-            alive = true;
-            chatting = false;
-            chatRoom = "";
-            Thread socketThread = new ClientSocketThread(this);
-            socketThread.start();
-            logger.info("Connect to the chat room successfully");
-            printInfo();
-        } catch (IOException e) {
-            e.printStackTrace();
+        if (!tryConnect()) {
+            reconnect();
         }
     }
 
@@ -73,6 +95,14 @@ public class Client {
         return is;
     }
 
+    public int getMaxFrameLength() {
+        return maxFrameLength;
+    }
+
+    public int getHeartbeatMillis() {
+        return heartbeatMillis;
+    }
+
     public boolean isAlive() {
         return alive;
     }
@@ -89,6 +119,14 @@ public class Client {
         this.chatting = chatting;
     }
 
+    public MsgCodec getCodec() {
+        return codec;
+    }
+
+    public void setCodec(MsgCodec codec) {
+        this.codec = codec;
+    }
+
     public String getChatRoom() {
         return chatRoom;
     }
@@ -97,8 +135,114 @@ public class Client {
         this.chatRoom = chatRoom;
     }
 
+    /**
+     * 加入或创建房间成功，并切换为当前房间
+     */
+    public void onJoined(String room) {
+        rooms.add(room);
+        chatRoom = room;
+    }
+
+    /**
+     * 退出房间成功，current为服务器选择的新的当前房间，为空表示不在任何房间中
+     */
+    public void onQuit(String room, String current) {
+        rooms.remove(room);
+        lastSeqs.remove(room);
+        chatRoom = current;
+        if ("".equals(current)) {
+            chatting = false;
+        }
+    }
+
+    /**
+     * 记录收到的聊天消息序号，恢复会话期间与实时消息重复的补发消息返回false
+     */
+    public boolean acceptChat(String room, long seq) {
+        if (room == null) {
+            room = chatRoom;
+        }
+        Long last = lastSeqs.get(room);
+        long lastSeq = last == null ? 0 : last;
+        if (resuming && seq <= lastSeq) {
+            return false;
+        }
+
+        lastSeqs.put(room, Math.max(lastSeq, seq));
+        return true;
+    }
+
+    /**
+     * 分配或恢复会话成功，room为服务器上的当前房间
+     */
+    public void onSession(String token, String room) {
+        resuming = false;
+        sessionToken = token;
+        chatRoom = room;
+        if ("".equals(room)) {
+            leaveAll();
+        }
+        ready();
+    }
+
+    /**
+     * 服务器繁忙拒绝了本次连接，retryAfter为建议的重试等待毫秒数
+     */
+    public void onBusy(long retryAfter) {
+        retryAfterMillis = retryAfter;
+        busy = true;
+        alive = false;
+        logger.info("server busy, retry after " + retryAfter + " ms");
+        ready();
+    }
+
+    /**
+     * 本次连接已有结果(会话响应、被拒绝或断开)，唤醒等待连接结果的线程
+     */
+    public void ready() {
+        CountDownLatch latch = ready;
+        if (latch != null) {
+            latch.countDown();
+        }
+    }
+
+    /**
+     * 会话已过期，原来的房间成员关系已失效，重新申请会话
+     */
+    public void onSessionExpired() {
+        resuming = false;
+        sessionToken = null;
+        chatRoom = "";
+        leaveAll();
+        logger.info("session expired, please join a chat room again");
+        sendMsg(String.valueOf(MsgType.SESSION));
+        ready();
+    }
+
+    /**
+     * 接收线程发送心跳(PING或对服务器PING的PONG)，失败时由接收线程的读超时或读失败处理断开
+     */
+    public void sendHeartbeat(char type, String data) {
+        try {
+            write(FrameCodec.encode(type + data));
+        } catch (IOException e) {
+            logger.info("send heartbeat failed: " + e.getMessage());
+        }
+    }
+
     /** Private Methods */
 
+    private void leaveAll() {
+        chatting = false;
+        rooms.clear();
+        lastSeqs.clear();
+    }
+
+    private long lastSeq(String room) {
+        Long seq = lastSeqs.get(room);
+        return seq == null ? 0 : seq;
+    }
+
     /**
      * 根据用户的不同输入选择不同操作
      */
@@ -112,7 +256,7 @@ public class Client {
             return;
         }
 
-        if (msg.length() < 2 || msg.length() > 1000 || msg.charAt(0) != '#') {
+        if (msg.length() < 2 || msg.charAt(0) != '#') {
             logger.info("invalid option!");
             printInfo();
             return;
@@ -128,37 +272,50 @@ public class Client {
      */
     private void handlerMsgWithType(char type, String msg) {
         if (type == MsgType.LIST_ROOM ) {
-            sendMsg(type);
+            sendMsg(MsgType.LIST_ROOM + msg.substring(1).trim());  // 可选的分页、前缀与top条件
             return;
         }
 
         if (type == MsgType.QUIT_ROOM) {
-            if ("".equals(chatRoom)) {
+            if (rooms.isEmpty()) {
                 logger.info("You are not in a chat room");
                 return;
             }
 
-            sendMsg(type);
+            sendMsg(MsgType.QUIT_ROOM + msg.substring(1).trim());  // 没有房间名时退出当前房间
             return;
         }
 
-        if (type == MsgType.JOIN_ROOM ) {
-            if (!"".equals(chatRoom)) {
-                logger.info("You have already joined a chat room");
+        if (type == MsgType.JOIN_ROOM || type == MsgType.CREATE_ROOM) {
+            String room = msg.substring(1).replaceAll(" +", "");  //去掉空格
+            if (rooms.contains(room)) {
+                logger.info("You have already joined chat room " + room);
                 return;
             }
 
-            sendMsg(msg.replaceAll(" +", ""));  //去掉空格
+            sendMsg(type + room);
             return;
         }
 
-        if (type == MsgType.CREATE_ROOM) {
-            if (!"".equals(chatRoom)) {
-                logger.info("You have already joined a chat room");
+        if (type == MsgType.SWITCH_ROOM) {
+            String room = msg.substring(1).trim();
+            if (!rooms.contains(room)) {
+                logger.info("Please join chat room " + room + " first");
                 return;
             }
 
-            sendMsg(msg.replaceAll(" +", ""));  //去掉空格
+            sendMsg(MsgType.SWITCH_ROOM + room);
+            return;
+        }
+
+        if (type == MsgType.DIRECT) {
+            String[] parts = msg.substring(1).trim().split(" +", 2);
+            if (parts.length < 2) {
+                logger.info("Please input '#d {userName} {message}'");
+                return;
+            }
+
+            sendMsg(MsgType.DIRECT + parts[0] + " " + parts[1]);
             return;
         }
 
@@ -169,7 +326,23 @@ public class Client {
             }
 
             chatting = true;
-            logger.info("You are in chatting mode, please input '#exit' to quit chatting mode");
+            logger.info("You are chatting in " + chatRoom + ", please input '#exit' to quit chatting mode");
+            return;
+        }
+
+        if (type == MsgType.HISTORY) {
+            if ("".equals(chatRoom)) {
+                logger.info("Please join a chat room first");
+                return;
+            }
+
+            String count = msg.substring(1).trim();
+            sendMsg(MsgType.HISTORY + ("".equals(count) ? "10" : count));
+            return;
+        }
+
+        if (type == MsgType.METRICS) {
+            sendMsg(MsgType.METRICS + msg.substring(1).trim());  // 服务器配置的管理口令
             return;
         }
 
@@ -201,9 +374,83 @@ public class Client {
         sendMsg(protocolMsg);
     }
 
+    /**
+     * 建立连接并等待会话响应，已有会话令牌时(断线重连)请求恢复会话，保留原来的身份和房间，
+     * 服务器只补发断开期间错过的消息；否则申请新的会话。服务器繁忙或无响应时返回false
+     */
+    private boolean tryConnect() {
+        try {
+            busy = false;
+            ready = new CountDownLatch(1);
+            socket = new Socket(host, port);
+            is = socket.getInputStream();
+            os = socket.getOutputStream();
+            alive = true;
+            codec = MsgCodecs.JSON;
+            VirtualThreads.start(threadMode, "clientSocket", new ClientSocketThread(this));
+            handshake();
+            String token = sessionToken;
+            if (token == null) {
+                chatRoom = "";
+                leaveAll();
+                write(FrameCodec.encode(String.valueOf(MsgType.SESSION)));
+            } else {
+                resuming = true;
+                write(FrameCodec.encode(resumeRequest(token)));
+            }
+        } catch (IOException e) {
+            logger.info("connect failed: " + e.getMessage());
+            return false;
+        }
+
+        try {
+            if (!ready.await(CONNECT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                logger.info("no response from server");
+                close();
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (!alive || busy) {
+            return false;
+        }
+
+        logger.info("Connect to the chat room successfully");
+        printInfo();
+        return true;
+    }
+
+    /**
+     * 恢复会话的请求: {令牌} {当前房间的序号} {房间}:{序号} ...
+     */
+    private String resumeRequest(String token) {
+        StringBuilder sb = new StringBuilder().append(MsgType.SESSION).append(token)
+                .append(' ').append(lastSeq(chatRoom));
+        for (String room : rooms) {
+            sb.append(' ').append(room).append(':').append(lastSeq(room));
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * 协商编码方式，之后的响应立即按新的编码方式解码，服务器拒绝时退回json
+     */
+    private void handshake() throws IOException {
+        MsgCodec wanted = MsgCodecs.forName(codecName);
+        if (wanted == null || wanted == MsgCodecs.JSON) {
+            return;
+        }
+
+        codec = wanted;
+        write(FrameCodec.encode(MsgType.HANDSHAKE + wanted.name()));
+    }
+
     private void sendMsg(String msg) {
         try {
-            os.write(msg.getBytes());
+            write(FrameCodec.encode(msg));
         } catch (IOException e) {
             alive = false;
             reconnect();
@@ -213,7 +460,7 @@ public class Client {
 
     private void sendMsg(char msg) {
         try {
-            os.write(msg);
+            write(FrameCodec.encode(String.valueOf(msg)));
         } catch (IOException e) {
             alive = false;
             reconnect();
@@ -222,19 +469,39 @@ public class Client {
     }
 
     /**
-     * socket断开后，隔一段时间尝试重新连接
+     * 输入线程与接收线程(心跳)都会写socket，加锁保证帧不会交错。
+     * 超过frame.max的帧会被服务器当作错误的帧并断开连接，在本地拒绝
+     */
+    private void write(byte[] frame) throws IOException {
+        int length = frame.length - FrameCodec.HEADER_LENGTH;
+        if (length > maxFrameLength) {
+            logger.info(ErrorMsg.FRAME_TOO_LARGE + ": " + length + " bytes, max " + maxFrameLength);
+            return;
+        }
+
+        writeLock.lock();
+        try {
+            os.write(frame);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * socket断开后按指数退避重连，最多重试retry次。每次的等待时间在 [0, min(上限, 初始值 * 2^n)] 中随机选取，
+     * 避免服务器重启后所有客户端同时重连；服务器回复繁忙时至少等待它建议的时间，再随机推迟一段
      */
     private void reconnect() {
-        int retry = 0;
-        while (retry < 5) {
-            logger.info("reconnect..." + (++retry));
-            connect();
+        for (int attempt = 0; attempt < retry; attempt++) {
+            long delay = backoff(attempt);
+            logger.info("reconnect in " + delay + " ms..." + (attempt + 1));
             try {
-                Thread.sleep(2000);
+                Thread.sleep(delay);
             } catch (InterruptedException e) {
-                e.printStackTrace();
+                Thread.currentThread().interrupt();
+                break;
             }
-            if (alive) {
+            if (tryConnect()) {
                 logger.info("reconnect success");
                 return;
             }
@@ -244,6 +511,19 @@ public class Client {
         close();
     }
 
+    private long backoff(int attempt) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long ceiling = Math.min(reconnectMaxMillis, reconnectBaseMillis << Math.min(attempt, 20));
+        long delay = random.nextLong(ceiling + 1);
+        long hint = retryAfterMillis;
+        retryAfterMillis = 0;
+        if (hint > 0) {
+            delay = Math.max(delay, hint + random.nextLong(hint + 1));
+        }
+
+        return delay;
+    }
+
     private void close() {
         try {
             alive = false;
@@ -257,12 +537,19 @@ public class Client {
 
     private void printInfo() {
         System.out.println("------------------------------");
-        System.out.println("-1: input '#1' to see current chat rooms");
+        System.out.println("-1: input '#1 [prefix:{p}] [after:{roomName}] [limit:{n}] [top:{n}]' to see chat rooms");
         System.out.println("-2: input '#2 {roomName}' to join a chat room");
-        System.out.println("-3: input '#3' to quit chat room");
+        System.out.println("-3: input '#3 [roomName]' to quit a chat room, current chat room by default");
         System.out.println("-4: input '#4 {roomName}' to create a chat room");
         System.out.println("-5: input '#5' to start chatting");
         System.out.println("-5: input '#6' to quit system");
+        System.out.println("-8: input '#8 {count}' to see recent messages of current chat room");
+        System.out.println("-9: input '#9 {token}' to see server metrics (admin)");
+        System.out.println("-s: input '#s {roomName}' to switch current chat room");
+        System.out.println("-d: input '#d {userName} {message}' to send a direct message");
+        if (!rooms.isEmpty()) {
+            System.out.println("joined: " + rooms + ", current: " + chatRoom);
+        }
         System.out.println("------------------------------");
     }
 
@@ -272,7 +559,14 @@ public class Client {
             properties.load(this.getClass().getResourceAsStream("/client.properties"));
             this.port = Integer.valueOf(properties.getProperty("port"));
             this.host = properties.getProperty("host");
-            this.retry = Integer.valueOf(properties.getProperty("retry"));
+            this.retry = Integer.valueOf(properties.getProperty("retry", "5"));
+            this.reconnectBaseMillis = Long.valueOf(properties.getProperty("reconnect.baseMs", "500"));
+            this.reconnectMaxMillis = Long.valueOf(properties.getProperty("reconnect.maxMs", "30000"));
+            this.codecName = properties.getProperty("codec", MsgCodecs.JSON.name());
+            this.threadMode = properties.getProperty("thread.mode", VirtualThreads.MODE_PLATFORM);
+            this.heartbeatMillis = Integer.valueOf(properties.getProperty("heartbeat.intervalMs", "15000"));
+            this.maxFrameLength = Integer.valueOf(properties.getProperty("frame.max",
+                    String.valueOf(FrameCodec.DEFAULT_MAX_FRAME_LENGTH)));
         } catch (IOException e) {
             e.printStackTrace();
         }
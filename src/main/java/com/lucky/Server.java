@@ -1,47 +1,149 @@
 package com.lucky;
 
-import com.google.gson.Gson;
+import com.lucky.bean.ChatMsg;
 import com.lucky.bean.Room;
+import com.lucky.buffer.BufferPool;
+import com.lucky.cluster.ClusterNode;
+import com.lucky.codec.FrameCodec;
+import com.lucky.codec.MsgCodec;
+import com.lucky.codec.MsgCodecs;
+import com.lucky.codec.SharedFrame;
 import com.lucky.constant.ErrorMsg;
 import com.lucky.constant.MsgType;
+import com.lucky.constant.ResponseStatus;
+import com.lucky.handler.ServerMsgHandler;
+import com.lucky.metrics.FanoutStats;
+import com.lucky.metrics.ServerMetrics;
+import com.lucky.net.AdmissionControl;
+import com.lucky.net.Connection;
+import com.lucky.net.FlushPolicy;
+import com.lucky.net.Heartbeats;
+import com.lucky.net.OutboundQueue;
+import com.lucky.net.RateLimit;
+import com.lucky.net.RateLimiter;
+import com.lucky.net.SlowConsumerPolicy;
+import com.lucky.net.UserDirectory;
+import com.lucky.nio.BalanceStrategy;
+import com.lucky.nio.NioServer;
+import com.lucky.room.ChatRoom;
+import com.lucky.room.EncodedMsg;
+import com.lucky.room.FanoutTask;
+import com.lucky.room.RoomListCache;
+import com.lucky.room.RoomQuery;
+import com.lucky.room.RoomRegistry;
+import com.lucky.session.Session;
+import com.lucky.session.SessionManager;
+import com.lucky.store.LogReader;
+import com.lucky.store.LogRecordHandler;
+import com.lucky.store.MessageLog;
 import com.lucky.thread.ServerSocketThread;
+import com.lucky.thread.VirtualThreads;
 import org.apache.log4j.Logger;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 
 public class Server {
 
     private static final Logger logger = Logger.getLogger(Server.class);
 
     private int port;
+    private String engine;     // 服务器引擎: bio(每个连接一个线程) 或 nio(Selector事件循环)
+    private int nioThreads;    // nio引擎的工作事件循环线程数
+    private BalanceStrategy balanceStrategy;  // nio引擎中新连接分配给工作事件循环的策略
+    private String threadMode; // bio引擎的连接处理线程: platform 或 virtual
+    private String writerThreadMode;  // bio引擎每个连接的写线程: platform 或 virtual
+    private int maxFrameLength;  // 单个帧的最大字节数
+    private int outboundMaxMessages;  // 每个连接待发送队列的最大消息数
+    private long outboundMaxBytes;    // 每个连接待发送队列的最大字节数
+    private SlowConsumerPolicy slowConsumerPolicy;  // 待发送队列超过阈值时的处理策略
+    private FlushPolicy flushPolicy;  // 待发送的帧合并写出的批大小与延迟预算
+    private int historyReplayOnJoin;  // 加入房间后自动回放的最近消息条数
+    private int parallelFanoutThreshold;  // 成员数不少于该值的房间分区并行分发，0表示不开启
+    private int fanoutPartitionSize;      // 并行分发时每个分区的成员数
+    private ForkJoinPool fanoutPool;      // 并行分发使用的工作窃取线程池，未开启时为null
+    private ExecutorService roomScheduler;  // 所有房间的actor共享的调度线程池，为null时由调用线程执行
     private boolean alive;
-    private AtomicInteger count = new AtomicInteger(0);  // 当前连接的socket数目
-    private Map<String, List<ServerSocketThread>> rooms =
-            new HashMap<String, List<ServerSocketThread>>(); // 当前的所有socket线程与聊天室, 操作需要同步
-    private Gson gson = new Gson();
+    private String adminToken;  // 管理请求需要携带的口令，为空时拒绝所有管理请求
+    private UserDirectory directory = new UserDirectory();  // 当前的所有连接、用户名与各连接所在的房间
+    private RoomRegistry registry;  // 当前的所有聊天室，并发安全，不需要全局锁
+    private RoomListCache roomListCache;  // 房间列表的分页查询与已编码结果的缓存
+    private int roomListPageSize;     // 房间列表没有指定条数时每页的房间数
+    private int roomListMaxPageSize;  // 房间列表每页与top查询的最大房间数
+    private ServerMsgHandler msgHandler = new ServerMsgHandler(this);
+    private FanoutStats fanoutStats;
+    private ServerMetrics metrics;
+    private MessageLog messageLog;  // 持久化的消息日志，未开启时为null
+    private ClusterNode cluster;    // 集群模式下的本节点，单机模式为null
+    private SessionManager sessions;  // 会话令牌，断开后在宽限期内保留房间成员关系
+    private AdmissionControl admission;  // 连接数上限与新连接速率限制
+    private AtomicInteger admitted = new AtomicInteger();  // 已准入的连接数，准入时预留，断开时释放
+    private RateLimiter rateLimiter;     // 按连接、用户、房间限制发送聊天消息的速率
+    private Heartbeats heartbeats;       // 空闲连接的心跳检测与回收
+    private BufferPool bufferPool;  // 所有连接共享的读缓冲区与广播帧缓冲区
     private ServerSocket server;
+    private volatile NioServer nioServer;
 
     public Server() {
-        initFromProperties();
+        this(new Properties());
+    }
+
+    /**
+     * @param overrides 覆盖server.properties中的配置，用于在同一台机器上启动多个节点
+     */
+    public Server(Properties overrides) {
+        initFromProperties(overrides);
         addShutdownHook();
+        metrics.start();
+        sessions.start();
+        heartbeats.start();
     }
 
     public void start() {
+        if (cluster != null) {
+            try {
+                cluster.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+
+        if ("nio".equals(engine)) {
+            startNio();
+            return;
+        }
+
         try {
             server = new ServerSocket(port);
             alive = true;
-            logger.info("SocketServer has started, listening port: " + port);
+            logger.info("SocketServer has started, listening port: " + port + ", thread mode: " + threadMode
+                    + ", writer thread mode: " + writerThreadMode
+                    + ", flush policy: " + flushPolicy);
             while (alive) {
                 Socket socket = server.accept();
-                Thread socketThread = new ServerSocketThread(socket, this);
-                socketThread.start();
-                count.incrementAndGet();
-                logger.info("Welcome user-" + socketThread.getId() + " joined this chat room. " +
-                        "Current user count: " + count);
+                long retryAfter = admit();
+                if (retryAfter > 0) {
+                    reject(socket, retryAfter);
+                    continue;
+                }
+
+                ServerSocketThread socketThread = new ServerSocketThread(socket, this);
+                socketConnected(socketThread);  // 先登记再启动读线程，否则立即断开的连接会在登记前注销而残留
+                VirtualThreads.start(threadMode, "user-" + socketThread.getId(), socketThread);
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -51,104 +153,516 @@ public class Server {
         }
     }
 
-    public void socketDisconnect(ServerSocketThread socket) {
-        int current = count.decrementAndGet();
+    /**
+     * 停止服务器并关闭后台线程，用于在同一个进程中多次启动服务器(如性能测试)
+     */
+    public void stop() {
+        close();
+        metrics.close();
+        sessions.close();
+        heartbeats.close();
+        if (cluster != null) {
+            cluster.close();
+        }
+        if (fanoutPool != null) {
+            fanoutPool.shutdownNow();
+        }
+        if (roomScheduler != null) {
+            roomScheduler.shutdownNow();
+        }
+    }
+
+    public int getMaxFrameLength() {
+        return maxFrameLength;
+    }
+
+    public String getThreadMode() {
+        return threadMode;
+    }
+
+    public String getWriterThreadMode() {
+        return writerThreadMode;
+    }
+
+    public OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(outboundMaxMessages, outboundMaxBytes, slowConsumerPolicy);
+    }
+
+    public FlushPolicy getFlushPolicy() {
+        return flushPolicy;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    public FanoutStats getFanoutStats() {
+        return fanoutStats;
+    }
+
+    public int getHistoryReplayOnJoin() {
+        return historyReplayOnJoin;
+    }
+
+    public Heartbeats getHeartbeats() {
+        return heartbeats;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public String getAdminToken() {
+        return adminToken;
+    }
+
+    public ClusterNode getCluster() {
+        return cluster;
+    }
+
+    /**
+     * 房间是否由集群中的其他节点拥有
+     */
+    public boolean isRemoteRoom(String roomName) {
+        return cluster != null && !cluster.isLocal(roomName);
+    }
+
+    public boolean isConnected(Connection socket) {
+        return directory.contains(socket);
+    }
+
+    public UserDirectory getDirectory() {
+        return directory;
+    }
+
+    /**
+     * 聊天消息中显示的用户名，集群模式下带上节点id以区分不同节点上的同一个连接id
+     */
+    public String getUserName(Connection socket) {
+        String userName = sessions.getUserName(socket);  // 恢复的会话沿用原来的用户名
+        if (userName != null) {
+            return userName;
+        }
+
+        return defaultUserName(socket);
+    }
+
+    private String defaultUserName(Connection socket) {
+        return cluster == null ? "user-" + socket.getId() : cluster.getNodeId() + "/user-" + socket.getId();
+    }
+
+    public RoomRegistry getRegistry() {
+        return registry;
+    }
+
+    public ServerMsgHandler getMsgHandler() {
+        return msgHandler;
+    }
+
+    /**
+     * 新连接的准入检查，返回0表示接受，否则为建议客户端等待的毫秒数。
+     * 接受时立即预留连接数，NIO的连接要等事件循环注册后才进入directory，不能按directory计数
+     */
+    public long admit() {
+        long retryAfter = admission.admit(admitted.get());
+        if (retryAfter == 0) {
+            admitted.incrementAndGet();
+        } else {
+            metrics.recordRejected();
+            long rejected = metrics.getRejectedConnects();
+            if (rejected % 1000 == 1) {
+                logger.info("server busy, connection rejected, total rejected: " + rejected);
+            }
+        }
+
+        return retryAfter;
+    }
+
+    /**
+     * 拒绝连接时回复的帧，数据为建议的重试等待毫秒数
+     */
+    public SharedFrame busyFrame(long retryAfter) {
+        return SharedFrame.of(MsgType.BUSY, ResponseStatus.FAIL, String.valueOf(retryAfter));
+    }
+
+    /**
+     * 已准入的连接没有登记就关闭时(如注册到事件循环失败)释放预留的连接数
+     */
+    public void releaseAdmission() {
+        admitted.decrementAndGet();
+    }
+
+    public void socketConnected(Connection socket) {
+        directory.register(socket, getUserName(socket));
+        heartbeats.register(socket);
+        metrics.recordAccepted();
+        int current = directory.size();
+        logger.info("Welcome user-" + socket.getId() + " joined this chat room. " +
+                "Current user count: " + current);
+    }
+
+    public void socketDisconnect(Connection socket) {
+        String userName = getUserName(socket);
+        directory.unregister(socket, userName);
+        admitted.decrementAndGet();
+        rateLimiter.remove(socket);
+        heartbeats.unregister(socket);
+        int current = directory.size();
         logger.info("User-" + socket.getId() + " quit chat room, current user count: " + current);
-        String roomName = socket.getChatRoom();
-        if (roomName == null || "".equals(roomName)) {
+        if (sessions.detach(socket)) {  // 宽限期内保留在所有房间中，等待重连
+            Set<String> rooms = directory.getRooms(socket);
+            if (!rooms.isEmpty()) {
+                logger.info("keep session of user-" + socket.getId() + " in chat rooms: " + rooms);
+            }
             return;
         }
+        if (directory.find(userName) == null) {  // 会话已被新连接恢复时保留用户的限流状态
+            rateLimiter.removeUser(userName);
+        }
 
-        try {
-            removeSocketFromRoom(socket, roomName);
-        } catch (Exception e) {
-            e.printStackTrace();
+        // 只遍历该用户自己加入的房间
+        for (String roomName : directory.removeRooms(socket)) {
+            try {
+                removeSocketFromRoom(socket, userName, roomName);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
         }
     }
 
     /**
-     * 获取当前聊天室以及成员信息，并没有使用同步
+     * 为连接分配会话，返回会话令牌
      */
-    public String getRoomList() {
-        List<Room> data = new ArrayList<Room>();
-        for (Map.Entry<String, List<ServerSocketThread>> entry: rooms.entrySet()) {
-            Room room = new Room(entry.getKey(), entry.getValue().size());
-            data.add(room);
+    public String openSession(Connection socket) {
+        return sessions.open(socket).getToken();
+    }
+
+    /**
+     * 新连接带着令牌恢复会话，接替原来的连接在所有房间中的位置，返回原来的当前房间。
+     * lastSeqs为客户端在各房间最后收到的序号，每个房间补发序号更大的消息，没有给出时当前房间使用lastSeq，
+     * 其他房间不补发。补发在房间的actor中紧接着接替执行，之后才是新的实时消息，不会重复也不会遗漏
+     */
+    public String resumeSession(final Connection socket, String token, long lastSeq,
+                                Map<String, Long> lastSeqs) throws Exception {
+        if (!directory.getRooms(socket).isEmpty()) {
+            throw new Exception(ErrorMsg.INVALID_ARGUMENT);
         }
 
-        return gson.toJson(data);
+        Connection previous = sessions.resume(token, socket);
+        if (previous == null) {
+            throw new Exception(ErrorMsg.SESSION_EXPIRED);
+        }
+        if (previous == socket) {
+            return socket.getChatRoom();
+        }
+
+        directory.rename(socket, defaultUserName(socket), getUserName(socket));
+        String current = previous.getChatRoom();
+        previous.setChatRoom("");
+        // 先取走房间再关闭原来的连接，会话已经转给新连接，原连接的断开流程看不到会话，会把它仍在的房间全部退出
+        for (final String roomName : directory.removeRooms(previous)) {
+            Long seq = lastSeqs.get(roomName);
+            if (seq == null && roomName.equals(current)) {  // 旧客户端只给出当前房间的序号
+                seq = lastSeq;
+            }
+            final Long missedSince = seq;
+            try {
+                registry.replace(previous, socket, roomName, missedSince == null ? null : new Runnable() {
+                    @Override
+                    public void run() {
+                        sendMissed(socket, roomName, missedSince);
+                    }
+                });
+            } catch (Exception e) {
+                logger.info("user-" + socket.getId() + " resume chat room " + roomName + " failed: " + e.getMessage());
+                continue;
+            }
+            directory.joined(socket, roomName);
+        }
+        previous.close();  // 服务器可能还没有发现原来的连接已经断开
+
+        Set<String> rooms = directory.getRooms(socket);
+        if (!rooms.contains(current)) {
+            current = rooms.isEmpty() ? "" : rooms.iterator().next();
+        }
+        socket.setChatRoom(current);
+        logger.info("user-" + socket.getId() + " resume session of user-" + previous.getId() + " in chat rooms: " + rooms);
+        return current;
     }
 
     /**
-     * 将用户添加到某个聊天室
+     * 会话超过宽限期仍未恢复，把原来的连接从它加入的所有房间中移除
      */
-    public synchronized void addSocketToRoom(ServerSocketThread socket, String roomName) throws Exception {
-        List<ServerSocketThread> sockets = rooms.get(roomName);
-        if (sockets == null) {
-            throw new Exception(ErrorMsg.ROOM_NOT_EXIST);
+    public void sessionExpired(Session session, Connection socket) {
+        logger.info("session of " + session.getUserName() + " expired");
+        rateLimiter.removeUser(session.getUserName());
+        socket.setChatRoom("");
+        for (String roomName : directory.removeRooms(socket)) {
+            try {
+                removeSocketFromRoom(socket, session.getUserName(), roomName);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
         }
+    }
 
-        sockets.add(socket);
-        rooms.put(roomName, sockets);
-        logger.info("user-" + socket.getId() + " join chat room: " + roomName);
+    /**
+     * 解析房间列表的查询参数
+     */
+    public RoomQuery parseRoomQuery(String arg) throws Exception {
+        return RoomQuery.parse(arg, roomListPageSize, roomListMaxPageSize);
     }
 
     /**
-     * 创建聊天室
+     * 房间列表查询的响应帧，注册表没有变化时复用缓存的编码结果
      */
-    public synchronized void createChatRoom(ServerSocketThread socket, String roomName) throws Exception {
-        List<ServerSocketThread> sockets = rooms.get(roomName);
-        if (sockets != null) {
-            throw new Exception(ErrorMsg.ROOM_EXIST);
+    public SharedFrame roomListFrame(RoomQuery query, MsgCodec codec) {
+        return roomListCache.frame(query, codec);
+    }
+
+    /**
+     * 获取当前所有聊天室以及成员信息，遍历时不加锁，得到的是弱一致性的快照。
+     * 集群模式下只包含本节点拥有的房间，人数为所有节点上的成员数之和，由各节点合并后再按查询条件分页
+     */
+    public List<Room> getRoomList() {
+        List<Room> data = new ArrayList<Room>();
+        for (ChatRoom chatRoom : registry.getRooms()) {
+            if (isRemoteRoom(chatRoom.getName())) {  // 其他节点拥有的房间由该节点汇报
+                continue;
+            }
+            data.add(new Room(chatRoom.getName(), chatRoom.getMemberCount()));
         }
 
-        sockets = new ArrayList<ServerSocketThread>();
-        sockets.add(socket);
-        rooms.put(roomName, sockets);
+        return data;
+    }
+
+    public void addSocketToRoom(Connection socket, String roomName) throws Exception {
+        addSocketToRoom(socket, roomName, null);
+    }
+
+    /**
+     * 将用户添加到某个聊天室，onJoined在房间的actor中紧接着加入执行，
+     * 用于回复加入成功与回放历史，该用户收到的第一条实时消息一定在它们之后
+     */
+    public void addSocketToRoom(Connection socket, String roomName, Runnable onJoined) throws Exception {
+        registry.join(socket, roomName, onJoined);
+        directory.joined(socket, roomName);
+    }
+
+    public void createChatRoom(Connection socket, String roomName) throws Exception {
+        createChatRoom(socket, roomName, null);
+    }
+
+    /**
+     * 创建聊天室，onJoined在房间的actor中执行
+     */
+    public void createChatRoom(Connection socket, String roomName, Runnable onJoined) throws Exception {
+        registry.create(socket, roomName, onJoined);
+        directory.joined(socket, roomName);
         logger.info("user-" + socket.getId() + " create chat room: " + roomName);
     }
 
     /**
-     * 从房间中移除某个用户，如果没有用户了，删除房间，同步方法，
-     * 不使用concurrentHashMap的原因就是这是个组合操作，存在竞态条件
+     * 其他节点拥有的房间确认后加入本地副本，onJoined在房间的actor中执行
+     */
+    public void joinReplica(Connection socket, String roomName, Runnable onJoined) {
+        registry.joinReplica(socket, roomName, onJoined);
+        directory.joined(socket, roomName);
+    }
+
+    /**
+     * 切换当前房间，之后的聊天消息与历史回放默认使用该房间
+     */
+    public void switchRoom(Connection socket, String roomName) throws Exception {
+        if (!directory.isMember(socket, roomName)) {
+            throw new Exception(ErrorMsg.NOT_IN_THIS_ROOM);
+        }
+
+        socket.setChatRoom(roomName);
+    }
+
+    /**
+     * 从房间中移除某个用户，如果没有用户了，删除房间，
+     * 由RoomRegistry保证这个组合操作对单个房间是原子的，不需要全局锁
+     */
+    public void removeSocketFromRoom(Connection socket, String roomName) throws Exception{
+        removeSocketFromRoom(socket, getUserName(socket), roomName);
+    }
+
+    /**
+     * userName为加入房间时的用户名，连接断开后会话已经解除，不能再由连接得到
+     */
+    public void removeSocketFromRoom(Connection socket, String userName, String roomName) throws Exception {
+        registry.leave(socket, roomName);
+        directory.left(socket, roomName);
+        if (isRemoteRoom(roomName)) {
+            cluster.leaveRoom(roomName, userName);
+        }
+    }
+
+    /**
+     * 分发聊天信息，每种编码方式最多序列化一次，同一个帧写给房间内使用该编码的所有成员，
+     * 并保留在房间的历史记录中用于回放。分配序号与分发作为一个任务放入房间的actor，
+     * 与该房间的成员变化一起按顺序执行，当前线程不等待分发完成。任务的代价为房间人数，房间之间按代价公平轮转。
+     * 集群模式下其他节点拥有的房间交给拥有者分配序号，再由拥有者转发回来
      */
-    public synchronized void removeSocketFromRoom(ServerSocketThread socket, String roomName) throws Exception{
-        List<ServerSocketThread> sockets = rooms.get(roomName);
-        if (sockets == null) {
+    public void deliverChatMsg(final String roomName, final ChatMsg chatMsg) throws Exception {
+        final long startNanos = System.nanoTime();
+        final ChatRoom chatRoom = registry.get(roomName);
+        if (chatRoom == null) {
             throw new Exception(ErrorMsg.ROOM_NOT_EXIST);
         }
+        chatMsg.setRoom(roomName);
+        if (isRemoteRoom(roomName)) {
+            cluster.forwardChat(roomName, chatMsg);
+            return;
+        }
 
-        boolean remove = sockets.remove(socket);
-        if (!remove) {
-            throw new Exception(ErrorMsg.NOT_IN_THIS_ROOM);
+        chatRoom.tell(new Runnable() {
+            @Override
+            public void run() {
+                long allocatedBefore = fanoutStats.currentThreadAllocatedBytes();
+                EncodedMsg msg = chatRoom.getHistory().append(chatMsg);  // 分配序号，编码结果同时用于历史回放
+                fanout(chatRoom, msg, startNanos, allocatedBefore);
+                if (messageLog != null) {
+                    messageLog.append(roomName, chatMsg);  // 只入队，由日志线程写盘
+                }
+            }
+        }, chatRoom.getMemberCount());
+    }
+
+    /**
+     * 发送聊天消息或私聊前的限流检查，超过连接、用户或房间任意一级的限制时抛出对应的错误码，
+     * 房间名为null时只检查连接与用户
+     */
+    public void checkRate(Connection socket, String roomName) throws Exception {
+        ChatRoom chatRoom = roomName == null ? null : registry.get(roomName);
+        RateLimiter.Scope scope = rateLimiter.acquire(socket, getUserName(socket),
+                chatRoom == null ? null : chatRoom.getRateLimit());
+        if (scope != null) {
+            metrics.recordThrottled(scope);
+            throw new Exception(scope.getError());
         }
+    }
 
-        logger.info("user-" + socket.getId() + " quit chat room: " + roomName);
-        if (sockets.size() == 0) {
-            rooms.remove(roomName);
+    /**
+     * 私聊：按用户名在目录中O(1)找到接收方，分别按接收方与发送方的编码方式编码，发送方收到一份回显。
+     * 只能发给本节点上的在线用户
+     */
+    public void deliverDirectMsg(Connection from, String toUser, ChatMsg chatMsg) throws Exception {
+        Connection to = directory.find(toUser);
+        if (to == null) {
+            throw new Exception(ErrorMsg.USER_NOT_ONLINE);
+        }
+
+        chatMsg.setTo(toUser);
+        to.sendFrame(SharedFrame.of(MsgType.DIRECT, ResponseStatus.OK, to.getCodec().encodeChatMsg(chatMsg)));
+        if (to != from) {
+            from.sendFrame(SharedFrame.of(MsgType.DIRECT, ResponseStatus.OK, from.getCodec().encodeChatMsg(chatMsg)));
+        }
+    }
+
+    /**
+     * 分发其他节点拥有的房间转发来的消息，序号已由拥有者分配
+     */
+    public void deliverReplica(String roomName, final ChatMsg chatMsg) {
+        final long startNanos = System.nanoTime();
+        final ChatRoom chatRoom = registry.get(roomName);
+        if (chatRoom == null) {  // 本节点的成员都已退出
             return;
         }
 
-        rooms.put(roomName, sockets);
+        chatRoom.tell(new Runnable() {
+            @Override
+            public void run() {
+                long allocatedBefore = fanoutStats.currentThreadAllocatedBytes();
+                fanout(chatRoom, chatRoom.getHistory().appendReplica(chatMsg), startNanos, allocatedBefore);
+            }
+        }, chatRoom.getMemberCount());
     }
 
     /**
-     * 分发聊天信息
+     * 补发序号大于seq的历史消息，在房间的actor中调用
      */
-    public void deliverChatMsg(String roomName, String msg) throws Exception {
-        List<ServerSocketThread> sockets = rooms.get(roomName);
-        if (sockets == null) {
-            throw new Exception(ErrorMsg.ROOM_NOT_EXIST);
+    private void sendMissed(Connection socket, String roomName, long seq) {
+        ChatRoom chatRoom = registry.get(roomName);
+        if (chatRoom == null) {
+            return;
         }
 
-        for (ServerSocketThread socket: sockets) {
-            socket.sendChatMsg(msg);
+        for (EncodedMsg msg : chatRoom.getHistory().since(seq)) {
+            socket.sendFrame(msg.encode(socket.getCodec()));
+            msg.release();
+        }
+    }
+
+    /**
+     * nio引擎下发给NIO连接的帧按工作事件循环分组，每个事件循环只投递一次，
+     * 其他连接(bio连接、集群节点的代理连接)直接发送。成员数超过阈值的房间按分区在工作窃取线程池中并行分发，
+     * 当前线程等待所有分区完成，同一发送方的消息顺序不变。分发结束后释放分发线程持有的消息引用，
+     * 帧的缓冲区在历史淘汰且所有待发送队列写出后回到池中
+     */
+    private void fanout(ChatRoom chatRoom, EncodedMsg msg, long startNanos, long allocatedBefore) {
+        FanoutTask task = new FanoutTask(chatRoom.memberSpliterator(), msg, nioServer, fanoutPartitionSize);
+        if (fanoutPool != null && chatRoom.getMemberCount() >= parallelFanoutThreshold) {
+            fanoutPool.invoke(task);
+        } else {
+            task.deliver();
+        }
+        int recipients = task.getRecipients();
+        long bytes = task.getBytes();
+        for (MsgCodec codec : MsgCodecs.ALL) {
+            SharedFrame frame = msg.getFrame(codec);
+            if (frame != null) {
+                fanoutStats.recordEncode(frame.length());
+            }
+        }
+        msg.release();
+        fanoutStats.recordFanout(recipients, allocatedBefore);
+        metrics.recordFanout(chatRoom, recipients, bytes, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * 回复繁忙后直接关闭，不为该连接创建线程。新连接的发送缓冲区为空，写一个小帧不会阻塞accept线程
+     */
+    private void reject(Socket socket, long retryAfter) {
+        try {
+            OutputStream os = socket.getOutputStream();
+            busyFrame(retryAfter).writeTo(os);
+            socket.shutdownOutput();
+        } catch (IOException e) {
+            // 客户端已经断开
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void startNio() {
+        try {
+            alive = true;
+            nioServer = new NioServer(this, port, nioThreads, balanceStrategy);
+            nioServer.start();
+            nioServer.awaitTermination();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            logger.info("NIO SocketServer has stopped");
+            close();
         }
     }
 
     private void close() {
         try {
             alive = false;
+            if (nioServer != null) {
+                nioServer.close();
+            }
             if (server != null && !server.isClosed()) {
                 server.close();
             }
@@ -157,26 +671,202 @@ public class Server {
         }
     }
 
-    private void initFromProperties() {
+    private void initFromProperties(Properties overrides) {
         Properties properties = new Properties();
         try {
             properties.load(this.getClass().getResourceAsStream("/server.properties"));
+            properties.putAll(overrides);
             this.port = Integer.valueOf(properties.getProperty("port"));
+            this.engine = properties.getProperty("engine", "bio");
+            this.threadMode = properties.getProperty("thread.mode", VirtualThreads.MODE_PLATFORM);
+            // 写线程大部分时间阻塞在待发送队列上，默认在支持时使用虚拟线程，避免平台线程数翻倍
+            String writerMode = properties.getProperty("thread.writerMode", "").trim();
+            if (writerMode.isEmpty()) {
+                writerMode = VirtualThreads.isSupported() ? VirtualThreads.MODE_VIRTUAL : threadMode;
+            }
+            this.writerThreadMode = writerMode;
+            this.nioThreads = Integer.valueOf(properties.getProperty("nio.threads",
+                    String.valueOf(Runtime.getRuntime().availableProcessors())));
+            this.balanceStrategy = BalanceStrategy.parse(properties.getProperty("nio.balance"));
+            this.bufferPool = new BufferPool(Boolean.valueOf(properties.getProperty("buffer.direct", "false")),
+                    Long.valueOf(properties.getProperty("buffer.maxPooledBytes", "67108864")),
+                    Boolean.valueOf(properties.getProperty("buffer.leakDetection", "false")));
+            int actorThreads = Integer.valueOf(properties.getProperty("room.actorThreads",
+                    String.valueOf(Runtime.getRuntime().availableProcessors())));
+            if (actorThreads > 0) {
+                this.roomScheduler = newRoomScheduler(actorThreads);
+            }
+            this.registry = new RoomRegistry(Integer.valueOf(properties.getProperty("history.capacity", "100")),
+                    Long.valueOf(properties.getProperty("history.maxBytes", "1048576")), bufferPool, roomScheduler,
+                    Integer.valueOf(properties.getProperty("room.quantum", "4096")),
+                    rateLimit(properties, "rate.room"));
+            this.rateLimiter = new RateLimiter(rateLimit(properties, "rate.connection"),
+                    rateLimit(properties, "rate.user"));
+            this.historyReplayOnJoin = Integer.valueOf(properties.getProperty("history.replayOnJoin", "0"));
+            this.roomListPageSize = Integer.valueOf(properties.getProperty("roomList.pageSize", "100"));
+            this.roomListMaxPageSize = Integer.valueOf(properties.getProperty("roomList.maxPageSize", "1000"));
+            this.roomListCache = new RoomListCache(registry, new Predicate<String>() {
+                @Override
+                public boolean test(String roomName) {
+                    return !isRemoteRoom(roomName);  // 其他节点拥有的房间由该节点汇报
+                }
+            });
+            this.parallelFanoutThreshold = Integer.valueOf(properties.getProperty("fanout.parallelThreshold", "5000"));
+            this.fanoutPartitionSize = Integer.valueOf(properties.getProperty("fanout.partitionSize", "1024"));
+            int parallelism = Integer.valueOf(properties.getProperty("fanout.parallelism",
+                    String.valueOf(Runtime.getRuntime().availableProcessors())));
+            if (parallelFanoutThreshold > 0 && parallelism > 1) {
+                this.fanoutPool = newPool(parallelism, "fanout-worker-");
+            }
+            this.outboundMaxMessages = Integer.valueOf(properties.getProperty("outbound.maxMessages", "1024"));
+            this.outboundMaxBytes = Long.valueOf(properties.getProperty("outbound.maxBytes", "1048576"));
+            this.slowConsumerPolicy = SlowConsumerPolicy.parse(properties.getProperty("outbound.policy"));
+            this.flushPolicy = new FlushPolicy(Integer.valueOf(properties.getProperty("write.maxBatchMessages", "64")),
+                    Integer.valueOf(properties.getProperty("write.maxBatchBytes", "65536")),
+                    Long.valueOf(properties.getProperty("write.maxDelayUs", "0")));
+            this.fanoutStats = new FanoutStats(Boolean.valueOf(properties.getProperty("stats.allocation", "false")));
+            this.heartbeats = new Heartbeats(Long.valueOf(properties.getProperty("heartbeat.intervalMs", "30000")),
+                    Long.valueOf(properties.getProperty("heartbeat.timeoutMs", "10000")),
+                    Long.valueOf(properties.getProperty("heartbeat.tickMs", "100")),
+                    Integer.valueOf(properties.getProperty("heartbeat.wheelSize", "512")));
+            this.metrics = new ServerMetrics(registry, directory.getConnections(), bufferPool, heartbeats,
+                    Integer.valueOf(properties.getProperty("metrics.topN", "10")));
+            this.adminToken = properties.getProperty("admin.token", "");
+            this.admission = new AdmissionControl(
+                    Integer.valueOf(properties.getProperty("admission.maxConnections", "0")),
+                    Double.valueOf(properties.getProperty("admission.acceptRate", "0")),
+                    Double.valueOf(properties.getProperty("admission.acceptBurst", "100")),
+                    Long.valueOf(properties.getProperty("admission.retryAfterMs", "1000")));
+            this.sessions = new SessionManager(this, Long.valueOf(properties.getProperty("session.graceMs", "30000")));
+            this.maxFrameLength = Integer.valueOf(properties.getProperty("frame.max",
+                    String.valueOf(FrameCodec.DEFAULT_MAX_FRAME_LENGTH)));
+            String clusterNode = properties.getProperty("cluster.node", "").trim();
+            if (!"".equals(clusterNode)) {
+                this.cluster = new ClusterNode(this, clusterNode, properties.getProperty("cluster.nodes", ""),
+                        Integer.valueOf(properties.getProperty("cluster.linkQueue", "65536")),
+                        Long.valueOf(properties.getProperty("cluster.requestTimeoutMs", "3000")));
+            }
+            if (Boolean.valueOf(properties.getProperty("log.enabled", "false"))) {
+                openMessageLog(properties);
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * 读取 {prefix}.perSec 与 {prefix}.burst 两项限流配置
+     */
+    private static RateLimit rateLimit(Properties properties, String prefix) {
+        return new RateLimit(Double.valueOf(properties.getProperty(prefix + ".perSec", "0")),
+                Double.valueOf(properties.getProperty(prefix + ".burst", "10")));
+    }
+
+    /**
+     * asyncMode为true时按先进先出执行提交的任务，用于房间actor的调度；分发的分区任务按后进先出窃取
+     */
+    private static ForkJoinPool newPool(int parallelism, final String namePrefix) {
+        return new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName(namePrefix + thread.getPoolIndex());
+                return thread;
+            }
+        }, null, false);
+    }
+
+    /**
+     * 房间actor的调度线程池，所有线程共用一个先进先出的队列。额度用完的actor重新提交后排在所有等待的房间之后，
+     * ForkJoinPool的工作线程提交的任务进入自己的本地队列并被优先执行，热门房间会一直占着这个线程
+     */
+    private static ExecutorService newRoomScheduler(int threads) {
+        final AtomicInteger index = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "room-actor-" + index.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * 打开消息日志，需要时先从日志中恢复每个房间最近的消息
+     */
+    private void openMessageLog(Properties properties) throws IOException {
+        File dir = new File(properties.getProperty("log.dir", "data/log"));
+        if (Boolean.valueOf(properties.getProperty("log.restoreHistory", "false"))) {
+            restoreHistory(dir, Integer.valueOf(properties.getProperty("history.capacity", "100")));
+        }
+
+        messageLog = new MessageLog(dir,
+                Long.valueOf(properties.getProperty("log.segmentBytes", "67108864")),
+                Long.valueOf(properties.getProperty("log.retentionBytes", "1073741824")),
+                Long.valueOf(properties.getProperty("log.retentionHours", "168")) * 3600 * 1000,
+                Boolean.valueOf(properties.getProperty("log.fsync", "true")),
+                Integer.valueOf(properties.getProperty("log.queueSize", "65536")),
+                Integer.valueOf(properties.getProperty("log.flushBatch", "1024")),
+                Long.valueOf(properties.getProperty("log.flushIntervalMs", "10")));
+        messageLog.start();
+    }
+
+    private void restoreHistory(File dir, final int capacity) throws IOException {
+        if (capacity <= 0 || !dir.isDirectory()) {
+            return;
+        }
+
+        final Map<String, ArrayDeque<ChatMsg>> recent = new HashMap<String, ArrayDeque<ChatMsg>>();
+        long records = new LogReader(dir).read(new LogRecordHandler() {
+            @Override
+            public void onRecord(String roomName, ChatMsg chatMsg) {
+                ArrayDeque<ChatMsg> msgs = recent.get(roomName);
+                if (msgs == null) {
+                    msgs = new ArrayDeque<ChatMsg>(capacity);
+                    recent.put(roomName, msgs);
+                }
+                if (msgs.size() == capacity) {
+                    msgs.pollFirst();
+                }
+                msgs.addLast(chatMsg);
+            }
+        });
+
+        for (Map.Entry<String, ArrayDeque<ChatMsg>> entry : recent.entrySet()) {
+            registry.seedHistory(entry.getKey(), new ArrayList<ChatMsg>(entry.getValue()));
+        }
+        logger.info("restore history of " + recent.size() + " rooms from " + records + " logged messages");
+    }
+
     private void addShutdownHook() {
         Runtime.getRuntime().addShutdownHook(new Thread() {
 
             @Override
             public void run() {
                 logger.info("Shutdown hook");
+                logger.info("fan-out stats: " + fanoutStats);
+                logger.info("buffer pool stats: " + bufferPool);
+                logger.info("metrics: " + metrics.snapshotJson());
+                metrics.close();
+                sessions.close();
+                heartbeats.close();
+                logger.info("session stats: " + sessions);
+                if (cluster != null) {
+                    cluster.close();
+                }
+                if (messageLog != null) {
+                    messageLog.close();
+                    logger.info("message log stats: " + messageLog);
+                }
                 try {
                     // todo close all socket
 
-                    if (!server.isClosed()) {
+                    if (nioServer != null) {
+                        nioServer.close();
+                    }
+                    if (server != null && !server.isClosed()) {
                         server.close();
                     }
                 } catch (IOException e) {
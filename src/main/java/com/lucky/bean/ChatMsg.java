@@ -7,6 +7,9 @@ public class ChatMsg {
     private String user;
     private String msg;
     private Date date;
+    private long seq;    // 房间内的消息序号，单调递增
+    private String room; // 所属房间，私聊消息为null
+    private String to;   // 私聊的接收者，房间消息为null
 
     public ChatMsg(String user, String msg, Date date) {
         this.user = user;
@@ -30,6 +33,30 @@ public class ChatMsg {
         this.msg = msg;
     }
 
+    public long getSeq() {
+        return seq;
+    }
+
+    public void setSeq(long seq) {
+        this.seq = seq;
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    public void setRoom(String room) {
+        this.room = room;
+    }
+
+    public String getTo() {
+        return to;
+    }
+
+    public void setTo(String to) {
+        this.to = to;
+    }
+
     public Date getDate() {
         return date;
     }
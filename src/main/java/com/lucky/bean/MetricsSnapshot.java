@@ -0,0 +1,319 @@
+package com.lucky.bean;
+
+import java.util.List;
+
+/**
+ * 服务器指标快照，管理请求与JMX返回的内容，以json格式输出
+ */
+public class MetricsSnapshot {
+
+    private long time;                 // 快照时间，毫秒
+    private long connections;          // 当前连接数
+    private long acceptedConnects;     // 累计接受的连接
+    private long rejectedConnects;     // 累计拒绝的连接
+    private long decodeErrors;         // 无法解析的帧或请求
+    private long messages;             // 累计分发的聊天消息
+    private long deliveries;           // 累计写给成员的次数
+    private long outboundBacklog;      // 所有连接待发送的帧数
+    private long outboundBacklogBytes; // 所有连接待发送的字节数
+    private long writeCalls;           // 累计写socket的次数(系统调用)
+    private long framesWritten;        // 累计写出的帧数，与writeCalls之比为平均每次合并写出的帧数
+    private double writeCallsPerSec;   // 最近一秒写socket的次数
+    private long throttledByConnection; // 累计因连接级限流被拒绝的消息
+    private long throttledByUser;       // 累计因用户级限流被拒绝的消息
+    private long throttledByRoom;       // 累计因房间级限流被拒绝的消息
+    private long pings;                 // 累计向空闲连接发送的心跳
+    private long idleClosed;            // 累计因为空闲且不响应心跳被关闭的连接
+    private Latency fanout;            // 单条消息分发耗时
+    private BufferPoolStat bufferPool; // 缓冲区池使用情况
+    private List<RoomStat> hotRooms;          // 按每秒消息数排序的房间
+    private List<ConsumerStat> slowConsumers; // 按待发送帧数排序的连接
+
+    public long getTime() {
+        return time;
+    }
+
+    public void setTime(long time) {
+        this.time = time;
+    }
+
+    public long getConnections() {
+        return connections;
+    }
+
+    public void setConnections(long connections) {
+        this.connections = connections;
+    }
+
+    public long getAcceptedConnects() {
+        return acceptedConnects;
+    }
+
+    public void setAcceptedConnects(long acceptedConnects) {
+        this.acceptedConnects = acceptedConnects;
+    }
+
+    public long getRejectedConnects() {
+        return rejectedConnects;
+    }
+
+    public void setRejectedConnects(long rejectedConnects) {
+        this.rejectedConnects = rejectedConnects;
+    }
+
+    public long getDecodeErrors() {
+        return decodeErrors;
+    }
+
+    public void setDecodeErrors(long decodeErrors) {
+        this.decodeErrors = decodeErrors;
+    }
+
+    public long getMessages() {
+        return messages;
+    }
+
+    public void setMessages(long messages) {
+        this.messages = messages;
+    }
+
+    public long getDeliveries() {
+        return deliveries;
+    }
+
+    public void setDeliveries(long deliveries) {
+        this.deliveries = deliveries;
+    }
+
+    public long getOutboundBacklog() {
+        return outboundBacklog;
+    }
+
+    public void setOutboundBacklog(long outboundBacklog) {
+        this.outboundBacklog = outboundBacklog;
+    }
+
+    public long getOutboundBacklogBytes() {
+        return outboundBacklogBytes;
+    }
+
+    public void setOutboundBacklogBytes(long outboundBacklogBytes) {
+        this.outboundBacklogBytes = outboundBacklogBytes;
+    }
+
+    public long getWriteCalls() {
+        return writeCalls;
+    }
+
+    public void setWriteCalls(long writeCalls) {
+        this.writeCalls = writeCalls;
+    }
+
+    public long getFramesWritten() {
+        return framesWritten;
+    }
+
+    public void setFramesWritten(long framesWritten) {
+        this.framesWritten = framesWritten;
+    }
+
+    public double getWriteCallsPerSec() {
+        return writeCallsPerSec;
+    }
+
+    public void setWriteCallsPerSec(double writeCallsPerSec) {
+        this.writeCallsPerSec = writeCallsPerSec;
+    }
+
+    public long getThrottledByConnection() {
+        return throttledByConnection;
+    }
+
+    public void setThrottledByConnection(long throttledByConnection) {
+        this.throttledByConnection = throttledByConnection;
+    }
+
+    public long getThrottledByUser() {
+        return throttledByUser;
+    }
+
+    public void setThrottledByUser(long throttledByUser) {
+        this.throttledByUser = throttledByUser;
+    }
+
+    public long getThrottledByRoom() {
+        return throttledByRoom;
+    }
+
+    public void setThrottledByRoom(long throttledByRoom) {
+        this.throttledByRoom = throttledByRoom;
+    }
+
+    public long getPings() {
+        return pings;
+    }
+
+    public void setPings(long pings) {
+        this.pings = pings;
+    }
+
+    public long getIdleClosed() {
+        return idleClosed;
+    }
+
+    public void setIdleClosed(long idleClosed) {
+        this.idleClosed = idleClosed;
+    }
+
+    public Latency getFanout() {
+        return fanout;
+    }
+
+    public void setFanout(Latency fanout) {
+        this.fanout = fanout;
+    }
+
+    public BufferPoolStat getBufferPool() {
+        return bufferPool;
+    }
+
+    public void setBufferPool(BufferPoolStat bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    public List<RoomStat> getHotRooms() {
+        return hotRooms;
+    }
+
+    public void setHotRooms(List<RoomStat> hotRooms) {
+        this.hotRooms = hotRooms;
+    }
+
+    public List<ConsumerStat> getSlowConsumers() {
+        return slowConsumers;
+    }
+
+    public void setSlowConsumers(List<ConsumerStat> slowConsumers) {
+        this.slowConsumers = slowConsumers;
+    }
+
+    /**
+     * 延迟分布，单位微秒
+     */
+    public static class Latency {
+
+        private long count;
+        private long mean;
+        private long p50;
+        private long p99;
+        private long p999;
+        private long max;
+
+        public Latency(long count, long mean, long p50, long p99, long p999, long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.p999 = p999;
+            this.max = max;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getP999() {
+            return p999;
+        }
+    }
+
+    public static class BufferPoolStat {
+
+        private boolean direct;
+        private long leases;
+        private long hits;
+        private long unpooled;
+        private long leased;
+        private long leasedBytes;
+        private long pooledBytes;
+        private long createdBytes;
+        private double utilization;
+        private long leaks;
+
+        public BufferPoolStat(boolean direct, long leases, long hits, long unpooled, long leased, long leasedBytes,
+                              long pooledBytes, long createdBytes, double utilization, long leaks) {
+            this.direct = direct;
+            this.leases = leases;
+            this.hits = hits;
+            this.unpooled = unpooled;
+            this.leased = leased;
+            this.leasedBytes = leasedBytes;
+            this.pooledBytes = pooledBytes;
+            this.createdBytes = createdBytes;
+            this.utilization = utilization;
+            this.leaks = leaks;
+        }
+
+        public double getUtilization() {
+            return utilization;
+        }
+    }
+
+    public static class RoomStat {
+
+        private String name;
+        private int members;
+        private long messages;
+        private double messagesPerSec;
+        private double bytesPerSec;
+
+        public RoomStat(String name, int members, long messages, double messagesPerSec, double bytesPerSec) {
+            this.name = name;
+            this.members = members;
+            this.messages = messages;
+            this.messagesPerSec = messagesPerSec;
+            this.bytesPerSec = bytesPerSec;
+        }
+
+        public double getMessagesPerSec() {
+            return messagesPerSec;
+        }
+
+        @Override
+        public String toString() {
+            return name + " members=" + members + " msg/s=" + Math.round(messagesPerSec)
+                    + " bytes/s=" + Math.round(bytesPerSec) + " total=" + messages;
+        }
+    }
+
+    public static class ConsumerStat {
+
+        private String user;
+        private String room;
+        private int backlog;
+        private long backlogBytes;
+        private long dropped;
+
+        public ConsumerStat(String user, String room, int backlog, long backlogBytes, long dropped) {
+            this.user = user;
+            this.room = room;
+            this.backlog = backlog;
+            this.backlogBytes = backlogBytes;
+            this.dropped = dropped;
+        }
+
+        public int getBacklog() {
+            return backlog;
+        }
+
+        @Override
+        public String toString() {
+            return user + " room=" + room + " backlog=" + backlog + " backlogBytes=" + backlogBytes
+                    + " dropped=" + dropped;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.lucky.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 所有连接共享的缓冲区池。容量按规格向上取整(256B到64KB，每级4倍)，每个规格一个有界的空闲队列，
+ * 超过最大规格的直接分配、释放后不回收。分为堆内与堆外两个区：读缓冲区总是在堆内(解码器直接访问数组)，
+ * 广播帧可以配置为堆外，NIO写出时JDK不需要再拷贝到临时的堆外缓冲区。
+ * 空闲队列基于数组，申请与归还不产生额外对象；开启泄漏检测时记录每次申请的调用栈，
+ * 缓冲区未释放就被回收时输出日志
+ */
+public class BufferPool {
+
+    private static final int[] SIZE_CLASSES = {256, 1024, 4096, 16 * 1024, 64 * 1024};
+
+    private final boolean direct;  // 帧缓冲区是否使用堆外内存
+    private final List<ArrayBlockingQueue<ByteBuffer>> heapFree;    // 按规格下标
+    private final List<ArrayBlockingQueue<ByteBuffer>> directFree;  // 按规格下标，不使用堆外内存时为null
+    private final LeakDetector leakDetector;  // 未开启泄漏检测时为null
+    private final LongAdder leases = new LongAdder();     // 累计申请次数
+    private final LongAdder hits = new LongAdder();       // 从空闲队列复用的次数
+    private final LongAdder unpooled = new LongAdder();   // 超过最大规格、直接分配的次数
+    private final AtomicLong leased = new AtomicLong();       // 当前借出的缓冲区数
+    private final AtomicLong leasedBytes = new AtomicLong();  // 当前借出的字节数
+    private final AtomicLong pooledBytes = new AtomicLong();  // 空闲队列中的字节数
+    private final AtomicLong createdBytes = new AtomicLong(); // 累计新分配的字节数
+
+    /**
+     * @param direct         帧缓冲区是否使用堆外内存
+     * @param maxPooledBytes 每个区空闲队列最多保留的字节数，平均分给各个规格
+     * @param leakDetection  是否开启泄漏检测，会记录调用栈，只在调试时使用
+     */
+    public BufferPool(boolean direct, long maxPooledBytes, boolean leakDetection) {
+        this.direct = direct;
+        this.heapFree = new ArrayList<ArrayBlockingQueue<ByteBuffer>>(SIZE_CLASSES.length);
+        this.directFree = direct ? new ArrayList<ArrayBlockingQueue<ByteBuffer>>(SIZE_CLASSES.length) : null;
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            int capacity = (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+                    maxPooledBytes / SIZE_CLASSES.length / SIZE_CLASSES[i]));
+            heapFree.add(new ArrayBlockingQueue<ByteBuffer>(capacity));
+            if (direct) {
+                directFree.add(new ArrayBlockingQueue<ByteBuffer>(capacity));
+            }
+        }
+        this.leakDetector = leakDetection ? new LeakDetector(this) : null;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * 申请写出用的帧缓冲区，按配置在堆内或堆外
+     */
+    public PooledBuffer allocate(int capacity) {
+        return lease(capacity, direct);
+    }
+
+    /**
+     * 申请堆内缓冲区，可以直接访问底层数组
+     */
+    public PooledBuffer allocateHeap(int capacity) {
+        return lease(capacity, false);
+    }
+
+    /**
+     * 使用率: 借出的字节数占池中全部字节数(借出 + 空闲)的比例
+     */
+    public double utilization() {
+        long inUse = leasedBytes.get();
+        long total = inUse + pooledBytes.get();
+        return total == 0 ? 0 : (double) inUse / total;
+    }
+
+    public long getLeases() {
+        return leases.sum();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getUnpooled() {
+        return unpooled.sum();
+    }
+
+    public long getLeased() {
+        return leased.get();
+    }
+
+    public long getLeasedBytes() {
+        return leasedBytes.get();
+    }
+
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    public long getCreatedBytes() {
+        return createdBytes.get();
+    }
+
+    public long getLeaks() {
+        return leakDetector == null ? 0 : leakDetector.getLeaks();
+    }
+
+    @Override
+    public String toString() {
+        return "direct=" + direct + ", leases=" + getLeases() + ", hits=" + getHits() + ", unpooled=" + getUnpooled()
+                + ", leased=" + getLeased() + ", leasedBytes=" + getLeasedBytes() + ", pooledBytes=" + getPooledBytes()
+                + ", createdBytes=" + getCreatedBytes() + ", utilization=" + Math.round(utilization() * 100) + "%"
+                + ", leaks=" + getLeaks();
+    }
+
+    /**
+     * 引用计数归零时由PooledBuffer调用，放回对应规格的空闲队列，队列已满时交给GC
+     */
+    void recycle(PooledBuffer buffer) {
+        ByteBuffer byteBuffer = buffer.buffer();
+        leased.decrementAndGet();
+        leasedBytes.addAndGet(-byteBuffer.capacity());
+        if (leakDetector != null) {
+            leakDetector.untrack(buffer);
+        }
+
+        int sizeClass = buffer.sizeClass();
+        if (sizeClass < 0) {
+            return;
+        }
+
+        ArrayBlockingQueue<ByteBuffer> free = freeList(sizeClass, byteBuffer.isDirect());
+        byteBuffer.clear();
+        if (free.offer(byteBuffer)) {
+            pooledBytes.addAndGet(byteBuffer.capacity());
+        }
+    }
+
+    /**
+     * 泄漏检测发现未释放就被回收的缓冲区，其内存已经交给GC，只修正借出统计
+     */
+    void leaked(int capacity) {
+        leased.decrementAndGet();
+        leasedBytes.addAndGet(-capacity);
+    }
+
+    private PooledBuffer lease(int capacity, boolean direct) {
+        leases.increment();
+        int sizeClass = sizeClass(capacity);
+        ByteBuffer byteBuffer = null;
+        if (sizeClass < 0) {
+            unpooled.increment();
+            byteBuffer = newBuffer(capacity, direct);
+        } else {
+            byteBuffer = freeList(sizeClass, direct).poll();
+            if (byteBuffer != null) {
+                hits.increment();
+                pooledBytes.addAndGet(-byteBuffer.capacity());
+            } else {
+                byteBuffer = newBuffer(SIZE_CLASSES[sizeClass], direct);
+            }
+        }
+
+        leased.incrementAndGet();
+        leasedBytes.addAndGet(byteBuffer.capacity());
+        PooledBuffer buffer = new PooledBuffer(this, byteBuffer, sizeClass);
+        if (leakDetector != null) {
+            leakDetector.track(buffer);
+        }
+
+        return buffer;
+    }
+
+    private ByteBuffer newBuffer(int capacity, boolean direct) {
+        createdBytes.addAndGet(capacity);
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private ArrayBlockingQueue<ByteBuffer> freeList(int sizeClass, boolean direct) {
+        return direct ? directFree.get(sizeClass) : heapFree.get(sizeClass);
+    }
+
+    /**
+     * 容量对应的规格下标，超过最大规格时返回-1
+     */
+    private static int sizeClass(int capacity) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (capacity <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+}
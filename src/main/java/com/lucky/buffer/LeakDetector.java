@@ -0,0 +1,76 @@
+package com.lucky.buffer;
+
+import org.apache.log4j.Logger;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 缓冲区泄漏检测，只在调试时开启。每次申请记录调用栈，用弱引用跟踪缓冲区，
+ * 缓冲区在引用计数归零之前就被GC回收时，说明有持有者忘记release，输出申请时的调用栈。
+ * 检查在每次申请时顺带进行，不需要单独的线程
+ */
+class LeakDetector {
+
+    private static final Logger logger = Logger.getLogger(LeakDetector.class);
+
+    private final BufferPool pool;
+    private final ReferenceQueue<PooledBuffer> queue = new ReferenceQueue<PooledBuffer>();
+    private final Set<Tracker> live = ConcurrentHashMap.newKeySet();  // 还没有释放的缓冲区
+    private final LongAdder leaks = new LongAdder();
+
+    LeakDetector(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    void track(PooledBuffer buffer) {
+        poll();
+        Tracker tracker = new Tracker(buffer, queue);
+        buffer.tracker = tracker;
+        live.add(tracker);
+    }
+
+    void untrack(PooledBuffer buffer) {
+        Tracker tracker = buffer.tracker;
+        if (tracker != null) {
+            live.remove(tracker);
+            tracker.clear();
+        }
+    }
+
+    long getLeaks() {
+        poll();
+        return leaks.sum();
+    }
+
+    private void poll() {
+        Reference<? extends PooledBuffer> ref;
+        while ((ref = queue.poll()) != null) {
+            Tracker tracker = (Tracker) ref;
+            if (!live.remove(tracker)) {
+                continue;
+            }
+
+            leaks.increment();
+            pool.leaked(tracker.capacity);
+            logger.info("buffer leak detected, capacity: " + tracker.capacity
+                    + ", it was garbage collected before release, allocated at:", tracker.site);
+        }
+    }
+
+    static final class Tracker extends WeakReference<PooledBuffer> {
+
+        private final int capacity;
+        private final Throwable site;  // 申请时的调用栈
+
+        private Tracker(PooledBuffer buffer, ReferenceQueue<PooledBuffer> queue) {
+            super(buffer, queue);
+            this.capacity = buffer.buffer().capacity();
+            this.site = new Throwable("buffer leased here");
+        }
+    }
+}
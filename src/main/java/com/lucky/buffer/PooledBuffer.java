@@ -0,0 +1,68 @@
+package com.lucky.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * 从BufferPool借出的缓冲区，带引用计数。申请时计数为1，
+ * 每个额外的持有者(如广播帧所在的各个待发送队列)先retain，用完后release，归零时放回池中。
+ * 归零后不能再访问，重复释放会抛出IllegalStateException
+ */
+public final class PooledBuffer {
+
+    private static final AtomicIntegerFieldUpdater<PooledBuffer> REF_CNT =
+            AtomicIntegerFieldUpdater.newUpdater(PooledBuffer.class, "refCnt");
+
+    private final BufferPool pool;
+    private final ByteBuffer buffer;
+    private final int sizeClass;  // 所属规格，-1表示不回收
+    private volatile int refCnt = 1;
+    LeakDetector.Tracker tracker;  // 泄漏检测的跟踪记录，未开启时为null
+
+    PooledBuffer(BufferPool pool, ByteBuffer buffer, int sizeClass) {
+        this.pool = pool;
+        this.buffer = buffer;
+        this.sizeClass = sizeClass;
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public int refCnt() {
+        return refCnt;
+    }
+
+    public PooledBuffer retain() {
+        while (true) {
+            int current = refCnt;
+            if (current <= 0) {
+                throw new IllegalStateException("buffer already released");
+            }
+            if (REF_CNT.compareAndSet(this, current, current + 1)) {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * 释放一个引用
+     * @return true表示计数归零，缓冲区已归还
+     */
+    public boolean release() {
+        int current = REF_CNT.decrementAndGet(this);
+        if (current > 0) {
+            return false;
+        }
+        if (current < 0) {
+            throw new IllegalStateException("buffer released twice");
+        }
+
+        pool.recycle(this);
+        return true;
+    }
+
+    int sizeClass() {
+        return sizeClass;
+    }
+}
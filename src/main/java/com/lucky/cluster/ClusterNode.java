@@ -0,0 +1,515 @@
+package com.lucky.cluster;
+
+import com.lucky.Server;
+import com.lucky.bean.ChatMsg;
+import com.lucky.bean.Room;
+import com.lucky.codec.FrameCodec;
+import com.lucky.codec.MsgCodecs;
+import com.lucky.codec.SharedFrame;
+import com.lucky.constant.ErrorMsg;
+import com.lucky.constant.MsgType;
+import com.lucky.constant.ResponseStatus;
+import com.lucky.net.Connection;
+import com.lucky.room.ChatRoom;
+import com.lucky.room.RoomQuery;
+import com.lucky.room.RoomRegistry;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 集群中的一个节点。每个房间按一致性哈希由一个节点拥有，拥有者保存房间是否存在、总人数、序号与历史，
+ * 其他节点上的成员加入时，本地只保留一个只含本节点成员的副本房间，拥有者按用户名记录各节点的成员，
+ * 重复的加入与退出不会改变人数。
+ * 聊天消息先发给拥有者分配序号，拥有者分发给本节点成员，并对每个有成员的节点只转发一次完整的帧，
+ * 由该节点再分发给自己的成员。房间列表由各节点拥有的房间汇总而成
+ */
+public class ClusterNode {
+
+    private static final Logger logger = Logger.getLogger(ClusterNode.class);
+
+    private final Server server;
+    private final String nodeId;
+    private final int port;  // 接收其他节点连接的端口
+    private final ClusterRing ring;
+    private final Map<String, PeerLink> links = new LinkedHashMap<String, PeerLink>();
+    private final long requestTimeoutMillis;
+    private final int maxFrameLength;
+    private final AtomicLong requestIds = new AtomicLong(0);
+    private final ConcurrentHashMap<Long, PendingRequest> pending = new ConcurrentHashMap<Long, PendingRequest>();
+    private ScheduledExecutorService timer;
+    private ServerSocket acceptor;
+    private volatile boolean alive;
+
+    /**
+     * @param nodes 所有节点，格式为 id=host:port,id=host:port，端口为节点间连接使用的端口
+     */
+    public ClusterNode(Server server, String nodeId, String nodes, int linkQueueSize, long requestTimeoutMillis) {
+        this.server = server;
+        this.nodeId = nodeId;
+        this.requestTimeoutMillis = requestTimeoutMillis;
+        this.maxFrameLength = server.getMaxFrameLength() * 2;
+
+        int selfPort = -1;
+        List<String> nodeIds = new ArrayList<String>();
+        for (String node : nodes.split(",")) {
+            node = node.trim();
+            if ("".equals(node)) {
+                continue;
+            }
+
+            int eq = node.indexOf('=');
+            int colon = node.lastIndexOf(':');
+            if (eq <= 0 || colon < eq) {
+                throw new IllegalArgumentException("invalid cluster node: " + node + ", expected id=host:port");
+            }
+
+            String id = node.substring(0, eq).trim();
+            String host = node.substring(eq + 1, colon).trim();
+            int nodePort = Integer.valueOf(node.substring(colon + 1).trim());
+            nodeIds.add(id);
+            if (id.equals(nodeId)) {
+                selfPort = nodePort;
+            } else {
+                links.put(id, new PeerLink(this, id, host, nodePort, linkQueueSize));
+            }
+        }
+
+        if (selfPort < 0) {
+            throw new IllegalArgumentException("cluster.node " + nodeId + " is not in cluster.nodes");
+        }
+        this.port = selfPort;
+        this.ring = new ClusterRing(nodeIds);
+    }
+
+    public void start() throws IOException {
+        alive = true;
+        acceptor = new ServerSocket();
+        acceptor.bind(new InetSocketAddress(port));
+        startDaemon("cluster-acceptor", new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        });
+
+        for (PeerLink link : links.values()) {
+            link.start();
+        }
+
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "cluster-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                expireRequests();
+            }
+        }, 200, 200, TimeUnit.MILLISECONDS);
+
+        logger.info("cluster node " + nodeId + " listening port: " + port + ", peers: " + links.keySet());
+    }
+
+    public void close() {
+        alive = false;
+        for (PeerLink link : links.values()) {
+            link.close();
+        }
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+        try {
+            if (acceptor != null) {
+                acceptor.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * 房间是否由本节点拥有
+     */
+    public boolean isLocal(String roomName) {
+        return nodeId.equals(ring.ownerOf(roomName));
+    }
+
+    /**
+     * 在其他节点拥有的房间中创建或加入，拥有者确认后再加入本地副本并回复客户端
+     */
+    public void enterRoom(final Connection conn, final char type, final String roomName) {
+        PeerLink link = links.get(ring.ownerOf(roomName));
+        if (!link.isConnected()) {
+            conn.sendMsgWithType(type, ResponseStatus.FAIL, ErrorMsg.NODE_UNAVAILABLE);
+            return;
+        }
+
+        final String member = server.getUserName(conn);
+        long requestId = requestIds.incrementAndGet();
+        pending.put(requestId, new PendingRequest(link.getPeerId(), deadline()) {
+            @Override
+            void onResponse(boolean ok, String error, byte[] data) {
+                if (!ok) {
+                    conn.sendMsgWithType(type, ResponseStatus.FAIL, error);
+                    return;
+                }
+
+                server.joinReplica(conn, roomName, new Runnable() {
+                    @Override
+                    public void run() {
+                        conn.sendMsgWithType(type, ResponseStatus.OK, roomName);
+                    }
+                });
+                conn.setChatRoom(roomName);
+                if (!server.isConnected(conn)) {  // 等待响应期间连接已断开
+                    try {
+                        server.removeSocketFromRoom(conn, member, roomName);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        });
+
+        byte requestType = type == MsgType.CREATE_ROOM ? ClusterProtocol.CREATE : ClusterProtocol.JOIN;
+        link.send(ClusterProtocol.request(requestType, requestId, roomName, member));
+    }
+
+    /**
+     * 本节点的一个成员退出了其他节点拥有的房间，member为加入时使用的用户名
+     */
+    public void leaveRoom(String roomName, String member) {
+        links.get(ring.ownerOf(roomName)).send(ClusterProtocol.leave(roomName, member));
+    }
+
+    /**
+     * 把聊天消息交给拥有该房间的节点分配序号并分发，到该节点的连接不可用时抛出异常，由调用方回复发送者
+     */
+    public void forwardChat(String roomName, ChatMsg chatMsg) throws Exception {
+        PeerLink link = links.get(ring.ownerOf(roomName));
+        if (!link.isConnected()
+                || !link.send(ClusterProtocol.chat(roomName, MsgCodecs.BINARY.encodeChatMsg(chatMsg)))) {
+            throw new Exception(ErrorMsg.NODE_UNAVAILABLE);
+        }
+    }
+
+    /**
+     * 汇总所有节点拥有的房间后按查询条件分页回复客户端，超时未响应的节点不计入
+     */
+    public void listRooms(Connection conn, RoomQuery query) {
+        List<PeerLink> targets = new ArrayList<PeerLink>();
+        for (PeerLink link : links.values()) {
+            if (link.isConnected()) {
+                targets.add(link);
+            }
+        }
+
+        final RoomListAggregator aggregator = new RoomListAggregator(conn, query, targets.size(), server.getRoomList());
+        for (PeerLink link : targets) {
+            long requestId = requestIds.incrementAndGet();
+            pending.put(requestId, new PendingRequest(link.getPeerId(), deadline()) {
+                @Override
+                void onResponse(boolean ok, String error, byte[] data) {
+                    aggregator.add(ok ? MsgCodecs.BINARY.decodeRooms(data, 0, data.length) : null);
+                }
+            });
+            link.send(ClusterProtocol.list(requestId));
+        }
+        if (targets.isEmpty()) {
+            aggregator.reply();
+        }
+    }
+
+    /**
+     * 到某个节点的连接建立(或重建)后，上报本节点在它拥有的各房间中的成员
+     */
+    void onLinkUp(PeerLink link) {
+        for (ChatRoom room : server.getRegistry().getRooms()) {
+            if (link.getPeerId().equals(ring.ownerOf(room.getName()))) {
+                List<String> members = new ArrayList<String>();
+                for (Connection member : room.getMembers()) {
+                    members.add(server.getUserName(member));
+                }
+                link.send(ClusterProtocol.sync(room.getName(), members));
+            }
+        }
+    }
+
+    /**
+     * 某个节点断开后，从本节点拥有的房间中移除它的所有成员，发给它的请求不再等待超时
+     */
+    private void onPeerDown(String peerId) {
+        logger.info("cluster node " + peerId + " disconnected");
+        links.get(peerId).reset();
+        failRequests(peerId, 0);
+        RoomRegistry registry = server.getRegistry();
+        for (ChatRoom room : registry.getRooms()) {
+            if (isLocal(room.getName())) {
+                registry.syncRemote(new RemoteMember(peerId, room.getName(), null), room.getName(),
+                        Collections.<String>emptyList());
+            }
+        }
+    }
+
+    private void onPeerFrame(String peerId, DataInputStream in, byte type) throws IOException {
+        PeerLink link = links.get(peerId);
+        RoomRegistry registry = server.getRegistry();
+        String roomName;
+        long requestId;
+        switch (type) {
+            case ClusterProtocol.CREATE:
+            case ClusterProtocol.JOIN:
+                requestId = in.readLong();
+                roomName = in.readUTF();
+                String member = in.readUTF();
+                try {
+                    RemoteMember node = new RemoteMember(peerId, roomName, link);
+                    if (type == ClusterProtocol.CREATE) {
+                        registry.createRemote(node, member, roomName);
+                    } else {
+                        registry.joinRemote(node, member, roomName);
+                    }
+                    link.send(ClusterProtocol.response(requestId, true, null));
+                } catch (Exception e) {
+                    link.send(ClusterProtocol.response(requestId, false, e.getMessage()));
+                }
+                break;
+            case ClusterProtocol.LEAVE:
+                roomName = in.readUTF();
+                registry.leaveRemote(new RemoteMember(peerId, roomName, link), in.readUTF(), roomName);
+                break;
+            case ClusterProtocol.SYNC:
+                roomName = in.readUTF();
+                int count = in.readInt();
+                List<String> members = new ArrayList<String>(count);
+                for (int i = 0; i < count; i++) {
+                    members.add(in.readUTF());
+                }
+                registry.syncRemote(new RemoteMember(peerId, roomName, link), roomName, members);
+                break;
+            case ClusterProtocol.CHAT:
+                roomName = in.readUTF();
+                byte[] body = readBytes(in);
+                try {
+                    server.deliverChatMsg(roomName, MsgCodecs.BINARY.decodeChatMsg(body, 0, body.length));
+                } catch (Exception e) {
+                    logger.info("drop chat message from " + peerId + " to " + roomName + ": " + e.getMessage());
+                }
+                break;
+            case ClusterProtocol.RELAY:
+                roomName = in.readUTF();
+                byte[] frame = readBytes(in);
+                int offset = FrameCodec.HEADER_LENGTH + 2;
+                server.deliverReplica(roomName, MsgCodecs.BINARY.decodeChatMsg(frame, offset, frame.length - offset));
+                break;
+            case ClusterProtocol.LIST:
+                requestId = in.readLong();
+                link.send(ClusterProtocol.listResponse(requestId, MsgCodecs.BINARY.encodeRooms(server.getRoomList())));
+                break;
+            case ClusterProtocol.RESPONSE:
+                requestId = in.readLong();
+                boolean ok = in.readBoolean();
+                complete(requestId, ok, in.readUTF(), null);
+                break;
+            case ClusterProtocol.LIST_RESPONSE:
+                requestId = in.readLong();
+                complete(requestId, true, null, readBytes(in));
+                break;
+            default:
+                logger.info("unknown cluster message type " + type + " from " + peerId);
+        }
+    }
+
+    private void acceptLoop() {
+        while (alive) {
+            try {
+                final Socket socket = acceptor.accept();
+                socket.setTcpNoDelay(true);
+                startDaemon("cluster-peer-reader", new Runnable() {
+                    @Override
+                    public void run() {
+                        readLoop(socket);
+                    }
+                });
+            } catch (IOException e) {
+                if (alive) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 读取其他节点发来的消息，第一条必须是HELLO，同一个连接上的消息按顺序处理
+     */
+    private void readLoop(Socket socket) {
+        String peerId = null;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            while (alive) {
+                int length = in.readInt();
+                if (length <= 0 || length > maxFrameLength) {
+                    throw new IOException(ErrorMsg.FRAME_TOO_LARGE + ": " + length);
+                }
+
+                byte[] body = new byte[length];
+                in.readFully(body);
+                DataInputStream msg = new DataInputStream(new ByteArrayInputStream(body));
+                byte type = msg.readByte();
+                if (peerId == null) {
+                    if (type != ClusterProtocol.HELLO) {
+                        throw new IOException("expected hello from cluster peer");
+                    }
+                    peerId = msg.readUTF();
+                    if (!links.containsKey(peerId)) {
+                        throw new IOException("unknown cluster node " + peerId);
+                    }
+                    logger.info("cluster node " + peerId + " connected");
+                    continue;
+                }
+
+                onPeerFrame(peerId, msg, type);
+            }
+        } catch (EOFException e) {
+            // 对方关闭了连接
+        } catch (IOException e) {
+            logger.info("cluster link from " + (peerId == null ? socket.getRemoteSocketAddress() : peerId)
+                    + " failed: " + e.getMessage());
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (peerId != null && alive) {
+                onPeerDown(peerId);
+            }
+        }
+    }
+
+    private void complete(long requestId, boolean ok, String error, byte[] data) {
+        PendingRequest request = pending.remove(requestId);
+        if (request != null) {
+            request.onResponse(ok, error, data);
+        }
+    }
+
+    private void expireRequests() {
+        failRequests(null, System.currentTimeMillis());
+    }
+
+    /**
+     * 以失败结束发给指定节点(为null时不限节点)、且在now之前到期(now为0时不限时间)的请求
+     */
+    private void failRequests(String peerId, long now) {
+        Iterator<Map.Entry<Long, PendingRequest>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, PendingRequest> entry = it.next();
+            PendingRequest request = entry.getValue();
+            boolean matched = (peerId == null || peerId.equals(request.peerId)) && (now == 0 || request.deadline <= now);
+            if (matched && pending.remove(entry.getKey()) != null) {
+                entry.getValue().onResponse(false, ErrorMsg.NODE_UNAVAILABLE, null);
+            }
+        }
+    }
+
+    private long deadline() {
+        return System.currentTimeMillis() + requestTimeoutMillis;
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void startDaemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 发给其他节点、等待响应的请求
+     */
+    private abstract static class PendingRequest {
+
+        private final String peerId;
+        private final long deadline;
+
+        PendingRequest(String peerId, long deadline) {
+            this.peerId = peerId;
+            this.deadline = deadline;
+        }
+
+        /**
+         * 收到响应或超时(ok为false)时调用，只会调用一次
+         */
+        abstract void onResponse(boolean ok, String error, byte[] data);
+    }
+
+    /**
+     * 等待所有节点返回各自拥有的房间后合并，回复给发起请求的客户端
+     */
+    private static final class RoomListAggregator {
+
+        private final Connection conn;
+        private final RoomQuery query;
+        private final AtomicInteger remaining;
+        private final List<Room> rooms;
+
+        private RoomListAggregator(Connection conn, RoomQuery query, int peers, List<Room> localRooms) {
+            this.conn = conn;
+            this.query = query;
+            this.remaining = new AtomicInteger(peers);
+            this.rooms = Collections.synchronizedList(new ArrayList<Room>(localRooms));
+        }
+
+        private void add(List<Room> peerRooms) {
+            if (peerRooms != null) {
+                rooms.addAll(peerRooms);
+            }
+            if (remaining.decrementAndGet() == 0) {
+                reply();
+            }
+        }
+
+        private void reply() {
+            List<Room> copy;
+            synchronized (rooms) {
+                copy = new ArrayList<Room>(rooms);
+            }
+            conn.sendFrame(SharedFrame.of(MsgType.LIST_ROOM, ResponseStatus.OK,
+                    conn.getCodec().encodeRooms(query.apply(copy))));
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.lucky.cluster;
+
+import com.lucky.codec.SharedFrame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * 节点间连接上的消息格式: 4字节大端长度头 + 1字节类型 + 各类型的字段，
+ * 字符串使用DataOutput.writeUTF，聊天消息使用二进制编码
+ */
+public final class ClusterProtocol {
+
+    static final byte HELLO = 1;         // nodeId，连接建立后的第一条消息
+    static final byte CREATE = 2;        // requestId room member
+    static final byte JOIN = 3;          // requestId room member
+    static final byte LEAVE = 4;         // room member
+    static final byte SYNC = 5;          // room count member...，覆盖发送方在该房间的成员
+    static final byte CHAT = 6;          // room 二进制编码的聊天消息，发给拥有房间的节点
+    static final byte RELAY = 7;         // room 完整的客户端帧，拥有房间的节点分发给其他节点
+    static final byte LIST = 8;          // requestId
+    static final byte RESPONSE = 9;      // requestId ok(boolean) error
+    static final byte LIST_RESPONSE = 10; // requestId 二进制编码的房间列表
+
+    private ClusterProtocol() {
+    }
+
+    static byte[] hello(String nodeId) {
+        Writer writer = new Writer(HELLO);
+        writer.writeUTF(nodeId);
+        return writer.toFrame();
+    }
+
+    static byte[] request(byte type, long requestId, String room, String member) {
+        Writer writer = new Writer(type);
+        writer.writeLong(requestId);
+        writer.writeUTF(room);
+        writer.writeUTF(member);
+        return writer.toFrame();
+    }
+
+    static byte[] leave(String room, String member) {
+        Writer writer = new Writer(LEAVE);
+        writer.writeUTF(room);
+        writer.writeUTF(member);
+        return writer.toFrame();
+    }
+
+    static byte[] sync(String room, Collection<String> members) {
+        Writer writer = new Writer(SYNC);
+        writer.writeUTF(room);
+        writer.writeInt(members.size());
+        for (String member : members) {
+            writer.writeUTF(member);
+        }
+        return writer.toFrame();
+    }
+
+    static byte[] chat(String room, byte[] chatMsg) {
+        Writer writer = new Writer(CHAT);
+        writer.writeUTF(room);
+        writer.writeBytes(chatMsg);
+        return writer.toFrame();
+    }
+
+    static byte[] relay(String room, SharedFrame frame) {
+        Writer writer = new Writer(RELAY);
+        writer.writeUTF(room);
+        writer.writeInt(frame.length());
+        writer.writeFrame(frame);
+        return writer.toFrame();
+    }
+
+    static byte[] list(long requestId) {
+        Writer writer = new Writer(LIST);
+        writer.writeLong(requestId);
+        return writer.toFrame();
+    }
+
+    static byte[] response(long requestId, boolean ok, String error) {
+        Writer writer = new Writer(RESPONSE);
+        writer.writeLong(requestId);
+        writer.writeBoolean(ok);
+        writer.writeUTF(error == null ? "" : error);
+        return writer.toFrame();
+    }
+
+    static byte[] listResponse(long requestId, byte[] rooms) {
+        Writer writer = new Writer(LIST_RESPONSE);
+        writer.writeLong(requestId);
+        writer.writeBytes(rooms);
+        return writer.toFrame();
+    }
+
+    /**
+     * 先空出4字节长度头，写完后回填
+     */
+    private static final class Writer {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        private Writer(byte type) {
+            try {
+                out.writeInt(0);
+                out.writeByte(type);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);  // 写内存不会出错
+            }
+        }
+
+        private void writeUTF(String value) {
+            try {
+                out.writeUTF(value);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void writeLong(long value) {
+            try {
+                out.writeLong(value);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void writeInt(int value) {
+            try {
+                out.writeInt(value);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void writeBoolean(boolean value) {
+            try {
+                out.writeBoolean(value);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void writeBytes(byte[] value) {
+            try {
+                out.writeInt(value.length);
+                out.write(value);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void writeFrame(SharedFrame frame) {
+            try {
+                frame.writeTo(out);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private byte[] toFrame() {
+            byte[] frame = bytes.toByteArray();
+            int length = frame.length - 4;
+            frame[0] = (byte) (length >>> 24);
+            frame[1] = (byte) (length >>> 16);
+            frame[2] = (byte) (length >>> 8);
+            frame[3] = (byte) length;
+            return frame;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.lucky.cluster;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 到另一个节点的长连接，只用于发送，对方的消息从对方建立的连接上收到。
+ * 发送方只把消息放入有界队列；写线程一次取出一批，写入缓冲流后只flush一次。
+ * 连接断开后每秒重连一次，重连成功后由ClusterNode重新同步成员
+ */
+public class PeerLink implements Runnable {
+
+    private static final Logger logger = Logger.getLogger(PeerLink.class);
+    private static final int MAX_BATCH = 256;
+    private static final long RECONNECT_INTERVAL = 1000;
+
+    private final ClusterNode node;
+    private final String peerId;
+    private final String host;
+    private final int port;
+    private final BlockingQueue<byte[]> queue;
+    private final AtomicLong dropped = new AtomicLong(0);  // 队列满时丢弃的消息
+    private volatile boolean alive = true;
+    private volatile boolean connected;
+    private volatile Socket socket;
+    private Thread thread;
+
+    public PeerLink(ClusterNode node, String peerId, String host, int port, int queueSize) {
+        this.node = node;
+        this.peerId = peerId;
+        this.host = host;
+        this.port = port;
+        this.queue = new ArrayBlockingQueue<byte[]>(queueSize);
+    }
+
+    public String getPeerId() {
+        return peerId;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * 放入发送队列，不阻塞调用方，队列满时丢弃
+     */
+    public boolean send(byte[] frame) {
+        if (queue.offer(frame)) {
+            return true;
+        }
+
+        if (dropped.incrementAndGet() % 1000 == 1) {
+            logger.info("link to " + peerId + " is full, dropped: " + dropped.get());
+        }
+        return false;
+    }
+
+    public void start() {
+        thread = new Thread(this, "cluster-link-" + peerId);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void close() {
+        alive = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        closeSocket();
+    }
+
+    /**
+     * 对方建立的连接断开时调用，说明对方很可能已下线，不再把它当作可用节点，
+     * 写线程下次写入失败后进入重连
+     */
+    void reset() {
+        connected = false;
+        closeSocket();
+    }
+
+    @Override
+    public void run() {
+        boolean warned = false;
+        while (alive) {
+            try {
+                socket = new Socket();
+                socket.connect(new InetSocketAddress(host, port), 3000);
+                socket.setTcpNoDelay(true);
+                OutputStream os = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+                os.write(ClusterProtocol.hello(node.getNodeId()));
+                os.flush();
+                connected = true;
+                warned = false;
+                logger.info("link to cluster node " + peerId + " established");
+                node.onLinkUp(this);
+                writeLoop(os);
+            } catch (IOException e) {
+                if (!warned) {
+                    logger.info("link to cluster node " + peerId + " unavailable: " + e.getMessage());
+                    warned = true;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                connected = false;
+                closeSocket();
+            }
+
+            if (alive) {
+                try {
+                    Thread.sleep(RECONNECT_INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void writeLoop(OutputStream os) throws IOException, InterruptedException {
+        List<byte[]> batch = new ArrayList<byte[]>(MAX_BATCH);
+        while (alive) {
+            batch.add(queue.take());
+            queue.drainTo(batch, MAX_BATCH - 1);
+            for (byte[] frame : batch) {
+                os.write(frame);
+            }
+            os.flush();
+            batch.clear();
+        }
+    }
+
+    private void closeSocket() {
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
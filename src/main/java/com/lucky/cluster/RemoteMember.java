@@ -0,0 +1,90 @@
+package com.lucky.cluster;
+
+import com.lucky.codec.MsgCodec;
+import com.lucky.codec.MsgCodecs;
+import com.lucky.codec.SharedFrame;
+import com.lucky.constant.MsgType;
+import com.lucky.constant.ResponseStatus;
+import com.lucky.net.Connection;
+import com.lucky.net.OutboundQueue;
+
+/**
+ * 其他节点在某个房间中的代理成员，不管该节点上有多少成员，房间分发时只写给它一次，
+ * 由它把整个帧通过节点间连接转发过去。按节点与房间判断相等
+ */
+public class RemoteMember implements Connection {
+
+    private final String nodeId;
+    private final String room;
+    private final PeerLink link;
+
+    public RemoteMember(String nodeId, String room, PeerLink link) {
+        this.nodeId = nodeId;
+        this.room = room;
+        this.link = link;
+    }
+
+    @Override
+    public long getId() {
+        return -1;
+    }
+
+    @Override
+    public String getChatRoom() {
+        return room;
+    }
+
+    @Override
+    public void setChatRoom(String chatRoom) {
+    }
+
+    /**
+     * 节点间转发使用二进制编码，接收节点再按各成员的编码方式重新编码
+     */
+    @Override
+    public MsgCodec getCodec() {
+        return MsgCodecs.BINARY;
+    }
+
+    @Override
+    public void setCodec(MsgCodec codec) {
+    }
+
+    @Override
+    public void sendMsgWithType(char type, char status, String data) {
+    }
+
+    @Override
+    public void sendFrame(SharedFrame frame) {
+        if (frame.type() == MsgType.CHAT && frame.status() == ResponseStatus.OK && link != null) {
+            link.send(ClusterProtocol.relay(room, frame));
+        }
+    }
+
+    @Override
+    public OutboundQueue getOutbound() {
+        return null;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof RemoteMember)) {
+            return false;
+        }
+
+        RemoteMember other = (RemoteMember) o;
+        return nodeId.equals(other.nodeId) && room.equals(other.room);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * nodeId.hashCode() + room.hashCode();
+    }
+}
@@ -0,0 +1,191 @@
+package com.lucky.codec;
+
+import com.lucky.bean.ChatMsg;
+import com.lucky.bean.Room;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * 紧凑的二进制编码，客户端握手时选择。
+ * 聊天消息: varint(序号) varint(用户长度) 用户 varint(消息长度) 消息 varint(时间戳毫秒)
+ *          varint(房间长度) 房间 varint(接收者长度) 接收者，房间与接收者为空时长度为0，旧格式中没有这两项
+ * 房间列表: varint(房间数) { varint(名称长度) 名称 varint(人数) }
+ * 字符串均为UTF-8，解码时用户id与房间名经过StringInterner复用
+ */
+public class BinaryMsgCodec implements MsgCodec {
+
+    public static final String NAME = "binary";
+
+    private final StringInterner interner = new StringInterner(1024);
+
+    @Override
+    public int id() {
+        return 1;
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] encodeChatMsg(ChatMsg chatMsg) {
+        String user = chatMsg.getUser();
+        String msg = chatMsg.getMsg();
+        String room = chatMsg.getRoom() == null ? "" : chatMsg.getRoom();
+        String to = chatMsg.getTo() == null ? "" : chatMsg.getTo();
+        long millis = chatMsg.getDate().getTime();
+        int userLength = FrameCodec.utf8Length(user);
+        int msgLength = FrameCodec.utf8Length(msg);
+        int roomLength = FrameCodec.utf8Length(room);
+        int toLength = FrameCodec.utf8Length(to);
+        byte[] body = new byte[varintSize(chatMsg.getSeq()) + varintSize(userLength) + userLength
+                + varintSize(msgLength) + msgLength + varintSize(millis)
+                + varintSize(roomLength) + roomLength + varintSize(toLength) + toLength];
+
+        int pos = writeVarint(body, 0, chatMsg.getSeq());
+        pos = writeVarint(body, pos, userLength);
+        pos += FrameCodec.writeUtf8(user, body, pos);
+        pos = writeVarint(body, pos, msgLength);
+        pos += FrameCodec.writeUtf8(msg, body, pos);
+        pos = writeVarint(body, pos, millis);
+        pos = writeVarint(body, pos, roomLength);
+        pos += FrameCodec.writeUtf8(room, body, pos);
+        pos = writeVarint(body, pos, toLength);
+        FrameCodec.writeUtf8(to, body, pos);
+        return body;
+    }
+
+    @Override
+    public ChatMsg decodeChatMsg(byte[] buffer, int offset, int length) {
+        Reader reader = new Reader(buffer, offset, offset + length);
+        long seq = reader.readVarint();
+        String user = reader.readInternedString();
+        String msg = reader.readString();
+        long millis = reader.readVarint();
+        ChatMsg chatMsg = new ChatMsg(user, msg, new Date(millis));
+        chatMsg.setSeq(seq);
+        if (reader.hasRemaining()) {
+            String room = reader.readInternedString();
+            chatMsg.setRoom("".equals(room) ? null : room);
+        }
+        if (reader.hasRemaining()) {
+            String to = reader.readInternedString();
+            chatMsg.setTo("".equals(to) ? null : to);
+        }
+        return chatMsg;
+    }
+
+    @Override
+    public byte[] encodeRooms(List<Room> rooms) {
+        int size = varintSize(rooms.size());
+        for (Room room : rooms) {
+            int nameLength = FrameCodec.utf8Length(room.getName());
+            size += varintSize(nameLength) + nameLength + varintSize(room.getUserCount());
+        }
+
+        byte[] body = new byte[size];
+        int pos = writeVarint(body, 0, rooms.size());
+        for (Room room : rooms) {
+            pos = writeVarint(body, pos, FrameCodec.utf8Length(room.getName()));
+            pos += FrameCodec.writeUtf8(room.getName(), body, pos);
+            pos = writeVarint(body, pos, room.getUserCount());
+        }
+
+        return body;
+    }
+
+    @Override
+    public List<Room> decodeRooms(byte[] buffer, int offset, int length) {
+        Reader reader = new Reader(buffer, offset, offset + length);
+        int count = (int) reader.readVarint();
+        List<Room> rooms = new ArrayList<Room>(count);
+        for (int i = 0; i < count; i++) {
+            String name = reader.readInternedString();
+            int userCount = (int) reader.readVarint();
+            rooms.add(new Room(name, userCount));
+        }
+
+        return rooms;
+    }
+
+    static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7fL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+
+        return size;
+    }
+
+    /**
+     * 写入无符号varint，返回写入后的位置
+     */
+    static int writeVarint(byte[] dst, int pos, long value) {
+        while ((value & ~0x7fL) != 0) {
+            dst[pos++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        dst[pos++] = (byte) value;
+        return pos;
+    }
+
+    private class Reader {
+
+        private final byte[] buffer;
+        private final int end;
+        private int pos;
+
+        private Reader(byte[] buffer, int pos, int end) {
+            this.buffer = buffer;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        private boolean hasRemaining() {
+            return pos < end;
+        }
+
+        private long readVarint() {
+            long value = 0;
+            int shift = 0;
+            while (true) {
+                if (pos >= end || shift > 63) {
+                    throw new IllegalArgumentException("malformed varint");
+                }
+                byte b = buffer[pos++];
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+                shift += 7;
+            }
+        }
+
+        private int readLength() {
+            long length = readVarint();
+            if (length > end - pos) {
+                throw new IllegalArgumentException("string length out of range: " + length);
+            }
+
+            return (int) length;
+        }
+
+        private String readString() {
+            int length = readLength();
+            String value = FrameCodec.decodeString(buffer, pos, length);
+            pos += length;
+            return value;
+        }
+
+        private String readInternedString() {
+            int length = readLength();
+            String value = interner.intern(buffer, pos, length);
+            pos += length;
+            return value;
+        }
+    }
+}
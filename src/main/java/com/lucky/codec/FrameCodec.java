@@ -0,0 +1,130 @@
+package com.lucky.codec;
+
+import java.nio.charset.Charset;
+
+/**
+ * 帧格式: 4字节大端长度头 + UTF-8编码的消息体
+ * 响应消息体为: 1字节消息类型 + 1字节状态 + 数据，请求消息体为: 1字节消息类型 + 数据
+ */
+public class FrameCodec {
+
+    public static final int HEADER_LENGTH = 4;
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 1024 * 1024;
+    public static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private FrameCodec() {
+    }
+
+    /**
+     * 编码服务器响应
+     */
+    public static byte[] encode(char type, char status, String data) {
+        int bodyLength = 2 + (data == null ? 0 : utf8Length(data));
+        byte[] frame = new byte[HEADER_LENGTH + bodyLength];
+        writeHeader(frame, bodyLength);
+        frame[HEADER_LENGTH] = (byte) type;
+        frame[HEADER_LENGTH + 1] = (byte) status;
+        if (data != null) {
+            writeUtf8(data, frame, HEADER_LENGTH + 2);
+        }
+
+        return frame;
+    }
+
+    /**
+     * 编码服务器响应，数据为已编码的字节
+     */
+    public static byte[] encode(char type, char status, byte[] body) {
+        int bodyLength = 2 + body.length;
+        byte[] frame = new byte[HEADER_LENGTH + bodyLength];
+        writeHeader(frame, bodyLength);
+        frame[HEADER_LENGTH] = (byte) type;
+        frame[HEADER_LENGTH + 1] = (byte) status;
+        System.arraycopy(body, 0, frame, HEADER_LENGTH + 2, body.length);
+        return frame;
+    }
+
+    /**
+     * 编码客户端请求
+     */
+    public static byte[] encode(String msg) {
+        int bodyLength = utf8Length(msg);
+        byte[] frame = new byte[HEADER_LENGTH + bodyLength];
+        writeHeader(frame, bodyLength);
+        writeUtf8(msg, frame, HEADER_LENGTH);
+        return frame;
+    }
+
+    public static String decodeString(byte[] buffer, int offset, int length) {
+        return new String(buffer, offset, length, UTF_8);
+    }
+
+    static int readHeader(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xff) << 24)
+                | ((buffer[offset + 1] & 0xff) << 16)
+                | ((buffer[offset + 2] & 0xff) << 8)
+                | (buffer[offset + 3] & 0xff);
+    }
+
+    private static void writeHeader(byte[] frame, int bodyLength) {
+        frame[0] = (byte) (bodyLength >>> 24);
+        frame[1] = (byte) (bodyLength >>> 16);
+        frame[2] = (byte) (bodyLength >>> 8);
+        frame[3] = (byte) bodyLength;
+    }
+
+    /**
+     * 计算UTF-8编码后的字节数，避免先getBytes再拷贝一次
+     */
+    static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+
+        return length;
+    }
+
+    static int writeUtf8(String s, byte[] dst, int offset) {
+        int pos = offset;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                dst[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                dst[pos++] = (byte) (0xc0 | (c >> 6));
+                dst[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                dst[pos++] = (byte) (0xf0 | (cp >> 18));
+                dst[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                dst[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                dst[pos++] = (byte) (0x80 | (cp & 0x3f));
+            } else {
+                if (Character.isSurrogate(c)) {  // 孤立的代理字符，与String.getBytes一致替换为'?'
+                    dst[pos++] = (byte) '?';
+                    continue;
+                }
+                dst[pos++] = (byte) (0xe0 | (c >> 12));
+                dst[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                dst[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+
+        return pos - offset;
+    }
+}
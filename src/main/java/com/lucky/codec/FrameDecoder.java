@@ -0,0 +1,123 @@
+package com.lucky.codec;
+
+import com.lucky.constant.ErrorMsg;
+
+import java.io.IOException;
+
+/**
+ * 增量帧解码器，处理半包和粘包。
+ * 完整落在本次读取数据中的帧直接在原数组上回调，只有跨越多次读取的帧才会拷贝到内部缓冲区。
+ * 非线程安全，每个连接持有一个
+ */
+public class FrameDecoder {
+
+    private static final int INITIAL_CAPACITY = 256;
+    private static final int SHRINK_THRESHOLD = 64 * 1024;  // 大帧处理完后释放内部缓冲区
+
+    private int maxFrameLength;
+    private byte[] cumulation = new byte[INITIAL_CAPACITY];  // 跨越多次读取的未完成帧
+    private int cumulated;
+
+    public FrameDecoder() {
+        this(FrameCodec.DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    public FrameDecoder(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * 解码一次读取的数据，可能回调零次或多次
+     */
+    public void decode(byte[] src, int offset, int length, FrameHandler handler) throws IOException {
+        int pos = offset;
+        int end = offset + length;
+        if (cumulated > 0) {
+            pos = fillCumulation(src, pos, end, handler);
+            if (cumulated > 0) {  // 数据仍不足一帧
+                return;
+            }
+        }
+
+        while (end - pos >= FrameCodec.HEADER_LENGTH) {
+            int frameLength = checkFrameLength(FrameCodec.readHeader(src, pos));
+            if (end - pos - FrameCodec.HEADER_LENGTH < frameLength) {
+                break;
+            }
+
+            handler.onFrame(src, pos + FrameCodec.HEADER_LENGTH, frameLength);
+            pos += FrameCodec.HEADER_LENGTH + frameLength;
+        }
+
+        if (pos < end) {  // 剩余的半包留到下次
+            ensureCapacity(end - pos);
+            System.arraycopy(src, pos, cumulation, 0, end - pos);
+            cumulated = end - pos;
+        }
+    }
+
+    /**
+     * 连接断开时丢弃未完成的帧
+     */
+    public void reset() {
+        cumulated = 0;
+        if (cumulation.length > SHRINK_THRESHOLD) {
+            cumulation = new byte[INITIAL_CAPACITY];
+        }
+    }
+
+    /**
+     * 用新数据补齐内部缓冲区中的未完成帧，返回src中下一个未消费的位置
+     */
+    private int fillCumulation(byte[] src, int pos, int end, FrameHandler handler) throws IOException {
+        if (cumulated < FrameCodec.HEADER_LENGTH) {
+            int n = Math.min(FrameCodec.HEADER_LENGTH - cumulated, end - pos);
+            System.arraycopy(src, pos, cumulation, cumulated, n);
+            cumulated += n;
+            pos += n;
+            if (cumulated < FrameCodec.HEADER_LENGTH) {
+                return pos;
+            }
+        }
+
+        int frameLength = checkFrameLength(FrameCodec.readHeader(cumulation, 0));
+        int total = FrameCodec.HEADER_LENGTH + frameLength;
+        ensureCapacity(total);
+        int n = Math.min(total - cumulated, end - pos);
+        System.arraycopy(src, pos, cumulation, cumulated, n);
+        cumulated += n;
+        pos += n;
+        if (cumulated == total) {
+            cumulated = 0;
+            handler.onFrame(cumulation, FrameCodec.HEADER_LENGTH, frameLength);
+            if (cumulation.length > SHRINK_THRESHOLD) {
+                cumulation = new byte[INITIAL_CAPACITY];
+            }
+        }
+
+        return pos;
+    }
+
+    private int checkFrameLength(int frameLength) throws IOException {
+        if (frameLength < 0 || frameLength > maxFrameLength) {
+            throw new IOException(ErrorMsg.FRAME_TOO_LARGE + ": " + frameLength);
+        }
+
+        return frameLength;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (cumulation.length >= capacity) {
+            return;
+        }
+
+        int newCapacity = cumulation.length;
+        while (newCapacity < capacity) {
+            newCapacity <<= 1;
+        }
+
+        byte[] newBuffer = new byte[newCapacity];
+        System.arraycopy(cumulation, 0, newBuffer, 0, cumulated);
+        cumulation = newBuffer;
+    }
+}
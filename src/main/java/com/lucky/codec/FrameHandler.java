@@ -0,0 +1,9 @@
+package com.lucky.codec;
+
+/**
+ * 解码出一个完整帧后的回调，buffer只在回调期间有效，需要保留时请自行拷贝
+ */
+public interface FrameHandler {
+
+    void onFrame(byte[] buffer, int offset, int length);
+}
@@ -0,0 +1,52 @@
+package com.lucky.codec;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.lucky.bean.ChatMsg;
+import com.lucky.bean.Room;
+
+import java.lang.reflect.Type;
+import java.util.List;
+
+/**
+ * 原有的Gson文本编码，未握手的客户端默认使用
+ */
+public class JsonMsgCodec implements MsgCodec {
+
+    public static final String NAME = "json";
+
+    private static final Type ROOM_LIST_TYPE = new TypeToken<List<Room>>() {
+    }.getType();
+
+    private final Gson gson = new Gson();
+
+    @Override
+    public int id() {
+        return 0;
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] encodeChatMsg(ChatMsg chatMsg) {
+        return gson.toJson(chatMsg).getBytes(FrameCodec.UTF_8);
+    }
+
+    @Override
+    public ChatMsg decodeChatMsg(byte[] buffer, int offset, int length) {
+        return gson.fromJson(FrameCodec.decodeString(buffer, offset, length), ChatMsg.class);
+    }
+
+    @Override
+    public byte[] encodeRooms(List<Room> rooms) {
+        return gson.toJson(rooms).getBytes(FrameCodec.UTF_8);
+    }
+
+    @Override
+    public List<Room> decodeRooms(byte[] buffer, int offset, int length) {
+        return gson.fromJson(FrameCodec.decodeString(buffer, offset, length), ROOM_LIST_TYPE);
+    }
+}
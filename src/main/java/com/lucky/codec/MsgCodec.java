@@ -0,0 +1,27 @@
+package com.lucky.codec;
+
+import com.lucky.bean.ChatMsg;
+import com.lucky.bean.Room;
+
+import java.util.List;
+
+/**
+ * 响应消息体中聊天消息与房间列表的编码方式，每个连接在握手时选定一种
+ */
+public interface MsgCodec {
+
+    /**
+     * 编码方式的编号，用来按编码方式缓存已编码的帧
+     */
+    int id();
+
+    String name();
+
+    byte[] encodeChatMsg(ChatMsg chatMsg);
+
+    ChatMsg decodeChatMsg(byte[] buffer, int offset, int length);
+
+    byte[] encodeRooms(List<Room> rooms);
+
+    List<Room> decodeRooms(byte[] buffer, int offset, int length);
+}
@@ -0,0 +1,34 @@
+package com.lucky.codec;
+
+/**
+ * 所有支持的编码方式
+ */
+public final class MsgCodecs {
+
+    public static final MsgCodec JSON = new JsonMsgCodec();
+    public static final MsgCodec BINARY = new BinaryMsgCodec();
+    public static final MsgCodec[] ALL = {JSON, BINARY};  // 下标即编码方式的id
+    public static final int COUNT = ALL.length;
+
+    private MsgCodecs() {
+    }
+
+    /**
+     * 按名称查找编码方式，不支持时返回null
+     */
+    public static MsgCodec forName(String name) {
+        if (name == null) {
+            return null;
+        }
+
+        String trimmed = name.trim();
+        if (JSON.name().equalsIgnoreCase(trimmed)) {
+            return JSON;
+        }
+        if (BINARY.name().equalsIgnoreCase(trimmed)) {
+            return BINARY;
+        }
+
+        return null;
+    }
+}
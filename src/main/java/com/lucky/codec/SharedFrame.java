@@ -0,0 +1,143 @@
+package com.lucky.codec;
+
+import com.lucky.buffer.BufferPool;
+import com.lucky.buffer.PooledBuffer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * 只编码一次、被多个连接共享写出的帧。内容在构造后不再修改，
+ * 各连接只能通过writeTo或只读视图读取，不能改动共享的字节。
+ * 广播帧从BufferPool借出缓冲区，带引用计数：每个暂存该帧的持有者(待发送队列、跨线程的批量投递)
+ * 先retain，写出或丢弃后release，全部释放后缓冲区回到池中。一次性的响应帧使用普通数组，
+ * retain与release为空操作
+ */
+public final class SharedFrame {
+
+    private final byte[] bytes;         // 未池化的帧
+    private final PooledBuffer pooled;  // 池化的帧，[0, length)为帧内容
+    private final int length;
+
+    public SharedFrame(byte[] bytes) {
+        this.bytes = bytes;
+        this.pooled = null;
+        this.length = bytes.length;
+    }
+
+    private SharedFrame(PooledBuffer pooled, int length) {
+        this.bytes = null;
+        this.pooled = pooled;
+        this.length = length;
+    }
+
+    public static SharedFrame of(char type, char status, String data) {
+        return new SharedFrame(FrameCodec.encode(type, status, data));
+    }
+
+    public static SharedFrame of(char type, char status, byte[] body) {
+        return new SharedFrame(FrameCodec.encode(type, status, body));
+    }
+
+    /**
+     * 编码到从池中借出的缓冲区，引用计数为1，属于调用方。pool为null时不池化
+     */
+    public static SharedFrame of(BufferPool pool, char type, char status, byte[] body) {
+        if (pool == null) {
+            return of(type, status, body);
+        }
+
+        int length = FrameCodec.HEADER_LENGTH + 2 + body.length;
+        PooledBuffer pooled = pool.allocate(length);
+        ByteBuffer buffer = pooled.buffer();
+        buffer.putInt(2 + body.length).put((byte) type).put((byte) status).put(body);
+        buffer.flip();  // 之后只读，各连接通过只读视图维护自己的position
+        return new SharedFrame(pooled, length);
+    }
+
+    /**
+     * 帧的消息类型
+     */
+    public char type() {
+        return (char) byteAt(FrameCodec.HEADER_LENGTH);
+    }
+
+    /**
+     * 帧的响应状态
+     */
+    public char status() {
+        return (char) byteAt(FrameCodec.HEADER_LENGTH + 1);
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * 增加一个持有者，池化的帧被放入待发送队列或交给其他线程之前调用
+     */
+    public SharedFrame retain() {
+        if (pooled != null) {
+            pooled.retain();
+        }
+
+        return this;
+    }
+
+    /**
+     * 释放一个持有者，全部释放后缓冲区回到池中，之后不能再读取
+     */
+    public void release() {
+        if (pooled != null) {
+            pooled.release();
+        }
+    }
+
+    /**
+     * 阻塞模型直接写出共享数组，不产生拷贝；堆外的帧需要先拷贝到堆内数组
+     */
+    public void writeTo(OutputStream os) throws IOException {
+        if (bytes != null) {
+            os.write(bytes, 0, length);
+            return;
+        }
+
+        ByteBuffer buffer = pooled.buffer();
+        if (buffer.hasArray()) {
+            os.write(buffer.array(), buffer.arrayOffset(), length);
+            return;
+        }
+
+        byte[] copy = new byte[length];
+        buffer.duplicate().get(copy);
+        os.write(copy, 0, length);
+    }
+
+    /**
+     * 拷贝到dst的当前位置，用于把多个帧合并到一个缓冲区后一次写出
+     */
+    public void copyTo(ByteBuffer dst) {
+        if (bytes != null) {
+            dst.put(bytes, 0, length);
+            return;
+        }
+
+        dst.put(pooled.buffer().duplicate());
+    }
+
+    /**
+     * NIO模型每个连接需要独立的position，返回一个共享底层内存的只读视图
+     */
+    public ByteBuffer newReadOnlyView() {
+        if (bytes != null) {
+            return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        }
+
+        return pooled.buffer().asReadOnlyBuffer();
+    }
+
+    private byte byteAt(int index) {
+        return bytes != null ? bytes[index] : pooled.buffer().get(index);
+    }
+}
@@ -0,0 +1,68 @@
+package com.lucky.codec;
+
+import java.util.Arrays;
+
+/**
+ * 解码时复用重复出现的短字符串(比如用户id)，相同的字节内容命中缓存时不再创建新的String。
+ * 固定大小的直接映射缓存，冲突时直接覆盖；每个槽位是不可变对象，多线程并发读写是安全的
+ */
+public class StringInterner {
+
+    private static final int MAX_INTERN_LENGTH = 64;  // 过长的字符串不缓存
+
+    private final Entry[] entries;
+    private final int mask;
+
+    public StringInterner(int capacity) {
+        int size = Integer.highestOneBit(Math.max(16, capacity - 1)) << 1;
+        this.entries = new Entry[size];
+        this.mask = size - 1;
+    }
+
+    public String intern(byte[] buffer, int offset, int length) {
+        if (length > MAX_INTERN_LENGTH) {
+            return FrameCodec.decodeString(buffer, offset, length);
+        }
+
+        int hash = 1;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + buffer[i];
+        }
+
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        Entry entry = entries[slot];
+        if (entry != null && entry.matches(buffer, offset, length)) {
+            return entry.value;
+        }
+
+        byte[] bytes = Arrays.copyOfRange(buffer, offset, offset + length);
+        String value = FrameCodec.decodeString(bytes, 0, length);
+        entries[slot] = new Entry(bytes, value);
+        return value;
+    }
+
+    private static final class Entry {
+
+        private final byte[] bytes;
+        private final String value;
+
+        private Entry(byte[] bytes, String value) {
+            this.bytes = bytes;
+            this.value = value;
+        }
+
+        private boolean matches(byte[] buffer, int offset, int length) {
+            if (bytes.length != length) {
+                return false;
+            }
+
+            for (int i = 0; i < length; i++) {
+                if (bytes[i] != buffer[offset + i]) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+}
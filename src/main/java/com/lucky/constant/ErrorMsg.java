@@ -4,4 +4,15 @@ public interface ErrorMsg {
     String ROOM_NOT_EXIST = "chat room not exist";
     String NOT_IN_THIS_ROOM = "you are not in this room";
     String ROOM_EXIST = "chat room already exist";
+    String MSG_DROPPED = "messages dropped because you are reading too slowly";
+    String INVALID_ARGUMENT = "invalid argument";
+    String UNKNOWN_CODEC = "unsupported encoding";
+    String FRAME_TOO_LARGE = "frame length out of range";
+    String PERMISSION_DENIED = "permission denied";
+    String SESSION_EXPIRED = "session expired or not exist";
+    String USER_NOT_ONLINE = "user not online";
+    String RATE_LIMITED_CONNECTION = "sending too fast on this connection";
+    String RATE_LIMITED_USER = "sending too fast from this user";
+    String RATE_LIMITED_ROOM = "too many messages in this chat room";
+    String NODE_UNAVAILABLE = "the server owning this chat room is unavailable";
 }
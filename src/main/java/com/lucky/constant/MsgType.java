@@ -7,4 +7,13 @@ public interface MsgType {
     char CREATE_ROOM = '4';
     char CHAT = '5';
     char QUIT_SYSTEM = '6';
+    char HANDSHAKE = '7';    // 协商聊天消息与房间列表的编码方式，数据为编码名称: json(默认) 或 binary
+    char HISTORY = '8';      // 回放当前房间的历史消息，数据为 last:{条数} 或 since:{序号}
+    char METRICS = '9';      // 管理请求，返回json格式的服务器指标快照，数据为admin.token(未配置时服务器拒绝)
+    char SESSION = '0';      // 无数据时分配会话令牌；数据为 {令牌} {最后收到的序号} 时恢复断开前的会话
+    char BUSY = 'b';         // 服务器繁忙，拒绝新连接后关闭，数据为建议的重试等待毫秒数
+    char SWITCH_ROOM = 's';  // 切换当前房间(聊天与回放的默认房间)，数据为已加入的房间名
+    char DIRECT = 'd';       // 私聊，数据为 {用户名} {消息}，发送方与接收方都会收到编码后的消息
+    char PING = 'p';         // 心跳，服务器与客户端都可以发送，收到后回复PONG，数据原样带回
+    char PONG = 'o';         // 心跳响应
 }
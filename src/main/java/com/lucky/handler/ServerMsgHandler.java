@@ -0,0 +1,285 @@
+package com.lucky.handler;
+
+import com.lucky.Server;
+import com.lucky.bean.ChatMsg;
+import com.lucky.codec.MsgCodec;
+import com.lucky.codec.MsgCodecs;
+import com.lucky.constant.ErrorMsg;
+import com.lucky.constant.MsgType;
+import com.lucky.constant.ResponseStatus;
+import com.lucky.net.Connection;
+import com.lucky.room.ChatRoom;
+import com.lucky.room.EncodedMsg;
+import com.lucky.room.RoomQuery;
+import org.apache.log4j.Logger;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 处理从客户端发来的请求，两种服务器引擎共用同一套协议处理逻辑
+ */
+public class ServerMsgHandler {
+
+    private static final Logger logger = Logger.getLogger(ServerMsgHandler.class);
+    private static final String HISTORY_LAST = "last:";
+    private static final String HISTORY_SINCE = "since:";
+
+    private Server server;
+
+    public ServerMsgHandler(Server server) {
+        this.server = server;
+    }
+
+    public void handlerMsg(final Connection conn, String msg) {
+        if (msg == null || "".equals(msg)) {
+            return;
+        }
+
+        server.getHeartbeats().onRead(conn);
+        final char type = msg.charAt(0);
+        String roomName;
+        switch (type) {
+            case MsgType.LIST_ROOM:
+                RoomQuery query;
+                try {
+                    query = server.parseRoomQuery(msg.substring(1));
+                } catch (Exception e) {
+                    conn.sendMsgWithType(type, ResponseStatus.FAIL, e.getMessage());
+                    break;
+                }
+                if (server.getCluster() != null) {  // 汇总所有节点的房间后异步回复
+                    server.getCluster().listRooms(conn, query);
+                    break;
+                }
+                conn.sendFrame(server.roomListFrame(query, conn.getCodec()));
+                break;
+            case MsgType.JOIN_ROOM:
+                roomName = msg.substring(1);
+                if (server.isRemoteRoom(roomName)) {  // 由拥有该房间的节点确认后异步回复
+                    server.getCluster().enterRoom(conn, type, roomName);
+                    break;
+                }
+                final String joined = roomName;
+                try {
+                    server.addSocketToRoom(conn, roomName, new Runnable() {
+                        @Override
+                        public void run() {
+                            conn.sendMsgWithType(type, ResponseStatus.OK, joined);
+                            replayOnJoin(conn, joined);
+                        }
+                    });
+                    conn.setChatRoom(roomName);
+                } catch (Exception e) {
+                    conn.sendMsgWithType(type, ResponseStatus.FAIL, e.getMessage());
+                }
+                break;
+            case MsgType.QUIT_ROOM:
+                quitRoom(conn, msg.substring(1).trim());
+                break;
+            case MsgType.SWITCH_ROOM:
+                roomName = msg.substring(1).trim();
+                try {
+                    server.switchRoom(conn, roomName);
+                    conn.sendMsgWithType(type, ResponseStatus.OK, roomName);
+                } catch (Exception e) {
+                    conn.sendMsgWithType(type, ResponseStatus.FAIL, e.getMessage());
+                }
+                break;
+            case MsgType.CREATE_ROOM:
+                roomName = msg.substring(1);
+                if (server.isRemoteRoom(roomName)) {
+                    server.getCluster().enterRoom(conn, type, roomName);
+                    break;
+                }
+                final String created = roomName;
+                try {
+                    server.createChatRoom(conn, roomName, new Runnable() {
+                        @Override
+                        public void run() {
+                            conn.sendMsgWithType(type, ResponseStatus.OK, created);
+                        }
+                    });
+                    conn.setChatRoom(roomName);
+                } catch (Exception e) {
+                    conn.sendMsgWithType(type, ResponseStatus.FAIL, e.getMessage());
+                }
+                break;
+            case MsgType.CHAT:
+                ChatMsg chatMsg = new ChatMsg(server.getUserName(conn), msg.substring(1), new Date());
+                try {
+                    server.checkRate(conn, conn.getChatRoom());
+                    server.deliverChatMsg(conn.getChatRoom(), chatMsg);
+                } catch (Exception e) {
+                    conn.sendMsgWithType(type, ResponseStatus.FAIL, e.getMessage());
+                }
+                break;
+            case MsgType.DIRECT:
+                String[] parts = msg.substring(1).split(" ", 2);
+                if (parts.length < 2 || "".equals(parts[0])) {
+                    conn.sendMsgWithType(type, ResponseStatus.FAIL, ErrorMsg.INVALID_ARGUMENT);
+                    break;
+                }
+                try {
+                    server.checkRate(conn, null);
+                    server.deliverDirectMsg(conn, parts[0], new ChatMsg(server.getUserName(conn), parts[1], new Date()));
+                } catch (Exception e) {
+                    conn.sendMsgWithType(type, ResponseStatus.FAIL, e.getMessage());
+                }
+                break;
+            case MsgType.HISTORY:
+                replayHistory(conn, msg.substring(1));
+                break;
+            case MsgType.HANDSHAKE:
+                MsgCodec codec = MsgCodecs.forName(msg.substring(1));
+                if (codec == null) {
+                    conn.sendMsgWithType(type, ResponseStatus.FAIL, ErrorMsg.UNKNOWN_CODEC);
+                    break;
+                }
+                conn.setCodec(codec);
+                conn.sendMsgWithType(type, ResponseStatus.OK, codec.name());
+                break;
+            case MsgType.SESSION:
+                handleSession(conn, msg.substring(1).trim());
+                break;
+            case MsgType.PING:
+                conn.sendMsgWithType(MsgType.PONG, ResponseStatus.OK, msg.substring(1));
+                break;
+            case MsgType.PONG:  // 收到数据时已经更新了心跳时间
+                break;
+            case MsgType.METRICS:  // 指标中包含用户与房间名，没有配置口令时不对客户端开放
+                String token = server.getAdminToken();
+                if ("".equals(token) || !token.equals(msg.substring(1).trim())) {
+                    conn.sendMsgWithType(type, ResponseStatus.FAIL, ErrorMsg.PERMISSION_DENIED);
+                    break;
+                }
+                conn.sendMsgWithType(type, ResponseStatus.OK, server.getMetrics().snapshotJson());
+                break;
+            default:
+                server.getMetrics().recordDecodeError();
+                logger.info("invalid message type");
+        }
+    }
+
+    /**
+     * 退出指定的房间，没有参数时退出当前房间。退出的是当前房间时切换到其他已加入的房间，
+     * 成功时回复 {退出的房间} {新的当前房间}，当前房间为空表示不在任何房间中
+     */
+    private void quitRoom(Connection conn, String roomName) {
+        if ("".equals(roomName)) {
+            roomName = conn.getChatRoom();
+        }
+
+        try {
+            server.removeSocketFromRoom(conn, roomName);
+            if (roomName.equals(conn.getChatRoom())) {
+                Iterator<String> rooms = server.getDirectory().getRooms(conn).iterator();
+                conn.setChatRoom(rooms.hasNext() ? rooms.next() : "");
+            }
+            conn.sendMsgWithType(MsgType.QUIT_ROOM, ResponseStatus.OK, roomName + " " + conn.getChatRoom());
+        } catch (Exception e) {
+            conn.sendMsgWithType(MsgType.QUIT_ROOM, ResponseStatus.FAIL, e.getMessage());
+        }
+    }
+
+    /**
+     * 没有参数时分配会话令牌，参数为 {令牌} {当前房间最后收到的序号} [{房间}:{序号} ...] 时恢复会话
+     * 并补发各房间错过的消息，成功时回复 {令牌} {当前房间}，房间为空表示不在任何房间中
+     */
+    private void handleSession(Connection conn, String arg) {
+        if ("".equals(arg)) {
+            conn.sendMsgWithType(MsgType.SESSION, ResponseStatus.OK, server.openSession(conn) + " ");
+            return;
+        }
+
+        String[] parts = arg.split(" +");
+        try {
+            Map<String, Long> lastSeqs = new HashMap<String, Long>();
+            for (int i = 2; i < parts.length; i++) {
+                int colon = parts[i].lastIndexOf(':');
+                if (colon <= 0) {
+                    throw new NumberFormatException(parts[i]);
+                }
+                lastSeqs.put(parts[i].substring(0, colon), Long.parseLong(parts[i].substring(colon + 1)));
+            }
+            long lastSeq = parts.length > 1 ? Long.parseLong(parts[1]) : 0;
+            String roomName = server.resumeSession(conn, parts[0], lastSeq, lastSeqs);
+            conn.sendMsgWithType(MsgType.SESSION, ResponseStatus.OK, parts[0] + " " + roomName);
+        } catch (NumberFormatException e) {
+            conn.sendMsgWithType(MsgType.SESSION, ResponseStatus.FAIL, ErrorMsg.INVALID_ARGUMENT);
+        } catch (Exception e) {
+            conn.sendMsgWithType(MsgType.SESSION, ResponseStatus.FAIL, e.getMessage());
+        }
+    }
+
+    /**
+     * 回放当前房间的历史消息，参数为 last:{条数}(或直接给出条数) 或 since:{序号}，
+     * 直接写出缓存中已编码的帧，最后回复一条HISTORY消息，数据为回放的条数。
+     * 回放在房间的actor中执行，与实时消息按序号顺序到达
+     */
+    private void replayHistory(final Connection conn, String arg) {
+        final ChatRoom room = server.getRegistry().get(conn.getChatRoom());
+        if (room == null || !room.contains(conn)) {
+            conn.sendMsgWithType(MsgType.HISTORY, ResponseStatus.FAIL, ErrorMsg.NOT_IN_THIS_ROOM);
+            return;
+        }
+
+        final long since;
+        final int last;
+        try {
+            arg = arg.trim();
+            if (arg.startsWith(HISTORY_SINCE)) {
+                since = Long.parseLong(arg.substring(HISTORY_SINCE.length()).trim());
+                last = -1;
+            } else if (arg.startsWith(HISTORY_LAST)) {
+                since = -1;
+                last = Integer.parseInt(arg.substring(HISTORY_LAST.length()).trim());
+            } else {
+                since = -1;
+                last = Integer.parseInt(arg);
+            }
+        } catch (NumberFormatException e) {
+            conn.sendMsgWithType(MsgType.HISTORY, ResponseStatus.FAIL, ErrorMsg.INVALID_ARGUMENT);
+            return;
+        }
+        if (since < 0 && last < 0) {  // 负数的条数或序号
+            conn.sendMsgWithType(MsgType.HISTORY, ResponseStatus.FAIL, ErrorMsg.INVALID_ARGUMENT);
+            return;
+        }
+
+        room.tell(new Runnable() {
+            @Override
+            public void run() {
+                sendHistory(conn, last >= 0 ? room.getHistory().last(last) : room.getHistory().since(since));
+            }
+        });
+    }
+
+    /**
+     * 加入房间后按配置自动回放最近的消息，在房间的actor中紧接着加入执行，
+     * 缓冲区中的消息都在加入之前，之后的消息作为实时消息到达，不会重复
+     */
+    private void replayOnJoin(Connection conn, String roomName) {
+        int count = server.getHistoryReplayOnJoin();
+        ChatRoom room = server.getRegistry().get(roomName);
+        if (count <= 0 || room == null) {
+            return;
+        }
+
+        sendHistory(conn, room.getHistory().last(count));
+    }
+
+    /**
+     * 发送历史缓冲区返回的消息并释放它们的引用，最后回复回放的条数
+     */
+    private void sendHistory(Connection conn, List<EncodedMsg> msgs) {
+        for (EncodedMsg msg : msgs) {
+            conn.sendFrame(msg.encode(conn.getCodec()));
+            msg.release();
+        }
+        conn.sendMsgWithType(MsgType.HISTORY, ResponseStatus.OK, String.valueOf(msgs.size()));
+    }
+}
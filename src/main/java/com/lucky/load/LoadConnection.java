@@ -0,0 +1,219 @@
+package com.lucky.load;
+
+import com.lucky.bean.ChatMsg;
+import com.lucky.codec.FrameCodec;
+import com.lucky.codec.FrameDecoder;
+import com.lucky.codec.FrameHandler;
+import com.lucky.codec.MsgCodecs;
+import com.lucky.constant.MsgType;
+import com.lucky.constant.ResponseStatus;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * 压测客户端的一个模拟连接，使用与Client相同的帧格式和请求类型，只在所属事件循环线程中访问
+ */
+public class LoadConnection implements FrameHandler {
+
+    private static final Logger logger = Logger.getLogger(LoadConnection.class);
+
+    private LoadGenerator generator;
+    private LoadEventLoop loop;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private FrameDecoder decoder;
+    private ArrayDeque<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();  // 发送缓冲区满时待写的帧
+    private int room;
+    private boolean owner;    // 房间的创建者，不参与进出
+    private boolean entered;  // 是否已经在房间中
+    private boolean setup;    // 首次进入房间是否已经完成
+    private boolean churning; // 已发出退出再加入，等待加入的响应
+    private boolean closed;
+
+    LoadConnection(LoadGenerator generator, LoadEventLoop loop, SocketChannel channel, int room, boolean owner) {
+        this.generator = generator;
+        this.loop = loop;
+        this.channel = channel;
+        this.room = room;
+        this.owner = owner;
+        this.decoder = new FrameDecoder(generator.getMaxFrameLength());
+    }
+
+    /**
+     * 注册到事件循环后协商编码方式，并创建或加入房间
+     */
+    void register(Selector selector) throws IOException {
+        channel.configureBlocking(false);
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+        if (generator.getCodec() != MsgCodecs.JSON) {
+            send(MsgType.HANDSHAKE + generator.getCodec().name());
+        }
+        send((owner ? MsgType.CREATE_ROOM : MsgType.JOIN_ROOM) + generator.roomName(room));
+    }
+
+    /**
+     * 在房间中时发送一条聊天消息
+     */
+    boolean sendChat(String msg) {
+        if (!entered || closed) {
+            return false;
+        }
+
+        send(MsgType.CHAT + msg);
+        return true;
+    }
+
+    /**
+     * 退出房间并立即重新加入，房主不参与
+     */
+    boolean churn() {
+        if (owner || !entered || churning || closed) {
+            return false;
+        }
+
+        String roomName = generator.roomName(room);
+        churning = true;
+        send(MsgType.QUIT_ROOM + roomName);
+        send(MsgType.JOIN_ROOM + roomName);
+        return true;
+    }
+
+    @Override
+    public void onFrame(byte[] buffer, int offset, int length) {
+        if (length < 2) {
+            return;
+        }
+
+        char type = (char) buffer[offset];
+        char status = (char) buffer[offset + 1];
+        if (status != ResponseStatus.OK) {
+            generator.errors.incrementAndGet();
+            if (!setup && (type == MsgType.CREATE_ROOM || type == MsgType.JOIN_ROOM)) {
+                logger.info("enter room " + generator.roomName(room) + " failed: "
+                        + FrameCodec.decodeString(buffer, offset + 2, length - 2));
+                setup = true;
+                generator.entered();
+            }
+            return;
+        }
+
+        switch (type) {
+            case MsgType.CHAT:
+                onChat(generator.getCodec().decodeChatMsg(buffer, offset + 2, length - 2));
+                break;
+            case MsgType.CREATE_ROOM:
+            case MsgType.JOIN_ROOM:
+                entered = true;
+                churning = false;
+                if (!setup) {
+                    setup = true;
+                    generator.entered();
+                }
+                break;
+            case MsgType.QUIT_ROOM:
+                entered = false;
+                break;
+            case MsgType.PING:
+                send(MsgType.PONG + FrameCodec.decodeString(buffer, offset + 2, length - 2));
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void onChat(ChatMsg chatMsg) {
+        long receiveNanos = System.nanoTime();
+        generator.totalReceived.incrementAndGet();
+        long sendNanos = LoadGenerator.parseSendNanos(chatMsg.getMsg());
+        if (sendNanos < generator.getMeasureStartNanos() || sendNanos >= generator.getSendEndNanos()) {
+            return;  // 预热期间或非压测消息
+        }
+
+        generator.received.incrementAndGet();
+        loop.getLatency().record(receiveNanos - sendNanos);
+    }
+
+    void read() {
+        ByteBuffer readBuffer = loop.getReadBuffer();
+        try {
+            while (true) {
+                readBuffer.clear();
+                int len = channel.read(readBuffer);
+                if (len == -1) {
+                    generator.disconnects.incrementAndGet();
+                    close();
+                    return;
+                }
+                if (len == 0) {
+                    return;
+                }
+
+                decoder.decode(readBuffer.array(), 0, len, this);
+            }
+        } catch (IOException e) {
+            generator.disconnects.incrementAndGet();
+            close();
+        }
+    }
+
+    void flush() {
+        try {
+            while (!pending.isEmpty()) {
+                ByteBuffer buffer = pending.peek();
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    return;
+                }
+                pending.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    void close() {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        entered = false;
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void send(String msg) {
+        if (closed) {
+            return;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(FrameCodec.encode(msg));
+        if (!pending.isEmpty()) {
+            pending.add(buffer);
+            return;
+        }
+
+        try {
+            channel.write(buffer);
+            if (buffer.hasRemaining()) {  // 发送缓冲区已满，等待可写
+                pending.add(buffer);
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+}
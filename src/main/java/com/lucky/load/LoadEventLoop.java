@@ -0,0 +1,162 @@
+package com.lucky.load;
+
+import com.lucky.metrics.LatencyHistogram;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 压测客户端的事件循环，负责一部分连接的读写，并按分到的速率从这些连接中随机选择发送者。
+ * 发送按开始时间计算应发数量，落后时补发，不会因为服务器变慢而少发(开放模型)
+ */
+public class LoadEventLoop extends Thread {
+
+    private static final Logger logger = Logger.getLogger(LoadEventLoop.class);
+    private static final int MAX_BURST = 1000;  // 单次最多补发的消息数，避免长时间不处理读事件
+
+    private LoadGenerator generator;
+    private Selector selector;
+    private Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private List<LoadConnection> connections = new ArrayList<LoadConnection>();
+    private ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);  // 所有连接共用，未完成的帧由解码器保存
+    private LatencyHistogram latency = new LatencyHistogram();
+    private double rate;       // 本事件循环每秒发送的消息数
+    private double churnRate;  // 本事件循环每秒的退出再加入次数
+    private long sentTotal;    // 包括预热期间
+    private long churned;
+    private volatile long sentTotalView;
+    private volatile boolean alive;
+
+    public LoadEventLoop(LoadGenerator generator, String name, double rate, double churnRate) throws IOException {
+        super(name);
+        this.generator = generator;
+        this.rate = rate;
+        this.churnRate = churnRate;
+        this.selector = Selector.open();
+        this.alive = true;
+    }
+
+    @Override
+    public void run() {
+        while (alive) {
+            try {
+                selector.select(1);
+                runTasks();
+                processSelectedKeys();
+                generate();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        for (LoadConnection conn : connections) {
+            conn.close();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void shutdown() {
+        alive = false;
+        selector.wakeup();
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public long getSentTotal() {
+        return sentTotalView;
+    }
+
+    void register(final LoadConnection conn) {
+        tasks.offer(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    conn.register(selector);
+                    connections.add(conn);
+                } catch (IOException e) {
+                    logger.info("register connection failed: " + e.getMessage());
+                    conn.close();
+                }
+            }
+        });
+        selector.wakeup();
+    }
+
+    ByteBuffer getReadBuffer() {
+        return readBuffer;
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            LoadConnection conn = (LoadConnection) key.attachment();
+            if (key.isValid() && key.isWritable()) {
+                conn.flush();
+            }
+            if (key.isValid() && key.isReadable()) {
+                conn.read();
+            }
+        }
+    }
+
+    /**
+     * 补发到当前时刻应发的消息数与成员进出次数
+     */
+    private void generate() {
+        long start = generator.getSendStartNanos();
+        if (start == 0 || connections.isEmpty()) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        if (now >= generator.getSendEndNanos()) {
+            return;
+        }
+
+        double elapsed = (now - start) / 1e9;
+        long due = Math.min((long) (elapsed * rate) - sentTotal, MAX_BURST);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (long i = 0; i < due; i++) {
+            LoadConnection conn = connections.get(random.nextInt(connections.size()));
+            long sendNanos = System.nanoTime();
+            if (conn.sendChat(generator.newChatMsg(sendNanos)) && sendNanos >= generator.getMeasureStartNanos()) {
+                generator.sent.incrementAndGet();
+            }
+            sentTotal++;
+        }
+        sentTotalView = sentTotal;
+
+        long churnDue = Math.min((long) (elapsed * churnRate) - churned, MAX_BURST);
+        for (long i = 0; i < churnDue; i++) {
+            LoadConnection conn = connections.get(random.nextInt(connections.size()));
+            if (conn.churn()) {
+                generator.churnOps.incrementAndGet();
+            }
+            churned++;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.lucky.load;
+
+import com.lucky.codec.FrameCodec;
+import com.lucky.codec.MsgCodec;
+import com.lucky.codec.MsgCodecs;
+import com.lucky.metrics.LatencyHistogram;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 无界面的压测客户端，在一个JVM中用少量NIO事件循环模拟大量连接。
+ * 先为每个房间创建一个房主，再让其余成员加入，然后按设定的总速率随机选择成员发送聊天消息，
+ * 消息内容中带有发送时的System.nanoTime()，成员收到后即可得到端到端的投递延迟。
+ * 可选的成员进出(先退出再立即加入)用来模拟房间成员的变动
+ */
+public class LoadGenerator {
+
+    private static final Logger logger = Logger.getLogger(LoadGenerator.class);
+
+    static final String TIMESTAMP_PREFIX = "lg";  // 压测消息的前缀，后面跟发送时间
+
+    private String host;
+    private int port;
+    private int rooms;          // 房间数
+    private int roomSize;       // 每个房间的成员数
+    private double rate;        // 所有连接合计每秒发送的消息数
+    private int msgSize;        // 每条消息的字符数
+    private double churn;       // 所有连接合计每秒的退出再加入次数
+    private int warmupSeconds;  // 预热时间，期间的消息不计入结果
+    private int durationSeconds;
+    private int threads;        // 事件循环线程数
+    private int maxFrameLength;
+    private MsgCodec codec;
+    private String roomPrefix;
+
+    private LoadEventLoop[] loops;
+    private List<LoadConnection> connections = new ArrayList<LoadConnection>();
+    private CountDownLatch setupLatch;
+    private volatile long sendStartNanos;     // 开始发送的时间
+    private volatile long measureStartNanos;  // 开始统计的时间
+    private volatile long sendEndNanos;       // 停止发送的时间
+
+    final AtomicLong sent = new AtomicLong(0);             // 统计窗口内发送的消息数
+    final AtomicLong received = new AtomicLong(0);         // 统计窗口内发送、被收到的消息数
+    final AtomicLong totalReceived = new AtomicLong(0);    // 收到的所有聊天消息
+    final AtomicLong churnOps = new AtomicLong(0);
+    final AtomicLong errors = new AtomicLong(0);           // 服务器返回的失败响应
+    final AtomicLong disconnects = new AtomicLong(0);      // 被服务器断开的连接
+
+    public LoadGenerator(Properties properties) {
+        this.host = properties.getProperty("host", "localhost");
+        this.port = Integer.valueOf(properties.getProperty("port", "9021"));
+        this.rooms = Integer.valueOf(properties.getProperty("rooms", "10"));
+        this.roomSize = Math.max(1, Integer.valueOf(properties.getProperty("roomSize", "10")));
+        this.rate = Double.valueOf(properties.getProperty("rate", "1000"));
+        this.msgSize = Integer.valueOf(properties.getProperty("msgSize", "64"));
+        this.churn = Double.valueOf(properties.getProperty("churn", "0"));
+        this.warmupSeconds = Integer.valueOf(properties.getProperty("warmup", "5"));
+        this.durationSeconds = Integer.valueOf(properties.getProperty("duration", "30"));
+        this.threads = Math.max(1, Integer.valueOf(properties.getProperty("threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors()))));
+        this.maxFrameLength = Integer.valueOf(properties.getProperty("frame.max",
+                String.valueOf(FrameCodec.DEFAULT_MAX_FRAME_LENGTH)));
+        this.codec = MsgCodecs.forName(properties.getProperty("codec", MsgCodecs.JSON.name()));
+        if (this.codec == null) {
+            throw new IllegalArgumentException("unsupported codec: " + properties.getProperty("codec"));
+        }
+        this.roomPrefix = "load-" + Long.toString(System.currentTimeMillis() % 1000000, 36) + "-";
+    }
+
+    /**
+     * 建立连接、创建并加入房间、按设定速率发送，结束后输出结果
+     */
+    public void run() throws IOException, InterruptedException {
+        logger.info("load generator: rooms=" + rooms + ", roomSize=" + roomSize + ", rate=" + rate
+                + "/s, msgSize=" + msgSize + ", churn=" + churn + "/s, codec=" + codec.name()
+                + ", threads=" + threads + ", target=" + host + ":" + port);
+
+        loops = new LoadEventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new LoadEventLoop(this, "load-loop-" + i, rate / threads, churn / threads);
+            loops[i].start();
+        }
+
+        try {
+            // 房主先创建房间，其余成员在房间存在后再加入
+            setup(0, 1);
+            if (roomSize > 1) {
+                setup(1, roomSize);
+            }
+            logger.info(connections.size() + " connections ready, errors: " + errors.get());
+
+            long now = System.nanoTime();
+            sendStartNanos = now;
+            measureStartNanos = now + TimeUnit.SECONDS.toNanos(warmupSeconds);
+            sendEndNanos = measureStartNanos + TimeUnit.SECONDS.toNanos(durationSeconds);
+            report();
+        } finally {
+            for (LoadEventLoop loop : loops) {
+                loop.shutdown();
+            }
+            for (LoadEventLoop loop : loops) {
+                loop.join();
+            }
+        }
+    }
+
+    /**
+     * 为每个房间中下标在[from, to)的成员建立连接并进入房间，等待服务器全部响应
+     */
+    private void setup(int from, int to) throws IOException, InterruptedException {
+        setupLatch = new CountDownLatch(rooms * (to - from));
+        for (int room = 0; room < rooms; room++) {
+            for (int member = from; member < to; member++) {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+                channel.socket().setTcpNoDelay(true);
+                LoadEventLoop loop = loops[connections.size() % loops.length];
+                LoadConnection conn = new LoadConnection(this, loop, channel, room, member == 0);
+                connections.add(conn);
+                loop.register(conn);
+            }
+        }
+
+        if (!setupLatch.await(60, TimeUnit.SECONDS)) {
+            throw new IOException("timeout waiting for " + setupLatch.getCount() + " connections to enter rooms");
+        }
+    }
+
+    private void report() throws InterruptedException {
+        long lastSent = 0;
+        long lastReceived = 0;
+        long lastNanos = System.nanoTime();
+        while (System.nanoTime() < sendEndNanos) {
+            Thread.sleep(1000);
+            long now = System.nanoTime();
+            long totalSent = 0;
+            for (LoadEventLoop loop : loops) {
+                totalSent += loop.getSentTotal();
+            }
+            long receivedTotal = totalReceived.get();
+            double seconds = (now - lastNanos) / 1e9;
+            logger.info((now < measureStartNanos ? "[warmup] " : "")
+                    + "sent/s=" + (long) ((totalSent - lastSent) / seconds)
+                    + ", received/s=" + (long) ((receivedTotal - lastReceived) / seconds)
+                    + ", errors=" + errors.get() + ", disconnects=" + disconnects.get()
+                    + ", latency p50=" + TimeUnit.NANOSECONDS.toMicros(latency().getPercentile(50))
+                    + "us p99=" + TimeUnit.NANOSECONDS.toMicros(latency().getPercentile(99)) + "us");
+            lastSent = totalSent;
+            lastReceived = receivedTotal;
+            lastNanos = now;
+        }
+
+        // 停止发送后等待还在路上的消息
+        long drainUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        long before = -1;
+        while (System.nanoTime() < drainUntil && before != received.get()) {
+            before = received.get();
+            Thread.sleep(200);
+        }
+
+        double seconds = durationSeconds;
+        logger.info("==== result ====");
+        logger.info("connections=" + connections.size() + ", rooms=" + rooms + ", roomSize=" + roomSize
+                + ", codec=" + codec.name());
+        logger.info("sent=" + sent.get() + " (" + (long) (sent.get() / seconds) + "/s), delivered="
+                + received.get() + " (" + (long) (received.get() / seconds) + "/s), fan-out="
+                + (sent.get() == 0 ? 0 : received.get() / sent.get()) + ", expected fan-out=" + roomSize);
+        logger.info("churn=" + churnOps.get() + ", errors=" + errors.get() + ", disconnects=" + disconnects.get());
+        logger.info("latency: " + latency());
+    }
+
+    /**
+     * 合并各事件循环的延迟直方图
+     */
+    private LatencyHistogram latency() {
+        LatencyHistogram merged = new LatencyHistogram();
+        for (LoadEventLoop loop : loops) {
+            merged.add(loop.getLatency());
+        }
+
+        return merged;
+    }
+
+    void entered() {
+        setupLatch.countDown();
+    }
+
+    /**
+     * 生成一条带发送时间的聊天消息，长度补齐到msgSize
+     */
+    String newChatMsg(long sendNanos) {
+        StringBuilder sb = new StringBuilder(msgSize + 24);
+        sb.append(TIMESTAMP_PREFIX).append(sendNanos).append(' ');
+        while (sb.length() < msgSize) {
+            sb.append('x');
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * 解析消息中的发送时间，不是压测消息时返回-1
+     */
+    static long parseSendNanos(String msg) {
+        if (msg == null || !msg.startsWith(TIMESTAMP_PREFIX)) {
+            return -1;
+        }
+
+        int end = msg.indexOf(' ', TIMESTAMP_PREFIX.length());
+        try {
+            return Long.parseLong(end < 0 ? msg.substring(TIMESTAMP_PREFIX.length())
+                    : msg.substring(TIMESTAMP_PREFIX.length(), end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    String roomName(int room) {
+        return roomPrefix + room;
+    }
+
+    MsgCodec getCodec() {
+        return codec;
+    }
+
+    int getMaxFrameLength() {
+        return maxFrameLength;
+    }
+
+    long getSendStartNanos() {
+        return sendStartNanos;
+    }
+
+    long getMeasureStartNanos() {
+        return measureStartNanos;
+    }
+
+    long getSendEndNanos() {
+        return sendEndNanos;
+    }
+}
@@ -0,0 +1,37 @@
+package com.lucky.main;
+
+import com.lucky.load.LoadGenerator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * 启动压测客户端，先读取load.properties，再用命令行中的key=value覆盖，
+ * 例如: rooms=100 roomSize=50 rate=5000 duration=60
+ */
+public class LoadGeneratorStart {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Properties properties = new Properties();
+        InputStream is = LoadGeneratorStart.class.getResourceAsStream("/load.properties");
+        if (is != null) {
+            try {
+                properties.load(is);
+            } finally {
+                is.close();
+            }
+        }
+
+        for (String arg : args) {
+            int index = arg.indexOf('=');
+            if (index <= 0) {
+                System.err.println("ignore argument " + arg + ", expected key=value");
+                continue;
+            }
+            properties.setProperty(arg.substring(0, index).trim(), arg.substring(index + 1).trim());
+        }
+
+        new LoadGenerator(properties).run();
+    }
+}
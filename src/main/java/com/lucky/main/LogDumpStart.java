@@ -0,0 +1,26 @@
+package com.lucky.main;
+
+import com.lucky.bean.ChatMsg;
+import com.lucky.store.LogReader;
+import com.lucky.store.LogRecordHandler;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * 按写入顺序打印消息日志中的所有消息，参数为日志目录
+ */
+public class LogDumpStart {
+
+    public static void main(String[] args) throws IOException {
+        File dir = new File(args.length > 0 ? args[0] : "data/log");
+        long count = new LogReader(dir).read(new LogRecordHandler() {
+            @Override
+            public void onRecord(String roomName, ChatMsg chatMsg) {
+                System.out.println("[" + roomName + "] #" + chatMsg.getSeq() + " " + chatMsg.getDate().getTime()
+                        + " " + chatMsg.getUser() + ": " + chatMsg.getMsg());
+            }
+        });
+        System.out.println(count + " messages");
+    }
+}
@@ -2,10 +2,24 @@ package com.lucky.main;
 
 import com.lucky.Server;
 
+import java.util.Properties;
+
 public class ServerStart {
 
+    /**
+     * 命令行中的key=value覆盖server.properties，例如在同一台机器上启动集群的多个节点:
+     * port=9022 cluster.node=b
+     */
     public static void main(String[] args) {
-        Server server = new Server();
+        Properties overrides = new Properties();
+        for (String arg : args) {
+            int index = arg.indexOf('=');
+            if (index > 0) {
+                overrides.setProperty(arg.substring(0, index).trim(), arg.substring(index + 1).trim());
+            }
+        }
+
+        Server server = new Server(overrides);
         server.start();
     }
 }
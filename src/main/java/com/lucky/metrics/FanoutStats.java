@@ -0,0 +1,110 @@
+package com.lucky.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 聊天消息分发的统计：编码次数、送达次数，以及(开启时)分发线程上每条消息的内存分配字节数，
+ * 用来验证消息只编码一次、单条消息的分配量不随房间人数增长
+ */
+public class FanoutStats {
+
+    private boolean allocationEnabled;
+    private ThreadMXBean threadBean;
+    private AtomicLong messages = new AtomicLong(0);       // 分发的消息数
+    private AtomicLong encodes = new AtomicLong(0);        // 序列化次数
+    private AtomicLong encodedBytes = new AtomicLong(0);   // 序列化产生的帧字节数
+    private AtomicLong deliveries = new AtomicLong(0);     // 写给各个成员的次数
+    private AtomicLong allocatedBytes = new AtomicLong(0); // 分发线程上的内存分配字节数
+    private AtomicLong maxAllocatedBytes = new AtomicLong(0);
+
+    public FanoutStats(boolean allocationEnabled) {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (allocationEnabled && bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+            if (sunBean.isThreadAllocatedMemorySupported()) {
+                sunBean.setThreadAllocatedMemoryEnabled(true);
+                this.threadBean = bean;
+                this.allocationEnabled = true;
+            }
+        }
+    }
+
+    /**
+     * 当前线程到目前为止分配的字节数，未开启统计时返回-1
+     */
+    public long currentThreadAllocatedBytes() {
+        if (!allocationEnabled) {
+            return -1;
+        }
+
+        return ((com.sun.management.ThreadMXBean) threadBean)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    public void recordEncode(int frameLength) {
+        encodes.incrementAndGet();
+        encodedBytes.addAndGet(frameLength);
+    }
+
+    /**
+     * 记录一次分发，allocatedBefore为分发开始前currentThreadAllocatedBytes的值
+     */
+    public void recordFanout(int recipients, long allocatedBefore) {
+        messages.incrementAndGet();
+        deliveries.addAndGet(recipients);
+        if (allocatedBefore < 0) {
+            return;
+        }
+
+        long allocated = currentThreadAllocatedBytes() - allocatedBefore;
+        allocatedBytes.addAndGet(allocated);
+        long max;
+        while (allocated > (max = maxAllocatedBytes.get())) {
+            if (maxAllocatedBytes.compareAndSet(max, allocated)) {
+                break;
+            }
+        }
+    }
+
+    public long getMessages() {
+        return messages.get();
+    }
+
+    public long getEncodes() {
+        return encodes.get();
+    }
+
+    public long getEncodedBytes() {
+        return encodedBytes.get();
+    }
+
+    public long getDeliveries() {
+        return deliveries.get();
+    }
+
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    public long getMaxAllocatedBytes() {
+        return maxAllocatedBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        long count = messages.get();
+        StringBuilder sb = new StringBuilder();
+        sb.append("messages=").append(count)
+                .append(", encodes=").append(encodes.get())
+                .append(", encodedBytes=").append(encodedBytes.get())
+                .append(", deliveries=").append(deliveries.get());
+        if (allocationEnabled && count > 0) {
+            sb.append(", allocatedBytes/msg=").append(allocatedBytes.get() / count)
+                    .append(", maxAllocatedBytes/msg=").append(maxAllocatedBytes.get());
+        }
+
+        return sb.toString();
+    }
+}
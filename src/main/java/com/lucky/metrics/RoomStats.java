@@ -0,0 +1,51 @@
+package com.lucky.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 单个房间的消息统计。分发线程只做LongAdder累加，不加锁；
+ * 每秒由ServerMetrics的定时任务根据两次累计值之差计算速率
+ */
+public class RoomStats {
+
+    private final LongAdder messages = new LongAdder();  // 分发的消息数
+    private final LongAdder bytes = new LongAdder();     // 写给所有成员的字节数
+    private long lastMessages;
+    private long lastBytes;
+    private volatile double messagesPerSec;
+    private volatile double bytesPerSec;
+
+    public void record(long frameBytes) {
+        messages.increment();
+        bytes.add(frameBytes);
+    }
+
+    /**
+     * 更新速率，只由定时任务调用
+     */
+    void tick(long elapsedNanos) {
+        long currentMessages = messages.sum();
+        long currentBytes = bytes.sum();
+        double seconds = elapsedNanos / 1e9;
+        messagesPerSec = (currentMessages - lastMessages) / seconds;
+        bytesPerSec = (currentBytes - lastBytes) / seconds;
+        lastMessages = currentMessages;
+        lastBytes = currentBytes;
+    }
+
+    public long getMessages() {
+        return messages.sum();
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    public double getMessagesPerSec() {
+        return messagesPerSec;
+    }
+
+    public double getBytesPerSec() {
+        return bytesPerSec;
+    }
+}
@@ -0,0 +1,374 @@
+package com.lucky.metrics;
+
+import com.google.gson.Gson;
+import com.lucky.bean.MetricsSnapshot;
+import com.lucky.buffer.BufferPool;
+import com.lucky.net.Connection;
+import com.lucky.net.Heartbeats;
+import com.lucky.net.OutboundQueue;
+import com.lucky.net.RateLimiter;
+import com.lucky.room.ChatRoom;
+import com.lucky.room.RoomRegistry;
+import org.apache.log4j.Logger;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 服务器指标。热路径上只有LongAdder累加与直方图的原子计数，不加锁；
+ * 房间速率由每秒一次的定时任务计算，连接积压只在生成快照时遍历读取。
+ * 通过JMX与管理请求(MsgType.METRICS)输出快照，用来定位热点房间与慢消费者
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+
+    private static final Logger logger = Logger.getLogger(ServerMetrics.class);
+    private static final String OBJECT_NAME = "com.lucky:type=ServerMetrics";
+
+    private final RoomRegistry registry;
+    private final Collection<Connection> connections;
+    private final BufferPool bufferPool;
+    private final Heartbeats heartbeats;
+    private final int topN;  // 快照中热点房间与慢消费者的个数
+    private final LongAdder acceptedConnects = new LongAdder();
+    private final LongAdder rejectedConnects = new LongAdder();
+    private final LongAdder decodeErrors = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder deliveries = new LongAdder();
+    private final LongAdder writeCalls = new LongAdder();
+    private final LongAdder framesWritten = new LongAdder();
+    private final LongAdder throttledByConnection = new LongAdder();
+    private final LongAdder throttledByUser = new LongAdder();
+    private final LongAdder throttledByRoom = new LongAdder();
+    private long lastWriteCalls;
+    private volatile double writeCallsPerSec;
+    private final LatencyHistogram fanoutLatency = new LatencyHistogram();
+    private final Gson gson = new Gson();
+    private ScheduledExecutorService ticker;
+    private long lastTick;
+
+    public ServerMetrics(RoomRegistry registry, Collection<Connection> connections, BufferPool bufferPool,
+                         Heartbeats heartbeats, int topN) {
+        this.registry = registry;
+        this.connections = connections;
+        this.bufferPool = bufferPool;
+        this.heartbeats = heartbeats;
+        this.topN = topN;
+    }
+
+    /**
+     * 启动速率计算的定时任务，并注册到JMX
+     */
+    public void start() {
+        lastTick = System.nanoTime();
+        ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "metrics-ticker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        ticker.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (Exception e) {
+            logger.info("register metrics mbean failed: " + e.getMessage());
+        }
+    }
+
+    public void close() {
+        if (ticker != null) {
+            ticker.shutdownNow();
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch (Exception e) {
+            // 没有注册成功时忽略
+        }
+    }
+
+    public void recordAccepted() {
+        acceptedConnects.increment();
+    }
+
+    public void recordRejected() {
+        rejectedConnects.increment();
+    }
+
+    public void recordDecodeError() {
+        decodeErrors.increment();
+    }
+
+    /**
+     * 记录一次分发，bytes为写给所有成员的字节数之和
+     */
+    public void recordFanout(ChatRoom room, int recipients, long bytes, long elapsedNanos) {
+        messages.increment();
+        deliveries.add(recipients);
+        room.getStats().record(bytes);
+        fanoutLatency.record(elapsedNanos);
+    }
+
+    /**
+     * 记录一次写socket，frames为这次合并写出的帧数
+     */
+    public void recordWrite(int frames) {
+        writeCalls.increment();
+        framesWritten.add(frames);
+    }
+
+    /**
+     * 记录一次被限流拒绝的消息
+     */
+    public void recordThrottled(RateLimiter.Scope scope) {
+        switch (scope) {
+            case CONNECTION:
+                throttledByConnection.increment();
+                break;
+            case USER:
+                throttledByUser.increment();
+                break;
+            default:
+                throttledByRoom.increment();
+        }
+    }
+
+    public MetricsSnapshot snapshot() {
+        MetricsSnapshot snapshot = new MetricsSnapshot();
+        snapshot.setTime(System.currentTimeMillis());
+        snapshot.setConnections(connections.size());
+        snapshot.setAcceptedConnects(acceptedConnects.sum());
+        snapshot.setRejectedConnects(rejectedConnects.sum());
+        snapshot.setDecodeErrors(decodeErrors.sum());
+        snapshot.setMessages(messages.sum());
+        snapshot.setDeliveries(deliveries.sum());
+        snapshot.setWriteCalls(writeCalls.sum());
+        snapshot.setFramesWritten(framesWritten.sum());
+        snapshot.setWriteCallsPerSec(writeCallsPerSec);
+        snapshot.setThrottledByConnection(throttledByConnection.sum());
+        snapshot.setThrottledByUser(throttledByUser.sum());
+        snapshot.setThrottledByRoom(throttledByRoom.sum());
+        snapshot.setPings(heartbeats.getPings());
+        snapshot.setIdleClosed(heartbeats.getReaped());
+        snapshot.setFanout(new MetricsSnapshot.Latency(fanoutLatency.getCount(),
+                micros(fanoutLatency.getMean()), micros(fanoutLatency.getPercentile(50)),
+                micros(fanoutLatency.getPercentile(99)), micros(fanoutLatency.getPercentile(99.9)),
+                micros(fanoutLatency.getMax())));
+        snapshot.setBufferPool(new MetricsSnapshot.BufferPoolStat(bufferPool.isDirect(), bufferPool.getLeases(),
+                bufferPool.getHits(), bufferPool.getUnpooled(), bufferPool.getLeased(), bufferPool.getLeasedBytes(),
+                bufferPool.getPooledBytes(), bufferPool.getCreatedBytes(), bufferPool.utilization(),
+                bufferPool.getLeaks()));
+
+        List<MetricsSnapshot.RoomStat> rooms = new ArrayList<MetricsSnapshot.RoomStat>();
+        for (ChatRoom room : registry.getRooms()) {
+            RoomStats stats = room.getStats();
+            rooms.add(new MetricsSnapshot.RoomStat(room.getName(), room.getMemberCount(), stats.getMessages(),
+                    stats.getMessagesPerSec(), stats.getBytesPerSec()));
+        }
+        Collections.sort(rooms, new Comparator<MetricsSnapshot.RoomStat>() {
+            @Override
+            public int compare(MetricsSnapshot.RoomStat o1, MetricsSnapshot.RoomStat o2) {
+                return Double.compare(o2.getMessagesPerSec(), o1.getMessagesPerSec());
+            }
+        });
+        snapshot.setHotRooms(rooms.subList(0, Math.min(topN, rooms.size())));
+
+        long backlog = 0;
+        long backlogBytes = 0;
+        List<MetricsSnapshot.ConsumerStat> consumers = new ArrayList<MetricsSnapshot.ConsumerStat>();
+        for (Connection conn : connections) {
+            OutboundQueue outbound = conn.getOutbound();
+            if (outbound == null) {
+                continue;
+            }
+
+            int size = outbound.size();
+            long bytes = outbound.bytes();
+            backlog += size;
+            backlogBytes += bytes;
+            if (size > 0 || outbound.dropped() > 0) {
+                consumers.add(new MetricsSnapshot.ConsumerStat("user-" + conn.getId(), conn.getChatRoom(),
+                        size, bytes, outbound.dropped()));
+            }
+        }
+        Collections.sort(consumers, new Comparator<MetricsSnapshot.ConsumerStat>() {
+            @Override
+            public int compare(MetricsSnapshot.ConsumerStat o1, MetricsSnapshot.ConsumerStat o2) {
+                return Integer.compare(o2.getBacklog(), o1.getBacklog());
+            }
+        });
+        snapshot.setOutboundBacklog(backlog);
+        snapshot.setOutboundBacklogBytes(backlogBytes);
+        snapshot.setSlowConsumers(consumers.subList(0, Math.min(topN, consumers.size())));
+        return snapshot;
+    }
+
+    public String snapshotJson() {
+        return gson.toJson(snapshot());
+    }
+
+    @Override
+    public long getConnections() {
+        return connections.size();
+    }
+
+    @Override
+    public long getAcceptedConnects() {
+        return acceptedConnects.sum();
+    }
+
+    @Override
+    public long getRejectedConnects() {
+        return rejectedConnects.sum();
+    }
+
+    @Override
+    public long getDecodeErrors() {
+        return decodeErrors.sum();
+    }
+
+    @Override
+    public long getMessages() {
+        return messages.sum();
+    }
+
+    @Override
+    public long getDeliveries() {
+        return deliveries.sum();
+    }
+
+    @Override
+    public long getWriteCalls() {
+        return writeCalls.sum();
+    }
+
+    @Override
+    public double getWriteCallsPerSec() {
+        return writeCallsPerSec;
+    }
+
+    @Override
+    public double getFramesPerWrite() {
+        long calls = writeCalls.sum();
+        return calls == 0 ? 0 : (double) framesWritten.sum() / calls;
+    }
+
+    @Override
+    public long getThrottledMessages() {
+        return throttledByConnection.sum() + throttledByUser.sum() + throttledByRoom.sum();
+    }
+
+    @Override
+    public long getIdleClosed() {
+        return heartbeats.getReaped();
+    }
+
+    @Override
+    public long getFanoutP50Micros() {
+        return micros(fanoutLatency.getPercentile(50));
+    }
+
+    @Override
+    public long getFanoutP99Micros() {
+        return micros(fanoutLatency.getPercentile(99));
+    }
+
+    @Override
+    public long getFanoutP999Micros() {
+        return micros(fanoutLatency.getPercentile(99.9));
+    }
+
+    @Override
+    public long getOutboundBacklog() {
+        long backlog = 0;
+        for (Connection conn : connections) {
+            OutboundQueue outbound = conn.getOutbound();
+            if (outbound != null) {
+                backlog += outbound.size();
+            }
+        }
+
+        return backlog;
+    }
+
+    @Override
+    public long getBufferLeasedBytes() {
+        return bufferPool.getLeasedBytes();
+    }
+
+    @Override
+    public long getBufferPooledBytes() {
+        return bufferPool.getPooledBytes();
+    }
+
+    @Override
+    public double getBufferPoolUtilization() {
+        return bufferPool.utilization();
+    }
+
+    @Override
+    public long getBufferLeaks() {
+        return bufferPool.getLeaks();
+    }
+
+    @Override
+    public String[] getHotRooms() {
+        return toStrings(snapshot().getHotRooms());
+    }
+
+    @Override
+    public String[] getSlowConsumers() {
+        return toStrings(snapshot().getSlowConsumers());
+    }
+
+    @Override
+    public String getSnapshot() {
+        return snapshotJson();
+    }
+
+    @Override
+    public void resetFanoutLatency() {
+        fanoutLatency.reset();
+    }
+
+    private void tick() {
+        long now = System.nanoTime();
+        long elapsed = now - lastTick;
+        lastTick = now;
+        long calls = writeCalls.sum();
+        writeCallsPerSec = elapsed <= 0 ? 0 : (calls - lastWriteCalls) * 1e9 / elapsed;
+        lastWriteCalls = calls;
+        for (ChatRoom room : registry.getRooms()) {
+            room.getStats().tick(elapsed);
+        }
+    }
+
+    private static String[] toStrings(List<?> list) {
+        String[] result = new String[list.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = list.get(i).toString();
+        }
+
+        return result;
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
@@ -0,0 +1,83 @@
+package com.lucky.metrics;
+
+/**
+ * 通过JMX暴露的服务器指标，ObjectName为 com.lucky:type=ServerMetrics
+ */
+public interface ServerMetricsMBean {
+
+    long getConnections();
+
+    long getAcceptedConnects();
+
+    long getRejectedConnects();
+
+    long getDecodeErrors();
+
+    long getMessages();
+
+    long getDeliveries();
+
+    /**
+     * 累计写socket的次数，合并写出时一次写出多个帧
+     */
+    long getWriteCalls();
+
+    double getWriteCallsPerSec();
+
+    /**
+     * 平均每次写socket写出的帧数
+     */
+    double getFramesPerWrite();
+
+    /**
+     * 累计被限流拒绝的聊天消息与私聊，各级别的数量见快照
+     */
+    long getThrottledMessages();
+
+    /**
+     * 累计因为空闲且不响应心跳被关闭的连接
+     */
+    long getIdleClosed();
+
+    long getFanoutP50Micros();
+
+    long getFanoutP99Micros();
+
+    long getFanoutP999Micros();
+
+    long getOutboundBacklog();
+
+    /**
+     * 缓冲区池当前借出的字节数
+     */
+    long getBufferLeasedBytes();
+
+    /**
+     * 缓冲区池空闲队列中的字节数
+     */
+    long getBufferPooledBytes();
+
+    double getBufferPoolUtilization();
+
+    /**
+     * 泄漏检测发现的未释放缓冲区数，未开启泄漏检测时为0
+     */
+    long getBufferLeaks();
+
+    /**
+     * 每秒消息数最多的房间
+     */
+    String[] getHotRooms();
+
+    /**
+     * 待发送帧数最多的连接
+     */
+    String[] getSlowConsumers();
+
+    /**
+     * 完整快照，json格式
+     */
+    String getSnapshot();
+
+    void resetFanoutLatency();
+}
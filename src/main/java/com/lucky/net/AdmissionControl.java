@@ -0,0 +1,50 @@
+package com.lucky.net;
+
+/**
+ * accept时的准入控制：连接数上限，以及按令牌桶限制每秒接受的新连接数。
+ * 超出时由服务器立即回复繁忙并关闭连接，回复中带上建议的重试等待毫秒数，
+ * 客户端据此退避，服务器重启后的重连风暴不会一次性压垮accept线程与房间注册表
+ */
+public class AdmissionControl {
+
+    private final int maxConnections;     // 最大连接数，0表示不限制
+    private final double acceptRate;      // 每秒接受的新连接数，0表示不限制
+    private final double acceptBurst;     // 令牌桶容量，允许的瞬时突发连接数
+    private final long retryAfterMillis;  // 建议的最小重试等待时间
+    private double tokens;
+    private long lastRefillNanos;
+
+    public AdmissionControl(int maxConnections, double acceptRate, double acceptBurst, long retryAfterMillis) {
+        this.maxConnections = maxConnections;
+        this.acceptRate = acceptRate;
+        this.acceptBurst = Math.max(1, acceptBurst);
+        this.retryAfterMillis = retryAfterMillis;
+        this.tokens = this.acceptBurst;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * 判断是否接受一个新连接，返回0表示接受，否则为建议客户端等待的毫秒数
+     *
+     * @param connections 当前的连接数
+     */
+    public synchronized long admit(int connections) {
+        if (maxConnections > 0 && connections >= maxConnections) {
+            return retryAfterMillis;
+        }
+        if (acceptRate <= 0) {
+            return 0;
+        }
+
+        long now = System.nanoTime();
+        tokens = Math.min(acceptBurst, tokens + (now - lastRefillNanos) / 1e9 * acceptRate);
+        lastRefillNanos = now;
+        if (tokens >= 1) {
+            tokens--;
+            return 0;
+        }
+
+        // 等到下一个令牌可用的时间，不小于配置的最小等待时间
+        return Math.max(retryAfterMillis, (long) Math.ceil((1 - tokens) / acceptRate * 1000));
+    }
+}
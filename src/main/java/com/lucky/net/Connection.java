@@ -0,0 +1,38 @@
+package com.lucky.net;
+
+import com.lucky.codec.MsgCodec;
+import com.lucky.codec.SharedFrame;
+
+/**
+ * 服务器端的一个客户端连接，屏蔽阻塞线程模型与NIO模型之间的差异
+ */
+public interface Connection {
+
+    long getId();
+
+    String getChatRoom();
+
+    void setChatRoom(String chatRoom);
+
+    /**
+     * 握手时选定的聊天消息与房间列表编码方式，默认为json
+     */
+    MsgCodec getCodec();
+
+    void setCodec(MsgCodec codec);
+
+    void sendMsgWithType(char type, char status, String data);
+
+    /**
+     * 写出一个已编码的帧，同一个帧可能同时被写给多个连接。
+     * 不接管调用方的引用，需要在返回后继续持有该帧时(如放入待发送队列)自己retain
+     */
+    void sendFrame(SharedFrame frame);
+
+    /**
+     * 待发送队列，用于统计积压
+     */
+    OutboundQueue getOutbound();
+
+    void close();
+}
@@ -0,0 +1,46 @@
+package com.lucky.net;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 写出合并策略。连接把待发送队列中积压的帧合并为一次写出(nio为gathering write，bio拷贝到一个缓冲区后一次write)，
+ * 每批最多maxBatchMessages个帧、maxBatchBytes字节；maxDelay为延迟预算，
+ * 队列中的帧不足一批时最多再等待这么久以凑满一批，为0时有数据就立即写出
+ */
+public class FlushPolicy {
+
+    private final int maxBatchMessages;
+    private final int maxBatchBytes;
+    private final long maxDelayNanos;
+
+    public FlushPolicy(int maxBatchMessages, int maxBatchBytes, long maxDelayMicros) {
+        this.maxBatchMessages = Math.max(1, maxBatchMessages);
+        this.maxBatchBytes = Math.max(1, maxBatchBytes);
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, maxDelayMicros));
+    }
+
+    public int getMaxBatchMessages() {
+        return maxBatchMessages;
+    }
+
+    public int getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+
+    public long getMaxDelayNanos() {
+        return maxDelayNanos;
+    }
+
+    /**
+     * 没有延迟预算，有数据就立即写出
+     */
+    public boolean isImmediate() {
+        return maxDelayNanos == 0;
+    }
+
+    @Override
+    public String toString() {
+        return "maxBatchMessages=" + maxBatchMessages + ", maxBatchBytes=" + maxBatchBytes
+                + ", maxDelayUs=" + TimeUnit.NANOSECONDS.toMicros(maxDelayNanos);
+    }
+}
@@ -0,0 +1,155 @@
+package com.lucky.net;
+
+import com.lucky.constant.MsgType;
+import com.lucky.constant.ResponseStatus;
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 连接的心跳与空闲回收。每个连接只记下最后一次收到数据的时间，收到数据时不做任何定时操作；
+ * 时间轮上每个连接同时只有一个检查任务：空闲超过interval时发送PING，之后timeout内仍然没有收到任何数据
+ * (包括PONG)则认为对端已经失效，关闭连接，由连接原有的断开流程把它从房间中移除。
+ * TCP对端宕机或网络中断时不会收到FIN，只靠写失败发现不了空闲的连接
+ */
+public class Heartbeats {
+
+    private static final Logger logger = Logger.getLogger(Heartbeats.class);
+
+    private final TimingWheel wheel;
+    private final long intervalNanos;
+    private final long timeoutNanos;
+    private final ConcurrentHashMap<Long, State> states = new ConcurrentHashMap<Long, State>();
+    private final LongAdder pings = new LongAdder();
+    private final LongAdder reaped = new LongAdder();
+
+    /**
+     * @param intervalMillis 空闲多久后发送PING，0表示不开启
+     * @param timeoutMillis  发送PING后等待响应的时间
+     */
+    public Heartbeats(long intervalMillis, long timeoutMillis, long tickMillis, int wheelSize) {
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, timeoutMillis));
+        this.wheel = intervalMillis > 0 ? new TimingWheel("heartbeat-wheel", tickMillis, wheelSize) : null;
+    }
+
+    public boolean isEnabled() {
+        return wheel != null;
+    }
+
+    public void start() {
+        if (wheel != null) {
+            wheel.start();
+            logger.info("heartbeat interval=" + TimeUnit.NANOSECONDS.toMillis(intervalNanos) + "ms, timeout="
+                    + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + "ms");
+        }
+    }
+
+    public void close() {
+        if (wheel != null) {
+            wheel.stop();
+        }
+    }
+
+    public void register(Connection conn) {
+        if (wheel == null) {
+            return;
+        }
+
+        State state = new State(conn);
+        states.put(conn.getId(), state);
+        state.schedule(intervalNanos);
+    }
+
+    public void unregister(Connection conn) {
+        if (wheel == null) {
+            return;
+        }
+
+        State state = states.remove(conn.getId());
+        if (state != null) {
+            state.cancel();
+        }
+    }
+
+    /**
+     * 收到连接的任意数据，只更新时间
+     */
+    public void onRead(Connection conn) {
+        if (wheel == null) {
+            return;
+        }
+
+        State state = states.get(conn.getId());
+        if (state != null) {
+            state.lastReadNanos = System.nanoTime();
+        }
+    }
+
+    public long getPings() {
+        return pings.sum();
+    }
+
+    public long getReaped() {
+        return reaped.sum();
+    }
+
+    private final class State implements Runnable {
+
+        private final Connection conn;
+        private volatile long lastReadNanos = System.nanoTime();
+        private volatile TimingWheel.Timeout timeout;
+        private long pingNanos;  // 发出PING的时间，0表示没有等待中的PING，只在时间轮线程中访问
+
+        private State(Connection conn) {
+            this.conn = conn;
+        }
+
+        private void schedule(long delayNanos) {
+            timeout = wheel.schedule(this, delayNanos);
+        }
+
+        private void cancel() {
+            TimingWheel.Timeout current = timeout;
+            if (current != null) {
+                current.cancel();
+            }
+        }
+
+        /**
+         * 检查任务，在时间轮线程中执行
+         */
+        @Override
+        public void run() {
+            if (states.get(conn.getId()) != this) {  // 已经断开
+                return;
+            }
+
+            long now = System.nanoTime();
+            long lastRead = lastReadNanos;
+            if (pingNanos != 0 && lastRead - pingNanos > 0) {  // 发出PING之后收到过数据
+                pingNanos = 0;
+            }
+            long idle = now - lastRead;
+            if (idle < intervalNanos) {  // 期间收到过数据，从最后一次收到数据算起重新计时
+                schedule(intervalNanos - idle);
+                return;
+            }
+            if (pingNanos == 0) {
+                pingNanos = now;
+                pings.increment();
+                conn.sendMsgWithType(MsgType.PING, ResponseStatus.OK, String.valueOf(System.currentTimeMillis()));
+                schedule(timeoutNanos);
+                return;
+            }
+
+            reaped.increment();
+            logger.info("user-" + conn.getId() + " idle for " + TimeUnit.NANOSECONDS.toMillis(idle)
+                    + " ms without answering ping, close it");
+            states.remove(conn.getId(), this);
+            conn.close();
+        }
+    }
+}
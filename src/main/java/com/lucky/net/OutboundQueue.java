@@ -0,0 +1,299 @@
+package com.lucky.net;
+
+import com.lucky.codec.SharedFrame;
+import com.lucky.constant.ErrorMsg;
+import com.lucky.constant.MsgType;
+import com.lucky.constant.ResponseStatus;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 每个连接的有界待发送队列，多个发送线程写入，由连接自己的写线程或事件循环取出写到socket。
+ * 使用数组实现的环形缓冲区，入队不产生额外对象；超过消息数或字节数阈值时按照SlowConsumerPolicy处理，
+ * 发送方永远不会因为某个慢客户端而阻塞。
+ * 入队时retain帧，丢弃时release；poll/take/drain取出的帧的引用转交给调用方，写出后由调用方release。
+ * 房间列表的响应与心跳放在单独的优先通道，总是先于聊天消息取出，
+ * 即使队列中积压了大量聊天消息，它们也不需要排在后面。
+ * 加入、退出、创建、切换房间的响应改变客户端的房间状态，必须与聊天消息保持顺序，
+ * 否则退出的响应会超过队列中该房间的聊天消息，客户端在退出后仍然收到该房间的消息
+ */
+public class OutboundQueue {
+
+    private static final int CONTROL_CAPACITY = 64;  // 优先通道的最大帧数，响应由请求触发，不需要太大
+
+    private final SharedFrame[] elements;
+    private final SharedFrame[] control = new SharedFrame[CONTROL_CAPACITY];  // 优先通道的环形缓冲区
+    private final long maxBytes;
+    private final SlowConsumerPolicy policy;
+    private final ReentrantLock lock = new ReentrantLock();  // 不使用synchronized，避免虚拟线程占住载体线程
+    private final Condition notEmpty = lock.newCondition();
+    private int head;      // 队首下标
+    private int size;
+    private long bytes;    // 队列中帧的总字节数
+    private int controlHead;
+    private int controlSize;
+    private long controlBytes;
+    private long dropped;  // 因为慢消费被丢弃的帧数
+    private boolean closed;
+
+    public OutboundQueue(int maxMessages, long maxBytes, SlowConsumerPolicy policy) {
+        this.elements = new SharedFrame[Math.max(1, maxMessages)];
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+    }
+
+    /**
+     * 放入一个待发送的帧
+     * @return false表示超过阈值且策略为DISCONNECT，调用方需要断开连接
+     */
+    public boolean offer(SharedFrame frame) {
+        lock.lock();
+        try {
+            if (closed) {
+                return true;
+            }
+
+            if (isControl(frame)) {
+                if (controlSize == control.length) {  // 不断请求房间列表却不读取响应
+                    if (policy == SlowConsumerPolicy.DISCONNECT) {
+                        return false;
+                    }
+                    removeFirstControl().release();
+                    dropped++;
+                }
+                addLastControl(frame.retain());
+                notEmpty.signal();
+                return true;
+            }
+
+            if (isFull(frame)) {
+                if (policy == SlowConsumerPolicy.DISCONNECT) {
+                    return false;
+                }
+                if (policy == SlowConsumerPolicy.COALESCE) {
+                    coalesce();
+                }
+                while (size > 0 && isFull(frame)) {  // DROP_OLDEST，COALESCE后仍然放不下时也退化为丢弃最早的帧
+                    removeFirst().release();
+                    dropped++;
+                }
+            }
+
+            addLast(frame.retain());
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 非阻塞地取出队首的帧，队列为空时返回null，写出后需要release
+     */
+    public SharedFrame poll() {
+        lock.lock();
+        try {
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 阻塞等待直到有帧可写，队列关闭后返回null，写出后需要release
+     */
+    public SharedFrame take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (isEmpty() && !closed) {
+                notEmpty.await();
+            }
+
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 队列为空时最多等待waitNanos再取出，小于0时一直等待，超时或队列关闭时返回0
+     */
+    public int drain(SharedFrame[] dst, int offset, long maxBytes, long waitNanos) throws InterruptedException {
+        lock.lock();
+        try {
+            while (isEmpty() && !closed && waitNanos != 0) {
+                if (waitNanos < 0) {
+                    notEmpty.await();
+                } else {
+                    waitNanos = Math.max(0, notEmpty.awaitNanos(waitNanos));
+                }
+            }
+
+            return drain(dst, offset, maxBytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 非阻塞地一次取出队首的多个帧放入dst[offset]开始的位置，最多取到dst放满或累计超过maxBytes(至少取一个)，
+     * 优先通道的帧在前。用于合并写出，返回取出的帧数，写出后需要release
+     */
+    public int drain(SharedFrame[] dst, int offset, long maxBytes) {
+        lock.lock();
+        try {
+            int count = 0;
+            long drainedBytes = 0;
+            while (!isEmpty() && offset + count < dst.length) {
+                SharedFrame frame = controlSize > 0 ? control[controlHead] : elements[head];
+                if (count > 0 && drainedBytes + frame.length() > maxBytes) {
+                    break;
+                }
+                dst[offset + count++] = next();
+                drainedBytes += frame.length();
+            }
+
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 关闭队列，丢弃所有未发送的帧并唤醒写线程
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            while (!isEmpty()) {
+                next().release();
+            }
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return size + controlSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long bytes() {
+        lock.lock();
+        try {
+            return bytes + controlBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long dropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 房间列表的响应与心跳走优先通道，它们不影响客户端的房间状态，提前发出不会打乱聊天消息的顺序
+     */
+    private static boolean isControl(SharedFrame frame) {
+        switch (frame.type()) {
+            case MsgType.LIST_ROOM:
+            case MsgType.PING:
+            case MsgType.PONG:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private boolean isEmpty() {
+        return size == 0 && controlSize == 0;
+    }
+
+    /**
+     * 取出下一个待发送的帧，优先通道优先，都为空时返回null
+     */
+    private SharedFrame next() {
+        if (controlSize > 0) {
+            return removeFirstControl();
+        }
+        return size == 0 ? null : removeFirst();
+    }
+
+    private boolean isFull(SharedFrame frame) {
+        return size == elements.length || (size > 0 && bytes + frame.length() > maxBytes);
+    }
+
+    /**
+     * 丢弃队列中所有聊天消息(保留其他请求的响应)，并在队尾追加一条丢弃提示
+     */
+    private void coalesce() {
+        int capacity = elements.length;
+        int kept = 0;
+        int removed = 0;
+        for (int i = 0; i < size; i++) {
+            SharedFrame frame = elements[(head + i) % capacity];
+            if (frame.type() == MsgType.CHAT && frame.status() == ResponseStatus.OK) {
+                bytes -= frame.length();
+                frame.release();
+                removed++;
+            } else {
+                elements[(head + kept++) % capacity] = frame;
+            }
+        }
+        for (int i = kept; i < size; i++) {
+            elements[(head + i) % capacity] = null;
+        }
+        size = kept;
+
+        if (removed == 0) {
+            return;
+        }
+
+        dropped += removed;
+        if (size < elements.length) {
+            addLast(SharedFrame.of(MsgType.CHAT, ResponseStatus.FAIL, ErrorMsg.MSG_DROPPED + ": " + removed));
+        }
+    }
+
+    private void addLast(SharedFrame frame) {
+        elements[(head + size) % elements.length] = frame;
+        size++;
+        bytes += frame.length();
+    }
+
+    private void addLastControl(SharedFrame frame) {
+        control[(controlHead + controlSize) % control.length] = frame;
+        controlSize++;
+        controlBytes += frame.length();
+    }
+
+    private SharedFrame removeFirstControl() {
+        SharedFrame frame = control[controlHead];
+        control[controlHead] = null;
+        controlHead = (controlHead + 1) % control.length;
+        controlSize--;
+        controlBytes -= frame.length();
+        return frame;
+    }
+
+    private SharedFrame removeFirst() {
+        SharedFrame frame = elements[head];
+        elements[head] = null;
+        head = (head + 1) % elements.length;
+        size--;
+        bytes -= frame.length();
+        return frame;
+    }
+}
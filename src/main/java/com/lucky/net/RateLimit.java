@@ -0,0 +1,39 @@
+package com.lucky.net;
+
+/**
+ * 一级令牌桶限流的配置：每秒补充rate个令牌，桶容量为burst。rate为0时不限制
+ */
+public class RateLimit {
+
+    private final double rate;
+    private final double burst;
+
+    public RateLimit(double rate, double burst) {
+        this.rate = Math.max(0, rate);
+        this.burst = Math.max(1, burst);
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    public double getBurst() {
+        return burst;
+    }
+
+    public boolean isEnabled() {
+        return rate > 0;
+    }
+
+    /**
+     * 新建一个装满令牌的桶，不限制时返回null
+     */
+    public TokenBucket newBucket() {
+        return isEnabled() ? new TokenBucket(this) : null;
+    }
+
+    @Override
+    public String toString() {
+        return isEnabled() ? rate + "/s, burst=" + burst : "unlimited";
+    }
+}
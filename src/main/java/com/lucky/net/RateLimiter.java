@@ -0,0 +1,89 @@
+package com.lucky.net;
+
+import com.lucky.constant.ErrorMsg;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 发送聊天消息的限流，依次检查连接、用户、房间三级令牌桶，任意一级没有令牌时拒绝。
+ * 连接的桶在断开时删除；用户的桶按用户名保存，会话恢复后沿用，重连不能绕过限制；
+ * 房间的桶由房间自己持有，随房间一起删除
+ */
+public class RateLimiter {
+
+    /**
+     * 触发限流的级别，对应回复给客户端的错误码
+     */
+    public enum Scope {
+        CONNECTION(ErrorMsg.RATE_LIMITED_CONNECTION),
+        USER(ErrorMsg.RATE_LIMITED_USER),
+        ROOM(ErrorMsg.RATE_LIMITED_ROOM);
+
+        private final String error;
+
+        Scope(String error) {
+            this.error = error;
+        }
+
+        public String getError() {
+            return error;
+        }
+    }
+
+    private final RateLimit connectionLimit;
+    private final RateLimit userLimit;
+    private final ConcurrentHashMap<Long, TokenBucket> connections = new ConcurrentHashMap<Long, TokenBucket>();
+    private final ConcurrentHashMap<String, TokenBucket> users = new ConcurrentHashMap<String, TokenBucket>();
+
+    public RateLimiter(RateLimit connectionLimit, RateLimit userLimit) {
+        this.connectionLimit = connectionLimit;
+        this.userLimit = userLimit;
+    }
+
+    /**
+     * 取一个令牌，返回null表示允许发送，否则为触发限流的级别。前面的级别已取走的令牌不退还
+     *
+     * @param room 房间的桶，私聊或房间不限流时为null
+     */
+    public Scope acquire(Connection conn, String userName, TokenBucket room) {
+        long now = System.nanoTime();
+        if (connectionLimit.isEnabled() && !bucket(connections, conn.getId(), connectionLimit).tryAcquire(now)) {
+            return Scope.CONNECTION;
+        }
+        if (userLimit.isEnabled() && !bucket(users, userName, userLimit).tryAcquire(now)) {
+            return Scope.USER;
+        }
+        if (room != null && !room.tryAcquire(now)) {
+            return Scope.ROOM;
+        }
+
+        return null;
+    }
+
+    /**
+     * 连接断开时删除它的桶
+     */
+    public void remove(Connection conn) {
+        connections.remove(conn.getId());
+    }
+
+    /**
+     * 用户不再在线(没有会话或会话过期)时删除它的桶
+     */
+    public void removeUser(String userName) {
+        users.remove(userName);
+    }
+
+    private static <K> TokenBucket bucket(ConcurrentHashMap<K, TokenBucket> buckets, K key, RateLimit limit) {
+        TokenBucket bucket = buckets.get(key);
+        if (bucket == null) {
+            TokenBucket created = limit.newBucket();
+            bucket = buckets.putIfAbsent(key, created);
+            if (bucket == null) {
+                bucket = created;
+            }
+        }
+
+        return bucket;
+    }
+}
@@ -0,0 +1,19 @@
+package com.lucky.net;
+
+/**
+ * 连接的待发送队列超过阈值时的处理策略
+ */
+public enum SlowConsumerPolicy {
+
+    DROP_OLDEST,  // 丢弃最早的消息
+    COALESCE,     // 丢弃队列中所有未发送的聊天消息，合并为一条丢弃提示
+    DISCONNECT;   // 断开连接
+
+    public static SlowConsumerPolicy parse(String value) {
+        if (value == null || "".equals(value.trim())) {
+            return DROP_OLDEST;
+        }
+
+        return valueOf(value.trim().toUpperCase().replace('-', '_'));
+    }
+}
@@ -0,0 +1,140 @@
+package com.lucky.net;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 哈希时间轮。一个后台线程每tick推进一格，定时任务按到期的tick放入对应的格子，
+ * 超过一圈的任务记下还需要转过的圈数。添加与取消都是O(1)：添加只放入无锁队列，由时间轮线程在下一格时放入格子；
+ * 取消只打标记，转到该格子时再移除。每一格只处理落在这一格的任务，与定时任务总数无关，
+ * 10万个连接的空闲检测只需要一个线程，不需要为每个连接创建定时器
+ */
+public class TimingWheel {
+
+    private final long tickNanos;
+    private final List<List<Timeout>> wheel;
+    private final int mask;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();  // 新添加、尚未放入格子的任务
+    private final long startNanos;
+    private final Thread worker;
+    private volatile boolean running;
+    private long tick;  // 已经推进的格数，只在时间轮线程中访问
+
+    /**
+     * @param wheelSize 格子数，向上取整为2的幂
+     */
+    public TimingWheel(String name, long tickMillis, int wheelSize) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.wheel = new ArrayList<List<Timeout>>(size);
+        for (int i = 0; i < size; i++) {
+            wheel.add(new ArrayList<Timeout>());
+        }
+        this.mask = size - 1;
+        this.startNanos = System.nanoTime();
+        this.worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, name);
+        this.worker.setDaemon(true);
+    }
+
+    public void start() {
+        running = true;
+        worker.start();
+    }
+
+    public void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    /**
+     * delayNanos之后在时间轮线程中执行task，精度为一格。task应当很快返回，不能阻塞
+     */
+    public Timeout schedule(Runnable task, long delayNanos) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - startNanos + Math.max(0, delayNanos));
+        pending.offer(timeout);
+        return timeout;
+    }
+
+    private void work() {
+        while (running) {
+            long sleepNanos = startNanos + (tick + 1) * tickNanos - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+            transferPending();
+            expire(wheel.get((int) (tick & mask)));
+            tick++;
+        }
+    }
+
+    /**
+     * 把新添加的任务放入到期的格子，已经过期的放入当前格子
+     */
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            long ticks = Math.max(timeout.deadlineNanos / tickNanos, tick);
+            timeout.rounds = (ticks - tick) / wheel.size();
+            wheel.get((int) (ticks & mask)).add(timeout);
+        }
+    }
+
+    private void expire(List<Timeout> bucket) {
+        int kept = 0;
+        int size = bucket.size();
+        for (int i = 0; i < size; i++) {
+            Timeout timeout = bucket.get(i);
+            if (timeout.cancelled) {
+                continue;
+            }
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+                bucket.set(kept++, timeout);
+                continue;
+            }
+            try {
+                timeout.task.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        // 执行期间添加的任务在pending中，不会放入当前格子
+        bucket.subList(kept, size).clear();
+    }
+
+    /**
+     * 已添加的定时任务，可以取消
+     */
+    public static final class Timeout {
+
+        private final Runnable task;
+        private final long deadlineNanos;  // 相对时间轮启动时间
+        private long rounds;               // 还需要转过的圈数，只在时间轮线程中访问
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadlineNanos) {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+}
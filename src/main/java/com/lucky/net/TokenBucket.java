@@ -0,0 +1,34 @@
+package com.lucky.net;
+
+/**
+ * 令牌桶。不使用定时器补充令牌，取令牌时按距离上次补充经过的时间一次补足，
+ * 每个桶只有剩余令牌数与上次补充的时间两个字段，配置由同一级别的所有桶共享，10万个连接也只占几MB
+ */
+public class TokenBucket {
+
+    private final RateLimit limit;
+    private double tokens;
+    private long lastRefillNanos;
+
+    TokenBucket(RateLimit limit) {
+        this.limit = limit;
+        this.tokens = limit.getBurst();
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * 取一个令牌，没有可用的令牌时返回false
+     */
+    public synchronized boolean tryAcquire(long nowNanos) {
+        if (nowNanos > lastRefillNanos) {
+            tokens = Math.min(limit.getBurst(), tokens + (nowNanos - lastRefillNanos) / 1e9 * limit.getRate());
+            lastRefillNanos = nowNanos;
+        }
+        if (tokens < 1) {
+            return false;
+        }
+
+        tokens--;
+        return true;
+    }
+}
@@ -0,0 +1,98 @@
+package com.lucky.net;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * 在线用户目录与成员关系索引。连接id -> 连接、用户名 -> 连接(私聊寻址)、连接id -> 所在的房间，
+ * 按单个用户O(1)查找，私聊不需要遍历房间。断开时只遍历该用户自己加入的房间，与房间总数无关
+ */
+public class UserDirectory {
+
+    private static final Function<Long, Set<String>> NEW_ROOM_SET = new Function<Long, Set<String>>() {
+        @Override
+        public Set<String> apply(Long id) {
+            return ConcurrentHashMap.newKeySet();
+        }
+    };
+
+    // 当前的所有连接，key为连接id
+    private final ConcurrentHashMap<Long, Connection> connections = new ConcurrentHashMap<Long, Connection>();
+    private final ConcurrentHashMap<String, Connection> byName = new ConcurrentHashMap<String, Connection>();
+    private final ConcurrentHashMap<Long, Set<String>> memberships = new ConcurrentHashMap<Long, Set<String>>();
+
+    public void register(Connection conn, String userName) {
+        connections.put(conn.getId(), conn);
+        byName.put(userName, conn);
+    }
+
+    /**
+     * 移除连接及其用户名，成员关系由调用方决定保留(等待会话恢复)还是清理
+     */
+    public void unregister(Connection conn, String userName) {
+        connections.remove(conn.getId());
+        byName.remove(userName, conn);
+    }
+
+    /**
+     * 恢复会话后连接改用原来的用户名
+     */
+    public void rename(Connection conn, String oldName, String newName) {
+        byName.remove(oldName, conn);
+        byName.put(newName, conn);
+    }
+
+    public boolean contains(Connection conn) {
+        return connections.containsKey(conn.getId());
+    }
+
+    /**
+     * 按用户名查找在线的连接，不在线时返回null
+     */
+    public Connection find(String userName) {
+        return byName.get(userName);
+    }
+
+    public int size() {
+        return connections.size();
+    }
+
+    public Collection<Connection> getConnections() {
+        return connections.values();
+    }
+
+    public void joined(Connection conn, String roomName) {
+        memberships.computeIfAbsent(conn.getId(), NEW_ROOM_SET).add(roomName);
+    }
+
+    public void left(Connection conn, String roomName) {
+        Set<String> rooms = memberships.get(conn.getId());
+        if (rooms != null) {
+            rooms.remove(roomName);
+        }
+    }
+
+    public boolean isMember(Connection conn, String roomName) {
+        Set<String> rooms = memberships.get(conn.getId());
+        return rooms != null && rooms.contains(roomName);
+    }
+
+    /**
+     * 连接加入的所有房间，只读视图
+     */
+    public Set<String> getRooms(Connection conn) {
+        Set<String> rooms = memberships.get(conn.getId());
+        return rooms == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(rooms);
+    }
+
+    /**
+     * 取出并删除连接的成员关系，用于断开或会话过期后的清理
+     */
+    public Set<String> removeRooms(Connection conn) {
+        Set<String> rooms = memberships.remove(conn.getId());
+        return rooms == null ? Collections.<String>emptySet() : rooms;
+    }
+}
@@ -0,0 +1,19 @@
+package com.lucky.nio;
+
+/**
+ * 新连接分配给工作事件循环的策略
+ */
+public enum BalanceStrategy {
+
+    ROUND_ROBIN,        // 依次轮流分配
+    LEAST_CONNECTIONS,  // 分配给当前连接数最少的事件循环
+    ROOM_AFFINITY;      // 先轮流分配，进入房间后迁移到该房间对应的事件循环，同一房间的成员由同一个线程写出
+
+    public static BalanceStrategy parse(String value) {
+        if (value == null || "".equals(value.trim())) {
+            return ROUND_ROBIN;
+        }
+
+        return valueOf(value.trim().toUpperCase().replace('-', '_'));
+    }
+}
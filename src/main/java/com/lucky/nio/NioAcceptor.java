@@ -0,0 +1,66 @@
+package com.lucky.nio;
+
+import com.lucky.Server;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 专用的accept线程(boss)，只负责接受连接、准入检查并交给工作事件循环，
+ * 不处理任何连接的读写，accept不会被繁忙的事件循环拖慢
+ */
+public class NioAcceptor extends Thread {
+
+    private static final Logger logger = Logger.getLogger(NioAcceptor.class);
+
+    private Server server;
+    private NioServer nioServer;
+    private ServerSocketChannel serverChannel;
+
+    public NioAcceptor(Server server, NioServer nioServer, ServerSocketChannel serverChannel) {
+        super("nio-acceptor");
+        this.server = server;
+        this.nioServer = nioServer;
+        this.serverChannel = serverChannel;
+    }
+
+    @Override
+    public void run() {
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel channel = serverChannel.accept();  // 阻塞模式
+                long retryAfter = server.admit();
+                if (retryAfter > 0) {
+                    reject(channel, retryAfter);
+                    continue;
+                }
+                nioServer.dispatch(channel);
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        logger.info(getName() + " quit");
+    }
+
+    /**
+     * 回复繁忙后直接关闭，不分配给事件循环。新连接的发送缓冲区为空，一次写入即可写完
+     */
+    private void reject(SocketChannel channel, long retryAfter) {
+        try {
+            channel.write(server.busyFrame(retryAfter).newReadOnlyView());
+        } catch (IOException e) {
+            // 客户端已经断开
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,461 @@
+package com.lucky.nio;
+
+import com.lucky.Server;
+import com.lucky.buffer.PooledBuffer;
+import com.lucky.codec.FrameCodec;
+import com.lucky.codec.FrameDecoder;
+import com.lucky.codec.FrameHandler;
+import com.lucky.codec.MsgCodec;
+import com.lucky.codec.MsgCodecs;
+import com.lucky.codec.SharedFrame;
+import com.lucky.net.Connection;
+import com.lucky.net.FlushPolicy;
+import com.lucky.net.OutboundQueue;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * NIO引擎下的一个客户端连接，读写都只在所属事件循环线程中进行。
+ * 房间亲和策略下进入房间后会迁移到另一个事件循环，迁移通过两个事件循环的任务队列交接，
+ * 迁移前后分组投递的帧按分组的顺序放入待发送队列。
+ * 连接不持有读缓冲区，每次读取时从池中借出，解码并处理完(包括消息的分发)后归还。
+ * 写出时一次从待发送队列取出一批帧，用一次gathering write写出，批大小与延迟预算由FlushPolicy决定
+ */
+public class NioConnection implements Connection, FrameHandler {
+
+    private static final Logger logger = Logger.getLogger(NioConnection.class);
+    private static final AtomicLong idGenerator = new AtomicLong(0);
+    private static final int READ_BUFFER_SIZE = 4096;
+    private static final long HAND_OVER_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private long id;
+    private Server server;
+    private volatile NioEventLoop loop;
+    private volatile Route route;             // NioFanout分组使用的事件循环，迁移时换成新的
+    private volatile boolean settled = true;  // 迁移已完成交接，目标事件循环可以直接投递
+    private List<SharedFrame> stash;          // 交接完成前目标事件循环收到的帧，只在目标事件循环中访问
+    private SocketChannel channel;
+    private volatile SelectionKey key;
+    private FrameDecoder decoder;
+    private OutboundQueue outbound;  // 其他线程投递的待写帧，由事件循环取出写出
+    private FlushPolicy flushPolicy;
+    private SharedFrame[] writingFrames;  // 正在写出的一批帧，每写完一个release一个，只在事件循环线程中访问
+    private ByteBuffer[] writingViews;    // 这批帧的只读视图
+    private int writingIndex;             // 第一个还没写完的帧
+    private int writingCount;
+    private AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private AtomicBoolean closed = new AtomicBoolean(false);
+    private volatile boolean slow;  // 已因慢消费被判定断开，等待事件循环关闭
+    private volatile String chatRoom = "";
+    private volatile MsgCodec codec = MsgCodecs.JSON;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            if (!loop.inEventLoop()) {  // 调度后连接已迁移到其他事件循环
+                loop.execute(this);
+                return;
+            }
+            flushScheduled.set(false);
+            flush();
+        }
+    };
+
+    private final Runnable closeTask = new Runnable() {
+        @Override
+        public void run() {
+            close();
+        }
+    };
+
+    private final Runnable releaseWritingTask = new Runnable() {
+        @Override
+        public void run() {
+            if (!loop.inEventLoop()) {  // 在其他线程中关闭，交给事件循环释放
+                loop.execute(this);
+                return;
+            }
+            for (int i = writingIndex; i < writingCount; i++) {
+                writingFrames[i].release();
+                writingFrames[i] = null;
+                writingViews[i] = null;
+            }
+            writingIndex = 0;
+            writingCount = 0;
+        }
+    };
+
+    NioConnection(Server server, NioEventLoop loop, SocketChannel channel, SelectionKey key) {
+        this.id = idGenerator.incrementAndGet();
+        this.server = server;
+        this.loop = loop;
+        this.route = new Route(loop);
+        this.channel = channel;
+        this.key = key;
+        this.decoder = new FrameDecoder(server.getMaxFrameLength());
+        this.outbound = server.newOutboundQueue();
+        this.flushPolicy = server.getFlushPolicy();
+        this.writingFrames = new SharedFrame[flushPolicy.getMaxBatchMessages()];
+        this.writingViews = new ByteBuffer[flushPolicy.getMaxBatchMessages()];
+    }
+
+    @Override
+    public long getId() {
+        return id;
+    }
+
+    @Override
+    public String getChatRoom() {
+        return chatRoom;
+    }
+
+    @Override
+    public void setChatRoom(String chatRoom) {
+        this.chatRoom = chatRoom;
+        if (chatRoom != null && !"".equals(chatRoom)) {
+            loop.getNioServer().onEnterRoom(this, chatRoom);
+        }
+    }
+
+    NioEventLoop getLoop() {
+        return loop;
+    }
+
+    /**
+     * 取得分组投递使用的路线并登记一次投递，投递完成(deliver)后撤销。
+     * 登记之后路线仍未改变，迁移时就能看到这次登记，会等它投递完再交接
+     */
+    Route enterRoute() {
+        while (true) {
+            Route current = route;
+            current.inFlight.incrementAndGet();
+            if (route == current) {
+                return current;
+            }
+            current.inFlight.decrementAndGet();
+        }
+    }
+
+    @Override
+    public MsgCodec getCodec() {
+        return codec;
+    }
+
+    @Override
+    public void setCodec(MsgCodec codec) {
+        this.codec = codec;
+    }
+
+    @Override
+    public void sendMsgWithType(char type, char status, String data) {
+        sendFrame(SharedFrame.of(type, status, data));
+    }
+
+    @Override
+    public void sendFrame(SharedFrame frame) {
+        if (closed.get() || slow) {
+            return;
+        }
+
+        if (!outbound.offer(frame)) {  // 慢客户端，在事件循环中断开
+            slow = true;
+            logger.info("user-" + id + " reads too slowly, disconnect");
+            loop.execute(closeTask);
+            return;
+        }
+        if (!flushPolicy.isImmediate() && outbound.size() >= flushPolicy.getMaxBatchMessages()) {
+            loop.execute(flushTask);  // 已凑满一批，不再等待延迟预算
+            return;
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * 没有延迟预算时在事件循环中尽快写出，否则等待延迟预算后写出这期间积压的所有帧
+     */
+    private void scheduleFlush() {
+        if (!flushScheduled.compareAndSet(false, true)) {
+            return;
+        }
+
+        if (flushPolicy.isImmediate()) {
+            loop.execute(flushTask);
+        } else {
+            loop.schedule(flushTask, flushPolicy.getMaxDelayNanos());
+        }
+    }
+
+    /**
+     * 在所属事件循环中放入待发送队列并写出，由NioFanout按事件循环批量调用，route为分组时登记的路线。
+     * 有延迟预算时等凑满一批或预算到期再写出。
+     * 迁移前分组的帧在原事件循环中直接放入待发送队列；迁移后分组的帧在交接完成前暂存，交接时再放入，
+     * 不会排到迁移前的帧前面
+     */
+    void deliver(SharedFrame frame, Route route) {
+        try {
+            if (!loop.inEventLoop()) {  // 分组后连接已迁移到其他事件循环
+                sendFrame(frame);
+                return;
+            }
+            if (closed.get() || slow) {
+                return;
+            }
+            if (!settled) {
+                if (stash == null) {
+                    stash = new ArrayList<SharedFrame>();
+                }
+                stash.add(frame.retain());
+                return;
+            }
+
+            if (!offer(frame)) {
+                return;
+            }
+            if (flushPolicy.isImmediate() || outbound.size() >= flushPolicy.getMaxBatchMessages()) {
+                flush();
+            } else {
+                scheduleFlush();
+            }
+        } finally {
+            route.inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * 在事件循环中放入待发送队列，队列已满时断开慢客户端
+     */
+    private boolean offer(SharedFrame frame) {
+        if (outbound.offer(frame)) {
+            return true;
+        }
+
+        slow = true;
+        logger.info("user-" + id + " reads too slowly, disconnect");
+        close();
+        return false;
+    }
+
+    /**
+     * 迁移到另一个事件循环。在下一轮事件循环中从原Selector注销(当前可能正在处理本连接读到的数据)，
+     * 之后的分组改投目标事件循环；等迁移前分组的帧都在原事件循环中投递完，再交给目标事件循环注册，
+     * 迁移期间投递的帧留在待发送队列或暂存中，注册完成后写出。上一次迁移还没有交接完时稍后再迁移
+     */
+    void moveTo(final NioEventLoop target) {
+        final NioEventLoop source = loop;
+        source.executeLater(new Runnable() {
+            @Override
+            public void run() {
+                if (closed.get() || loop != source) {
+                    return;
+                }
+                if (!settled) {
+                    source.schedule(this, HAND_OVER_RETRY_NANOS);
+                    return;
+                }
+
+                key.cancel();
+                source.connectionRemoved();
+                target.connectionAdded();
+                Route previous = route;
+                settled = false;
+                route = new Route(target);
+                loop = target;
+                handOver(previous, source, target);
+            }
+        });
+    }
+
+    /**
+     * 迁移前登记的投递还在原事件循环的任务队列中(或分发线程还没有提交)时，在原事件循环中稍后再检查
+     */
+    private void handOver(final Route previous, final NioEventLoop source, final NioEventLoop target) {
+        if (previous.inFlight.get() > 0) {
+            source.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    handOver(previous, source, target);
+                }
+            }, HAND_OVER_RETRY_NANOS);
+            return;
+        }
+
+        target.execute(new Runnable() {
+            @Override
+            public void run() {
+                register(target);
+            }
+        });
+    }
+
+    /**
+     * 在目标事件循环中注册，把交接前暂存的帧按顺序放入待发送队列
+     */
+    private void register(NioEventLoop target) {
+        List<SharedFrame> stashed = stash;
+        stash = null;
+        settled = true;
+        try {
+            if (closed.get()) {
+                return;
+            }
+
+            SelectionKey cancelled = channel.keyFor(target.getSelector());
+            if (cancelled != null && !cancelled.isValid()) {  // 迁回之前的事件循环，取消的键要等下一次select才注销
+                target.getSelector().selectNow();
+            }
+            key = channel.register(target.getSelector(), SelectionKey.OP_READ, this);
+            if (stashed != null) {
+                for (SharedFrame frame : stashed) {
+                    if (slow || !offer(frame)) {
+                        break;
+                    }
+                }
+            }
+            flush();
+        } catch (IOException e) {
+            close();
+        } finally {
+            if (stashed != null) {
+                for (SharedFrame frame : stashed) {
+                    frame.release();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+
+        loop.connectionRemoved();
+        key.cancel();
+        outbound.close();
+        releaseWritingTask.run();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        logger.info("user-" + id + " closed");
+        server.socketDisconnect(this);
+    }
+
+    @Override
+    public OutboundQueue getOutbound() {
+        return outbound;
+    }
+
+    @Override
+    public void onFrame(byte[] buffer, int offset, int length) {
+        String message = FrameCodec.decodeString(buffer, offset, length);
+        server.getMsgHandler().handlerMsg(this, message);
+    }
+
+    /**
+     * 读取客户端数据，一次读取可能包含半个或多个帧
+     */
+    void read() {
+        PooledBuffer lease = server.getBufferPool().allocateHeap(READ_BUFFER_SIZE);
+        try {
+            ByteBuffer readBuffer = lease.buffer();
+            int len;
+            try {
+                len = channel.read(readBuffer);
+                if (len == -1) {  // 客户端socket已经关闭
+                    close();
+                    return;
+                }
+                if (len == 0) {
+                    return;
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+
+            try {
+                decoder.decode(readBuffer.array(), readBuffer.arrayOffset(), len, this);
+            } catch (IOException e) {  // 帧长度非法
+                server.getMetrics().recordDecodeError();
+                logger.info("user-" + id + " sent an invalid frame: " + e.getMessage());
+                close();
+            }
+        } finally {
+            lease.release();  // 半包已拷贝到解码器内部，消息已同步分发完
+        }
+    }
+
+    /**
+     * 尽可能多地写出队列中的数据，每次取出一批帧用一次gathering write写出，
+     * 写不完时注册OP_WRITE等待下次可写
+     */
+    void flush() {
+        if (closed.get() || !key.isValid()) {  // 迁移中，注册到新的事件循环后再写出
+            return;
+        }
+
+        try {
+            while (true) {
+                if (writingIndex == writingCount) {
+                    writingIndex = 0;
+                    writingCount = outbound.drain(writingFrames, 0, flushPolicy.getMaxBatchBytes());
+                    if (writingCount == 0) {
+                        break;
+                    }
+                    for (int i = 0; i < writingCount; i++) {
+                        writingViews[i] = writingFrames[i].newReadOnlyView();
+                    }
+                }
+
+                channel.write(writingViews, writingIndex, writingCount - writingIndex);
+                int written = 0;
+                while (writingIndex < writingCount && !writingViews[writingIndex].hasRemaining()) {
+                    writingFrames[writingIndex].release();
+                    writingFrames[writingIndex] = null;
+                    writingViews[writingIndex] = null;
+                    writingIndex++;
+                    written++;
+                }
+                server.getMetrics().recordWrite(written);
+                if (writingIndex < writingCount) {  // socket发送缓冲区已满
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * NioFanout分组投递的路线，记录按这条路线分组、还没有投递完的帧数
+     */
+    static final class Route {
+
+        private final NioEventLoop loop;
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        private Route(NioEventLoop loop) {
+            this.loop = loop;
+        }
+
+        NioEventLoop getLoop() {
+            return loop;
+        }
+    }
+}
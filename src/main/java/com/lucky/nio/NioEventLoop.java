@@ -0,0 +1,274 @@
+package com.lucky.nio;
+
+import com.lucky.Server;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 单线程的工作事件循环，一个Selector上注册多个连接，其他线程只通过无锁的任务队列与其交互，
+ * 不直接读写它的连接。延迟任务按到期时间放在只由事件循环访问的堆中，select的超时取最早的到期时间
+ */
+public class NioEventLoop extends Thread {
+
+    private static final Logger logger = Logger.getLogger(NioEventLoop.class);
+
+    private Server server;
+    private NioServer nioServer;
+    private int index;  // 在NioServer中的下标
+    private Selector selector;
+    private AtomicInteger connectionCount = new AtomicInteger(0);
+    private Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private PriorityQueue<ScheduledTask> scheduled = new PriorityQueue<ScheduledTask>(16, ScheduledTask.BY_DEADLINE);
+    private long scheduledSeq;  // 到期时间相同的任务按加入顺序执行
+    private AtomicBoolean wakenUp = new AtomicBoolean(false);  // 避免重复调用wakeup
+    private volatile boolean alive;
+
+    public NioEventLoop(Server server, NioServer nioServer, int index, String name) throws IOException {
+        super(name);
+        this.server = server;
+        this.nioServer = nioServer;
+        this.index = index;
+        this.selector = Selector.open();
+        this.alive = true;
+    }
+
+    @Override
+    public void run() {
+        while (alive) {
+            try {
+                wakenUp.set(false);
+                select();
+                runTasks();
+                runScheduledTasks();
+                processSelectedKeys();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        closeSelector();
+        logger.info(getName() + " quit");
+    }
+
+    /**
+     * 在事件循环线程中执行任务，其他线程调用时放入队列并唤醒selector
+     */
+    public void execute(Runnable task) {
+        if (inEventLoop()) {
+            task.run();
+            return;
+        }
+
+        tasks.offer(task);
+        if (wakenUp.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * 总是放入任务队列，在事件循环的下一轮执行，用于不能在当前调用栈中完成的操作
+     */
+    public void executeLater(Runnable task) {
+        tasks.offer(task);
+        if (wakenUp.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * 延迟delayNanos后在事件循环中执行，精度受select超时限制为毫秒
+     */
+    public void schedule(final Runnable task, long delayNanos) {
+        final long deadline = System.nanoTime() + delayNanos;
+        if (inEventLoop()) {
+            scheduled.add(new ScheduledTask(deadline, scheduledSeq++, task));
+            return;
+        }
+
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                scheduled.add(new ScheduledTask(deadline, scheduledSeq++, task));
+            }
+        });
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == this;
+    }
+
+    public void shutdown() {
+        alive = false;
+        selector.wakeup();
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    NioServer getNioServer() {
+        return nioServer;
+    }
+
+    Selector getSelector() {
+        return selector;
+    }
+
+    void connectionAdded() {
+        connectionCount.incrementAndGet();
+    }
+
+    void connectionRemoved() {
+        connectionCount.decrementAndGet();
+    }
+
+    /**
+     * 注册分配来的连接，计数已经由分配方增加，注册失败时撤销
+     */
+    void register(final SocketChannel channel) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel.configureBlocking(false);
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    NioConnection conn = new NioConnection(server, NioEventLoop.this, channel, key);
+                    key.attach(conn);
+                    server.socketConnected(conn);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    connectionRemoved();
+                    server.releaseAdmission();
+                    closeChannel(channel);
+                }
+            }
+        });
+    }
+
+    /**
+     * 有延迟任务时最多阻塞到最早的到期时间，已经到期时不阻塞。
+     * 上一轮执行期间放入的任务看到wakenUp仍为true，没有唤醒selector，清除标记后队列不为空时不能阻塞
+     */
+    private void select() throws IOException {
+        if (!tasks.isEmpty()) {
+            selector.selectNow();
+            return;
+        }
+
+        ScheduledTask next = scheduled.peek();
+        if (next == null) {
+            selector.select();
+            return;
+        }
+
+        long remaining = next.deadline - System.nanoTime();
+        if (remaining <= 0) {
+            selector.selectNow();
+            return;
+        }
+        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining + 999999)));
+    }
+
+    private void runScheduledTasks() {
+        long now = System.nanoTime();
+        ScheduledTask next;
+        while ((next = scheduled.peek()) != null && next.deadline - now <= 0) {
+            scheduled.poll();
+            try {
+                next.task.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            if (!key.isValid()) {
+                continue;
+            }
+
+            NioConnection conn = (NioConnection) key.attachment();
+            if (key.isWritable()) {
+                conn.flush();
+            }
+            if (key.isValid() && key.isReadable()) {
+                conn.read();
+            }
+        }
+    }
+
+    private void closeSelector() {
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof NioConnection) {
+                ((NioConnection) attachment).close();
+            }
+        }
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void closeChannel(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static final class ScheduledTask {
+
+        private static final Comparator<ScheduledTask> BY_DEADLINE = new Comparator<ScheduledTask>() {
+            @Override
+            public int compare(ScheduledTask a, ScheduledTask b) {
+                long diff = a.deadline - b.deadline;
+                return diff != 0 ? (diff < 0 ? -1 : 1) : Long.compare(a.seq, b.seq);
+            }
+        };
+
+        private final long deadline;  // System.nanoTime()
+        private final long seq;
+        private final Runnable task;
+
+        private ScheduledTask(long deadline, long seq, Runnable task) {
+            this.deadline = deadline;
+            this.seq = seq;
+            this.task = task;
+        }
+    }
+}
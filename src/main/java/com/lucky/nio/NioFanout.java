@@ -0,0 +1,80 @@
+package com.lucky.nio;
+
+import com.lucky.codec.SharedFrame;
+import com.lucky.net.Connection;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 一次分发中发给NIO连接的帧，按连接所属的工作事件循环分组。
+ * 每个事件循环只通过它的无锁任务队列投递一个任务，由事件循环自己放入各连接的待发送队列并写出，
+ * 分发线程不再逐个连接调度写出、唤醒selector。只在分发线程中使用，不是线程安全的。
+ * 帧在加入时retain，事件循环投递完成后release。
+ * 分组时登记连接的路线，连接迁移时等按原路线分组的帧投递完再交接，保证同一连接收到的顺序与分组顺序一致
+ */
+public class NioFanout {
+
+    private final Batch[] batches;
+
+    NioFanout(int loops) {
+        this.batches = new Batch[loops];
+    }
+
+    /**
+     * 加入一个待发送的帧，不是NIO连接时返回false，由调用方直接发送
+     */
+    public boolean add(Connection conn, SharedFrame frame) {
+        if (!(conn instanceof NioConnection)) {
+            return false;
+        }
+
+        NioConnection nioConn = (NioConnection) conn;
+        NioConnection.Route route = nioConn.enterRoute();
+        NioEventLoop loop = route.getLoop();
+        Batch batch = batches[loop.getIndex()];
+        if (batch == null) {
+            batch = new Batch(loop);
+            batches[loop.getIndex()] = batch;
+        }
+        batch.conns.add(nioConn);
+        batch.routes.add(route);
+        batch.frames.add(frame.retain());
+        return true;
+    }
+
+    /**
+     * 把各组交给对应的事件循环，分发线程就是该事件循环时直接执行
+     */
+    public void submit() {
+        for (Batch batch : batches) {
+            if (batch != null) {
+                batch.loop.execute(batch);
+            }
+        }
+    }
+
+    private static final class Batch implements Runnable {
+
+        private final NioEventLoop loop;
+        private final List<NioConnection> conns = new ArrayList<NioConnection>();
+        private final List<NioConnection.Route> routes = new ArrayList<NioConnection.Route>();
+        private final List<SharedFrame> frames = new ArrayList<SharedFrame>();
+
+        private Batch(NioEventLoop loop) {
+            this.loop = loop;
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < conns.size(); i++) {
+                SharedFrame frame = frames.get(i);
+                try {
+                    conns.get(i).deliver(frame, routes.get(i));
+                } finally {
+                    frame.release();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.lucky.nio;
+
+import com.lucky.Server;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 基于Selector的服务器引擎，多Reactor结构: 一个专用的accept线程，加上固定数目的工作事件循环。
+ * 每个连接只由一个工作事件循环读写，新连接按BalanceStrategy分配
+ */
+public class NioServer {
+
+    private static final Logger logger = Logger.getLogger(NioServer.class);
+
+    private Server server;
+    private int port;
+    private BalanceStrategy strategy;
+    private NioEventLoop[] loops;
+    private AtomicInteger next = new AtomicInteger(0);  // 轮询分配连接
+    private ServerSocketChannel serverChannel;
+    private NioAcceptor acceptor;
+
+    public NioServer(Server server, int port, int threads, BalanceStrategy strategy) {
+        this.server = server;
+        this.port = port;
+        this.strategy = strategy;
+        this.loops = new NioEventLoop[Math.max(1, threads)];
+    }
+
+    /**
+     * 启动所有工作事件循环，再启动accept线程
+     */
+    public void start() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new NioEventLoop(server, this, i, "nio-worker-" + i);
+        }
+        for (NioEventLoop loop : loops) {
+            loop.start();
+        }
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().bind(new InetSocketAddress(port), 1024);
+        acceptor = new NioAcceptor(server, this, serverChannel);
+        acceptor.start();
+
+        logger.info("NIO SocketServer has started, listening port: " + port + ", worker loops: " + loops.length
+                + ", balance strategy: " + strategy.name().toLowerCase() + ", flush policy: " + server.getFlushPolicy());
+    }
+
+    /**
+     * 阻塞直到所有事件循环退出
+     */
+    public void awaitTermination() throws InterruptedException {
+        for (NioEventLoop loop : loops) {
+            loop.join();
+        }
+    }
+
+    public void close() {
+        try {
+            if (serverChannel != null && serverChannel.isOpen()) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        for (NioEventLoop loop : loops) {
+            if (loop != null) {
+                loop.shutdown();
+            }
+        }
+    }
+
+    /**
+     * 一次分发使用的分组器，按事件循环合并投递
+     */
+    public NioFanout newFanout() {
+        return new NioFanout(loops.length);
+    }
+
+    /**
+     * 将新连接交给某个工作事件循环。注册在事件循环中异步完成，先在这里占用计数，
+     * 连续接受的一批连接(如重连风暴)读到的是已经分配的数量，不会全部分到同一个事件循环
+     */
+    void dispatch(SocketChannel channel) {
+        NioEventLoop loop;
+        if (strategy == BalanceStrategy.LEAST_CONNECTIONS) {
+            loop = loops[0];
+            for (NioEventLoop candidate : loops) {
+                if (candidate.getConnectionCount() < loop.getConnectionCount()) {
+                    loop = candidate;
+                }
+            }
+        } else {
+            loop = loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+        }
+
+        loop.connectionAdded();
+        loop.register(channel);
+    }
+
+    /**
+     * 连接进入房间，房间亲和策略下迁移到该房间对应的事件循环
+     */
+    void onEnterRoom(NioConnection conn, String roomName) {
+        if (strategy != BalanceStrategy.ROOM_AFFINITY) {
+            return;
+        }
+
+        NioEventLoop target = loops[(roomName.hashCode() & Integer.MAX_VALUE) % loops.length];
+        if (conn.getLoop() != target) {
+            conn.moveTo(target);
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.lucky.room;
+
+import com.lucky.metrics.RoomStats;
+import com.lucky.net.Connection;
+import com.lucky.net.TokenBucket;
+import org.apache.log4j.Logger;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一个聊天室及其成员。成员集合基于ConcurrentHashMap，用于同步判断是否在房间中以及人数统计，
+ * 成员的增删只由RoomRegistry在该房间的原子操作中进行。
+ * 消息的接收者是另一份只由房间的actor修改与遍历的集合：成员增删时把对接收者的修改放入actor的邮箱，
+ * 与消息分发按放入的顺序执行(在RoomRegistry的桶锁内只放入，锁释放后由resume调度执行)，加入之前的消息不会发给新成员，退出之后的消息不会再发给退出的成员。
+ * 加入与退出生效时记下房间当时的最新序号，成员变化与消息因此处在同一个序号序列中。
+ * 集群模式下，其他节点上的成员由该节点的一个代理连接表示，分发时每个节点只写一次，
+ * 人数按各节点上报的成员累加，每个成员按用户名只计一次，重复的加入与退出不会改变人数
+ */
+public class ChatRoom {
+
+    private static final Logger logger = Logger.getLogger(ChatRoom.class);
+
+    private final String name;
+    private final Set<Connection> members =
+            Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+    private final AtomicInteger memberCount = new AtomicInteger(0);
+    private final Set<Connection> recipients = new HashSet<Connection>();  // 消息的接收者，只在actor中访问
+    private final RoomActor actor;
+    private final TokenBucket rateLimit;  // 房间内所有人发送消息的限流，不限制时为null
+    private final RoomHistory history;  // 最近消息，用于加入或重连后回放
+    private final RoomStats stats = new RoomStats();
+    // 其他节点在本房间的成员的用户名，key为该节点的代理连接，只在RoomRegistry的原子操作中访问
+    private final Map<Connection, Set<String>> remoteMembers = new HashMap<Connection, Set<String>>();
+
+    ChatRoom(String name, RoomHistory history, Executor scheduler, int quantum, TokenBucket rateLimit) {
+        this.name = name;
+        this.history = history;
+        this.actor = new RoomActor(scheduler, quantum);
+        this.rateLimit = rateLimit;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 当前成员，弱一致性视图，只读
+     */
+    public Iterable<Connection> getMembers() {
+        return Collections.unmodifiableSet(members);
+    }
+
+    /**
+     * 接收者集合的Spliterator，可以按桶拆分，用于大房间的分区并行分发，只能在actor的任务中调用
+     */
+    public Spliterator<Connection> memberSpliterator() {
+        return recipients.spliterator();
+    }
+
+    /**
+     * 放入房间actor的邮箱，与该房间的其他事件按顺序执行
+     */
+    public void tell(Runnable task) {
+        actor.tell(task);
+    }
+
+    /**
+     * 放入房间actor的邮箱，cost为任务的代价，用于房间之间的公平调度
+     */
+    public void tell(Runnable task, int cost) {
+        actor.tell(task, cost);
+    }
+
+    /**
+     * 调度执行成员变化时放入邮箱的任务，由RoomRegistry在compute返回后调用
+     */
+    void resume() {
+        actor.resume();
+    }
+
+    public RoomHistory getHistory() {
+        return history;
+    }
+
+    /**
+     * 房间级别的限流令牌桶，不限制时为null
+     */
+    public TokenBucket getRateLimit() {
+        return rateLimit;
+    }
+
+    public RoomStats getStats() {
+        return stats;
+    }
+
+    public int getMemberCount() {
+        return memberCount.get();
+    }
+
+    public boolean contains(Connection conn) {
+        return members.contains(conn);
+    }
+
+    /**
+     * 加入房间，onJoined在actor中紧接着接收者的加入执行，之后的消息才会发给该成员。
+     * 已经在房间中时只执行onJoined
+     */
+    boolean add(final Connection conn, final Runnable onJoined) {
+        if (!members.add(conn)) {
+            if (onJoined != null) {
+                actor.post(onJoined);
+            }
+            return false;
+        }
+
+        memberCount.incrementAndGet();
+        actor.post(new Runnable() {
+            @Override
+            public void run() {
+                recipients.add(conn);
+                logger.info("user-" + conn.getId() + " join chat room: " + name + " at seq " + history.lastSeq());
+                if (onJoined != null) {
+                    onJoined.run();
+                }
+            }
+        });
+        return true;
+    }
+
+    boolean remove(final Connection conn) {
+        if (!members.remove(conn)) {
+            return false;
+        }
+
+        memberCount.decrementAndGet();
+        actor.post(new Runnable() {
+            @Override
+            public void run() {
+                recipients.remove(conn);
+                logger.info("user-" + conn.getId() + " quit chat room: " + name + " at seq " + history.lastSeq());
+            }
+        });
+        return true;
+    }
+
+    /**
+     * 用新连接替换原有成员，人数不变，用于会话恢复。onReplaced在actor中紧接着替换执行，
+     * 可以在这里补发错过的消息，不会与实时消息交错
+     */
+    boolean replace(final Connection previous, final Connection conn, final Runnable onReplaced) {
+        if (!members.remove(previous)) {
+            return false;
+        }
+
+        if (!members.add(conn)) {
+            memberCount.decrementAndGet();
+        }
+        actor.post(new Runnable() {
+            @Override
+            public void run() {
+                recipients.remove(previous);
+                recipients.add(conn);
+                logger.info("user-" + conn.getId() + " replace user-" + previous.getId() + " in chat room: " + name
+                        + " at seq " + history.lastSeq());
+                if (onReplaced != null) {
+                    onReplaced.run();
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * 其他节点的一个成员加入，已经计入时返回false
+     */
+    boolean addRemote(Connection node, String member) {
+        Set<String> names = remoteMembers.get(node);
+        if (names == null) {
+            names = new HashSet<String>();
+            remoteMembers.put(node, names);
+        }
+        if (!names.add(member)) {
+            return false;
+        }
+
+        updateRemote(node, names.size() - 1, names.size());
+        return true;
+    }
+
+    /**
+     * 其他节点的一个成员退出，没有计入时返回false
+     */
+    boolean removeRemote(Connection node, String member) {
+        Set<String> names = remoteMembers.get(node);
+        if (names == null || !names.remove(member)) {
+            return false;
+        }
+        if (names.isEmpty()) {
+            remoteMembers.remove(node);
+        }
+
+        updateRemote(node, names.size() + 1, names.size());
+        return true;
+    }
+
+    /**
+     * 用节点上报的成员覆盖原有值，为空时移除该节点的代理连接
+     */
+    void setRemote(Connection node, Collection<String> members) {
+        Set<String> names = new HashSet<String>(members);
+        Set<String> old = names.isEmpty() ? remoteMembers.remove(node) : remoteMembers.put(node, names);
+        updateRemote(node, old == null ? 0 : old.size(), names.size());
+    }
+
+    /**
+     * 节点的成员数从previous变为count，第一个成员加入时添加代理连接，最后一个退出时移除
+     */
+    private void updateRemote(final Connection node, int previous, int count) {
+        if (previous == 0 && count > 0) {
+            members.add(node);
+            actor.post(new Runnable() {
+                @Override
+                public void run() {
+                    recipients.add(node);
+                }
+            });
+        } else if (previous > 0 && count <= 0) {
+            members.remove(node);
+            actor.post(new Runnable() {
+                @Override
+                public void run() {
+                    recipients.remove(node);
+                }
+            });
+        }
+
+        memberCount.addAndGet(count - previous);
+    }
+}
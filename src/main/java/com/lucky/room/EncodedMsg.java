@@ -0,0 +1,105 @@
+package com.lucky.room;
+
+import com.lucky.bean.ChatMsg;
+import com.lucky.buffer.BufferPool;
+import com.lucky.codec.MsgCodec;
+import com.lucky.codec.MsgCodecs;
+import com.lucky.codec.SharedFrame;
+import com.lucky.constant.MsgType;
+import com.lucky.constant.ResponseStatus;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 一条带房间序号的聊天消息，以及按编码方式缓存的已编码帧。
+ * 分发与历史回放共用同一份帧，回放时不需要重新序列化。
+ * 帧的缓冲区从池中借出，消息本身带引用计数：创建者(分发线程)与历史缓冲区各持有一个引用，
+ * 分发结束且被历史淘汰后释放缓存的帧；已放入待发送队列的帧由队列自己持有引用
+ */
+public class EncodedMsg {
+
+    private final ChatMsg chatMsg;
+    private final BufferPool pool;  // 为null时帧不池化
+    private final AtomicInteger refCnt = new AtomicInteger(1);
+    private final AtomicReferenceArray<SharedFrame> frames =
+            new AtomicReferenceArray<SharedFrame>(MsgCodecs.COUNT);
+    private final AtomicLong cachedBytes = new AtomicLong();  // 已缓存的各编码方式帧的总字节数
+    volatile RoomHistory history;  // 所在的历史缓冲区，被淘汰后为null，只在缓冲区的锁内修改
+    long charged;                  // 已计入历史缓冲区的字节数，只在缓冲区的锁内访问
+
+    public EncodedMsg(ChatMsg chatMsg) {
+        this(chatMsg, null);
+    }
+
+    public EncodedMsg(ChatMsg chatMsg, BufferPool pool) {
+        this.chatMsg = chatMsg;
+        this.pool = pool;
+    }
+
+    public ChatMsg getChatMsg() {
+        return chatMsg;
+    }
+
+    public long getSeq() {
+        return chatMsg.getSeq();
+    }
+
+    public long getCachedBytes() {
+        return cachedBytes.get();
+    }
+
+    public EncodedMsg retain() {
+        refCnt.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * 释放一个引用，最后一个引用释放时释放缓存的帧
+     */
+    public void release() {
+        if (refCnt.decrementAndGet() != 0) {
+            return;
+        }
+
+        for (int i = 0; i < frames.length(); i++) {
+            SharedFrame frame = frames.getAndSet(i, null);
+            if (frame != null) {
+                frame.release();
+            }
+        }
+    }
+
+    /**
+     * 已编码的帧，该编码方式尚未编码时返回null
+     */
+    public SharedFrame getFrame(MsgCodec codec) {
+        return frames.get(codec.id());
+    }
+
+    /**
+     * 获取指定编码方式的帧，没有时编码一次并缓存，并发时只保留先写入的那一份。
+     * 消息仍在历史缓冲区中时，新缓存的帧计入缓冲区的字节数。
+     * 调用方需要持有消息的引用，返回的帧在消息释放前有效
+     */
+    public SharedFrame encode(MsgCodec codec) {
+        SharedFrame frame = frames.get(codec.id());
+        if (frame != null) {
+            return frame;
+        }
+
+        frame = SharedFrame.of(pool, MsgType.CHAT, ResponseStatus.OK, codec.encodeChatMsg(chatMsg));
+        if (frames.compareAndSet(codec.id(), null, frame)) {
+            cachedBytes.addAndGet(frame.length());
+            RoomHistory owner = history;
+            if (owner != null) {
+                owner.charge(this);
+            }
+            return frame;
+        }
+
+        frame.release();
+        return frames.get(codec.id());
+    }
+}
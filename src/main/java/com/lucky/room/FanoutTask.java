@@ -0,0 +1,98 @@
+package com.lucky.room;
+
+import com.lucky.codec.SharedFrame;
+import com.lucky.net.Connection;
+import com.lucky.nio.NioFanout;
+import com.lucky.nio.NioServer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+/**
+ * 把一条消息分发给房间成员中的一个分区。接收者集合的Spliterator按哈希桶拆分，
+ * 超过分区大小时不断一分为二，拆出的部分交给ForkJoinPool中的其他工作线程窃取执行。
+ * 所有分区都完成后任务才结束，房间的actor等整条消息投递完再执行下一个任务，
+ * 因此每个接收方收到的消息顺序与房间的序号顺序一致。小房间直接在actor的线程中调用deliver
+ */
+public class FanoutTask extends RecursiveAction implements Consumer<Connection> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Spliterator<Connection> members;
+    private final EncodedMsg msg;
+    private final NioServer nioServer;  // nio引擎下按事件循环分组投递，否则为null
+    private final int partitionSize;
+    private NioFanout nioFanout;
+    private int recipients;
+    private long bytes;
+
+    public FanoutTask(Spliterator<Connection> members, EncodedMsg msg, NioServer nioServer, int partitionSize) {
+        this.members = members;
+        this.msg = msg;
+        this.nioServer = nioServer;
+        this.partitionSize = Math.max(1, partitionSize);
+    }
+
+    /**
+     * 写给的成员数，包括拆分出的分区
+     */
+    public int getRecipients() {
+        return recipients;
+    }
+
+    /**
+     * 写给所有成员的字节数之和，包括拆分出的分区
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    protected void compute() {
+        List<FanoutTask> forked = null;
+        Spliterator<Connection> split;
+        while (members.estimateSize() > partitionSize && (split = members.trySplit()) != null) {
+            FanoutTask task = new FanoutTask(split, msg, nioServer, partitionSize);
+            task.fork();
+            if (forked == null) {
+                forked = new ArrayList<FanoutTask>();
+            }
+            forked.add(task);
+        }
+
+        deliver();
+        if (forked == null) {
+            return;
+        }
+        for (FanoutTask task : forked) {
+            task.join();
+            recipients += task.recipients;
+            bytes += task.bytes;
+        }
+    }
+
+    /**
+     * 在当前线程中分发给分区内剩余的所有成员
+     */
+    public void deliver() {
+        nioFanout = nioServer == null ? null : nioServer.newFanout();
+        members.forEachRemaining(this);
+        if (nioFanout != null) {
+            nioFanout.submit();
+            nioFanout = null;
+        }
+    }
+
+    @Override
+    public void accept(Connection socket) {
+        SharedFrame frame = msg.encode(socket.getCodec());
+        if (nioFanout == null || !nioFanout.add(socket, frame)) {
+            socket.sendFrame(frame);
+        }
+        recipients++;
+        bytes += frame.length();
+    }
+}
@@ -0,0 +1,119 @@
+package com.lucky.room;
+
+import org.apache.log4j.Logger;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 房间的执行者(actor)。房间的成员变化与消息分发都作为任务放入它的邮箱，
+ * 同一时刻最多只有一个线程在执行它的任务，按放入的顺序逐个执行，房间内的所有事件因此有一个全序，
+ * 执行期间不需要加锁。多个房间共享同一个调度线程池，有任务的房间在调度器的先进先出队列中轮转，
+ * 调度器必须是所有线程共用一个先进先出队列的线程池(ThreadPoolExecutor)：ForkJoinPool的工作线程
+ * 重新提交的actor进入自己的本地队列并被优先执行，让出的房间会立刻再次执行，其他房间仍然会被饿死。
+ * 轮转按差额轮询(deficit round robin)：每轮给房间增加quantum的额度，任务的代价(分发消息为接收者数)
+ * 不超过剩余额度时才执行，额度不够时让出线程排到队尾，剩余额度留到下一轮，
+ * 大房间的一条消息可能要攒几轮才能发出，热门房间因此不会占满线程与写出带宽，饿死其他房间。
+ * 调度器为null时由放入任务的线程直接执行，其他线程正在执行时只放入邮箱，由正在执行的线程顺带执行。
+ * 持有锁时用post只放入邮箱，释放锁之后再resume，不在锁内执行任务
+ */
+public class RoomActor implements Runnable {
+
+    private static final Logger logger = Logger.getLogger(RoomActor.class);
+
+    private final Executor scheduler;
+    private final int quantum;  // 每轮增加的额度
+    private final Queue<Envelope> mailbox = new ConcurrentLinkedQueue<Envelope>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);  // 已提交调度或正在执行
+    private long deficit;  // 剩余额度，只在执行中的线程访问
+
+    public RoomActor(Executor scheduler, int quantum) {
+        this.scheduler = scheduler;
+        this.quantum = Math.max(1, quantum);
+    }
+
+    public void tell(Runnable task) {
+        tell(task, 1);
+    }
+
+    /**
+     * 放入邮箱，没有在执行时提交调度
+     * @param cost 任务的代价，分发消息为接收者数
+     */
+    public void tell(Runnable task, int cost) {
+        mailbox.offer(new Envelope(task, Math.max(1, cost)));
+        resume();
+    }
+
+    /**
+     * 只放入邮箱，不执行也不提交调度，放入的顺序就是执行的顺序，之后需要调用resume
+     */
+    public void post(Runnable task) {
+        mailbox.offer(new Envelope(task, 1));
+    }
+
+    /**
+     * 邮箱中有任务且没有在执行时提交调度，调度器为null时在当前线程执行
+     */
+    public void resume() {
+        if (!mailbox.isEmpty() && scheduled.compareAndSet(false, true)) {
+            schedule();
+        }
+    }
+
+    @Override
+    public void run() {
+        do {
+            deficit += quantum;
+            Envelope envelope;
+            while ((envelope = mailbox.peek()) != null && (scheduler == null || envelope.cost <= deficit)) {
+                mailbox.poll();
+                deficit = Math.max(0, deficit - envelope.cost);
+                try {
+                    envelope.task.run();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+            if (envelope == null) {  // 邮箱已空，不保留额度
+                deficit = 0;
+            }
+            scheduled.set(false);
+            // 释放执行权之后放入的任务可能没有提交调度，需要再检查一次
+            if (mailbox.isEmpty() || !scheduled.compareAndSet(false, true)) {
+                return;
+            }
+        } while (scheduler == null);
+
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduler == null) {
+            run();
+            return;
+        }
+
+        try {
+            scheduler.execute(this);
+        } catch (RejectedExecutionException e) {  // 服务器停止后丢弃
+            mailbox.clear();
+            scheduled.set(false);
+            logger.info("room actor scheduler rejected task: " + e.getMessage());
+        }
+    }
+
+    private static final class Envelope {
+
+        private final Runnable task;
+        private final int cost;
+
+        private Envelope(Runnable task, int cost) {
+            this.task = task;
+            this.cost = cost;
+        }
+    }
+}
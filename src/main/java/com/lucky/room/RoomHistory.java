@@ -0,0 +1,213 @@
+package com.lucky.room;
+
+import com.lucky.bean.ChatMsg;
+import com.lucky.buffer.BufferPool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 房间最近消息的环形缓冲区，容量由消息条数与字节数共同限制，超出时淘汰最早的消息。
+ * 字节数为缓冲区中的消息实际缓存的已编码帧之和，消息按某种编码方式第一次编码时才计入，
+ * 只被二进制连接接收的房间不会额外编码json。
+ * 序号在加入缓冲区时分配，单调递增，缓冲区中的顺序与序号顺序一致。
+ * 只在单个房间内加锁，不同房间互不影响，锁内不做网络写。
+ * 缓冲区中的每条消息持有一个引用，淘汰或房间删除(clear)时释放
+ */
+public class RoomHistory {
+
+    private final EncodedMsg[] elements;
+    private final long maxBytes;
+    private final BufferPool pool;  // 帧缓冲区池，为null时不池化
+    private final ReentrantLock lock = new ReentrantLock();
+    private int head;
+    private int size;
+    private long bytes;
+    private long nextSeq = 1;
+    private boolean cleared;  // 房间已删除，不再保留消息
+
+    public RoomHistory(int capacity, long maxBytes) {
+        this(capacity, maxBytes, null);
+    }
+
+    public RoomHistory(int capacity, long maxBytes, BufferPool pool) {
+        this.elements = new EncodedMsg[Math.max(0, capacity)];
+        this.maxBytes = maxBytes;
+        this.pool = pool;
+    }
+
+    /**
+     * 为消息分配序号并放入缓冲区，分发时编码的帧缓存在消息上，回放时直接复用。
+     * 返回的消息带有一个属于调用方的引用，分发结束后需要release
+     */
+    public EncodedMsg append(ChatMsg chatMsg) {
+        EncodedMsg msg = new EncodedMsg(chatMsg, pool);
+        lock.lock();
+        try {
+            chatMsg.setSeq(nextSeq++);
+            insert(msg);
+        } finally {
+            lock.unlock();
+        }
+
+        return msg;
+    }
+
+    /**
+     * 放入拥有该房间的节点转发来的消息，保留原有序号，返回的消息同样需要release
+     */
+    public EncodedMsg appendReplica(ChatMsg chatMsg) {
+        EncodedMsg msg = new EncodedMsg(chatMsg, pool);
+        lock.lock();
+        try {
+            nextSeq = chatMsg.getSeq() + 1;
+            insert(msg);
+        } finally {
+            lock.unlock();
+        }
+
+        return msg;
+    }
+
+    /**
+     * 用消息日志中恢复的消息填充缓冲区，保留原有序号，之后分配的序号接着最大的序号继续
+     */
+    public void restore(List<ChatMsg> chatMsgs) {
+        lock.lock();
+        try {
+            for (ChatMsg chatMsg : chatMsgs) {
+                if (chatMsg.getSeq() < nextSeq) {
+                    continue;
+                }
+                nextSeq = chatMsg.getSeq() + 1;
+                EncodedMsg msg = new EncodedMsg(chatMsg, pool);
+                insert(msg);
+                msg.release();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 最近的count条消息，按序号从小到大。返回的每条消息都已retain，发送后需要release
+     */
+    public List<EncodedMsg> last(int count) {
+        lock.lock();
+        try {
+            int n = Math.min(Math.max(count, 0), size);
+            return copy(size - n, n);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 序号大于seq的所有消息，按序号从小到大，更早的消息已被淘汰时只返回仍在缓冲区中的部分。
+     * 返回的每条消息都已retain，发送后需要release
+     */
+    public List<EncodedMsg> since(long seq) {
+        lock.lock();
+        try {
+            int from = 0;
+            while (from < size && elements[(head + from) % elements.length].getSeq() <= seq) {
+                from++;
+            }
+            return copy(from, size - from);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 最新分配的序号，还没有消息时为0
+     */
+    public long lastSeq() {
+        lock.lock();
+        try {
+            return nextSeq - 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 房间删除时释放所有消息，之后分配序号的消息不再保留
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            cleared = true;
+            while (size > 0) {
+                removeFirst();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void insert(EncodedMsg msg) {
+        if (elements.length == 0 || cleared) {
+            return;
+        }
+
+        if (size == elements.length) {
+            removeFirst();
+        }
+        elements[(head + size) % elements.length] = msg.retain();
+        size++;
+        msg.history = this;
+        msg.charged = msg.getCachedBytes();
+        bytes += msg.charged;
+        evict();
+    }
+
+    /**
+     * 缓冲区中的消息新缓存了帧，按实际缓存的字节数重新计入，已被淘汰的消息忽略
+     */
+    void charge(EncodedMsg msg) {
+        lock.lock();
+        try {
+            if (msg.history != this) {
+                return;
+            }
+            long cached = msg.getCachedBytes();
+            bytes += cached - msg.charged;
+            msg.charged = cached;
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void evict() {
+        while (bytes > maxBytes && size > 1) {
+            removeFirst();
+        }
+    }
+
+    private List<EncodedMsg> copy(int from, int count) {
+        if (count == 0) {
+            return Collections.emptyList();
+        }
+
+        List<EncodedMsg> result = new ArrayList<EncodedMsg>(count);
+        for (int i = from; i < from + count; i++) {
+            result.add(elements[(head + i) % elements.length].retain());
+        }
+
+        return result;
+    }
+
+    private void removeFirst() {
+        EncodedMsg msg = elements[head];
+        elements[head] = null;
+        head = (head + 1) % elements.length;
+        size--;
+        bytes -= msg.charged;
+        msg.history = null;
+        msg.release();
+    }
+}
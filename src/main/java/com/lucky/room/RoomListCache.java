@@ -0,0 +1,144 @@
+package com.lucky.room;
+
+import com.lucky.bean.Room;
+import com.lucky.codec.MsgCodec;
+import com.lucky.codec.SharedFrame;
+import com.lucky.constant.MsgType;
+import com.lucky.constant.ResponseStatus;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * 基于注册表的有序名称索引执行房间列表查询，分页只遍历一页的房间，不需要遍历并分配所有房间。
+ * 不带游标的查询结果按编码方式缓存为已编码的帧，并记下生成时注册表的版本号，
+ * 版本号不变时直接复用，注册表变化后的下一次请求才重新生成
+ */
+public class RoomListCache {
+
+    private static final int MAX_ENTRIES = 256;  // 缓存的查询条件数上限，超过时清空重建
+
+    private final RoomRegistry registry;
+    private final Predicate<String> listed;  // 是否列出该房间，集群模式下排除其他节点拥有的房间
+    private final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+
+    public RoomListCache(RoomRegistry registry, Predicate<String> listed) {
+        this.registry = registry;
+        this.listed = listed;
+    }
+
+    /**
+     * 查询结果的响应帧，可以缓存的查询在注册表没有变化时返回同一个帧
+     */
+    public SharedFrame frame(RoomQuery query, MsgCodec codec) {
+        if (!query.isCacheable()) {
+            return encode(query, codec);
+        }
+
+        String key = codec.id() + " " + query.key();
+        Entry entry = cache.get(key);
+        long version = registry.getVersion();
+        if (entry != null && entry.version == version) {
+            return entry.frame;
+        }
+
+        // 先读版本号再生成，期间有变化时下一次请求会重新生成
+        SharedFrame frame = encode(query, codec);
+        if (cache.size() >= MAX_ENTRIES) {
+            cache.clear();
+        }
+        cache.put(key, new Entry(version, frame));
+        return frame;
+    }
+
+    /**
+     * 执行查询，top查询需要遍历前缀范围内的所有房间，用大小为N的堆选出成员最多的房间
+     */
+    public List<Room> list(RoomQuery query) {
+        NavigableSet<String> names = range(query);
+        if (query.getTop() > 0) {
+            return top(names, query.getTop());
+        }
+
+        List<Room> rooms = new ArrayList<Room>(Math.min(query.getLimit(), 64));
+        for (String name : names) {
+            Room room = toRoom(name);
+            if (room != null) {
+                rooms.add(room);
+                if (rooms.size() >= query.getLimit()) {
+                    break;
+                }
+            }
+        }
+
+        return rooms;
+    }
+
+    private SharedFrame encode(RoomQuery query, MsgCodec codec) {
+        return SharedFrame.of(MsgType.LIST_ROOM, ResponseStatus.OK, codec.encodeRooms(list(query)));
+    }
+
+    /**
+     * 前缀与游标对应的名称区间，名称索引有序，直接取子集视图
+     */
+    private NavigableSet<String> range(RoomQuery query) {
+        String prefix = query.getPrefix();
+        String after = query.getTop() > 0 ? null : query.getAfter();
+        String to = "".equals(prefix) ? null : prefix + Character.MAX_VALUE;
+        boolean fromCursor = after != null && after.compareTo(prefix) >= 0;
+        String from = fromCursor ? after : prefix;
+        if (to != null && from.compareTo(to) >= 0) {
+            return Collections.emptyNavigableSet();
+        }
+
+        NavigableSet<String> names = registry.getNames().tailSet(from, !fromCursor);
+        return to == null ? names : names.headSet(to, false);
+    }
+
+    private List<Room> top(NavigableSet<String> names, int n) {
+        PriorityQueue<Room> heap = new PriorityQueue<Room>(n, Collections.reverseOrder(RoomQuery.BY_USER_COUNT));
+        for (String name : names) {
+            Room room = toRoom(name);
+            if (room == null) {
+                continue;
+            }
+            if (heap.size() < n) {
+                heap.add(room);
+            } else if (RoomQuery.BY_USER_COUNT.compare(room, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(room);
+            }
+        }
+
+        List<Room> rooms = new ArrayList<Room>(heap);
+        Collections.sort(rooms, RoomQuery.BY_USER_COUNT);
+        return rooms;
+    }
+
+    /**
+     * 名称索引与房间表之间是弱一致的，房间已被删除或不需要列出时返回null
+     */
+    private Room toRoom(String name) {
+        if (!listed.test(name)) {
+            return null;
+        }
+        ChatRoom chatRoom = registry.get(name);
+        return chatRoom == null ? null : new Room(name, chatRoom.getMemberCount());
+    }
+
+    private static final class Entry {
+
+        private final long version;
+        private final SharedFrame frame;
+
+        private Entry(long version, SharedFrame frame) {
+            this.version = version;
+            this.frame = frame;
+        }
+    }
+}
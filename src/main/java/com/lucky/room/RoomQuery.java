@@ -0,0 +1,136 @@
+package com.lucky.room;
+
+import com.lucky.bean.Room;
+import com.lucky.constant.ErrorMsg;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 房间列表的查询条件，请求参数为空格分隔的 prefix:{名称前缀} after:{上一页最后的房间名} limit:{条数} top:{条数}，
+ * 都可以省略。按名称排序分页，after为游标；指定top时返回成员最多的前N个房间，按成员数从多到少排列
+ */
+public class RoomQuery {
+
+    private static final String PREFIX = "prefix:";
+    private static final String AFTER = "after:";
+    private static final String LIMIT = "limit:";
+    private static final String TOP = "top:";
+
+    /**
+     * 按成员数从多到少，相同时按名称排序
+     */
+    static final Comparator<Room> BY_USER_COUNT = new Comparator<Room>() {
+        @Override
+        public int compare(Room a, Room b) {
+            int c = Integer.compare(b.getUserCount(), a.getUserCount());
+            return c != 0 ? c : a.getName().compareTo(b.getName());
+        }
+    };
+
+    private static final Comparator<Room> BY_NAME = new Comparator<Room>() {
+        @Override
+        public int compare(Room a, Room b) {
+            return a.getName().compareTo(b.getName());
+        }
+    };
+
+    private final String prefix;  // 为空时不过滤
+    private final String after;   // 为null时从第一页开始
+    private final int limit;
+    private final int top;        // 大于0时按成员数取前N个，忽略after与limit
+
+    private RoomQuery(String prefix, String after, int limit, int top) {
+        this.prefix = prefix;
+        this.after = after;
+        this.limit = limit;
+        this.top = top;
+    }
+
+    /**
+     * 解析请求参数，limit与top超过maxLimit时按maxLimit处理
+     */
+    public static RoomQuery parse(String arg, int defaultLimit, int maxLimit) throws Exception {
+        String prefix = "";
+        String after = null;
+        int limit = defaultLimit;
+        int top = 0;
+        try {
+            for (String part : arg.trim().split(" +")) {
+                if ("".equals(part)) {
+                    continue;
+                }
+                if (part.startsWith(PREFIX)) {
+                    prefix = part.substring(PREFIX.length());
+                } else if (part.startsWith(AFTER)) {
+                    after = part.substring(AFTER.length());
+                } else if (part.startsWith(LIMIT)) {
+                    limit = Integer.parseInt(part.substring(LIMIT.length()));
+                } else if (part.startsWith(TOP)) {
+                    top = Integer.parseInt(part.substring(TOP.length()));
+                } else {
+                    throw new Exception(ErrorMsg.INVALID_ARGUMENT);
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new Exception(ErrorMsg.INVALID_ARGUMENT);
+        }
+        if (limit <= 0 || top < 0) {
+            throw new Exception(ErrorMsg.INVALID_ARGUMENT);
+        }
+
+        return new RoomQuery(prefix, after, Math.min(limit, maxLimit), Math.min(top, maxLimit));
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public String getAfter() {
+        return after;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getTop() {
+        return top;
+    }
+
+    /**
+     * 不带游标的查询(第一页、前缀查询的第一页、top)会被反复请求，结果可以缓存
+     */
+    public boolean isCacheable() {
+        return after == null || top > 0;
+    }
+
+    /**
+     * 缓存的key，条件相同的查询得到相同的key
+     */
+    public String key() {
+        return top > 0 ? "top:" + top + " " + prefix : "limit:" + limit + " " + prefix;
+    }
+
+    public boolean matches(String name) {
+        return name.startsWith(prefix);
+    }
+
+    /**
+     * 对已有的房间列表执行查询，用于集群模式下合并各节点的房间之后
+     */
+    public List<Room> apply(List<Room> rooms) {
+        List<Room> result = new ArrayList<Room>();
+        for (Room room : rooms) {
+            if (matches(room.getName()) && (top > 0 || after == null || room.getName().compareTo(after) > 0)) {
+                result.add(room);
+            }
+        }
+
+        Collections.sort(result, top > 0 ? BY_USER_COUNT : BY_NAME);
+        int count = top > 0 ? top : limit;
+        return result.size() > count ? new ArrayList<Room>(result.subList(0, count)) : result;
+    }
+}
@@ -0,0 +1,371 @@
+package com.lucky.room;
+
+import com.lucky.bean.ChatMsg;
+import com.lucky.buffer.BufferPool;
+import com.lucky.constant.ErrorMsg;
+import com.lucky.net.Connection;
+import com.lucky.net.RateLimit;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+/**
+ * 聊天室注册表，不使用全局锁。
+ * 创建、加入、退出(最后一人退出时删除房间)都是针对单个房间名的原子操作，
+ * 由ConcurrentHashMap的compute系列方法保证，只会锁住该房间所在的桶，
+ * 一个房间的频繁进出不会影响其他房间的操作与消息分发。
+ * 另外维护按名称排序的房间名索引，在同一个compute中与房间一起增删，
+ * 以及房间增删或成员数变化时递增的版本号，房间列表的缓存按版本号判断是否需要重建。
+ * 每个房间的actor共享同一个调度器，成员变化对消息接收者的影响在actor中按顺序生效。
+ * compute中只把成员变化放入actor的邮箱(保持与桶锁相同的顺序)，返回后才调度执行，
+ * 调度器为null时actor在调用线程中执行，也不会在桶锁内回复、回放或分发
+ */
+public class RoomRegistry {
+
+    private final ConcurrentHashMap<String, ChatRoom> rooms = new ConcurrentHashMap<String, ChatRoom>();
+    private final ConcurrentSkipListSet<String> names = new ConcurrentSkipListSet<String>();  // 按名称排序的房间名
+    private final AtomicLong version = new AtomicLong();
+    // 从消息日志恢复的历史消息，同名房间再次创建时放入它的历史缓冲区
+    private final ConcurrentHashMap<String, List<ChatMsg>> seeds = new ConcurrentHashMap<String, List<ChatMsg>>();
+    private final int historyCapacity;   // 每个房间保留的最近消息条数
+    private final long historyMaxBytes;  // 每个房间最近消息占用的最大字节数
+    private final BufferPool pool;       // 历史消息帧的缓冲区池，为null时不池化
+    private final Executor scheduler;    // 房间actor的调度器，为null时由调用线程执行
+    private final int quantum;           // 房间actor每轮调度增加的额度
+    private final RateLimit roomLimit;   // 每个房间发送消息的限流
+
+    public RoomRegistry(int historyCapacity, long historyMaxBytes) {
+        this(historyCapacity, historyMaxBytes, null, null, 1, new RateLimit(0, 1));
+    }
+
+    public RoomRegistry(int historyCapacity, long historyMaxBytes, BufferPool pool, Executor scheduler, int quantum,
+                        RateLimit roomLimit) {
+        this.historyCapacity = historyCapacity;
+        this.historyMaxBytes = historyMaxBytes;
+        this.pool = pool;
+        this.scheduler = scheduler;
+        this.quantum = quantum;
+        this.roomLimit = roomLimit;
+    }
+
+    public ChatRoom get(String roomName) {
+        return rooms.get(roomName);
+    }
+
+    /**
+     * 所有房间，弱一致性视图，遍历时不加锁
+     */
+    public Collection<ChatRoom> getRooms() {
+        return Collections.unmodifiableCollection(rooms.values());
+    }
+
+    public int size() {
+        return rooms.size();
+    }
+
+    /**
+     * 按名称排序的房间名，弱一致性视图，用于分页与前缀查询
+     */
+    public NavigableSet<String> getNames() {
+        return Collections.unmodifiableNavigableSet(names);
+    }
+
+    /**
+     * 房间增删或成员数变化时递增
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * 记录某个房间恢复出的历史消息(按序号从小到大)，在该房间下一次被创建时使用
+     */
+    public void seedHistory(String roomName, List<ChatMsg> chatMsgs) {
+        seeds.put(roomName, chatMsgs);
+    }
+
+    public ChatRoom create(Connection conn, String roomName) throws Exception {
+        return create(conn, roomName, null);
+    }
+
+    /**
+     * 创建聊天室，创建者自动成为第一个成员，创建成功后onJoined在房间的actor中执行
+     */
+    public ChatRoom create(final Connection conn, String roomName, final Runnable onJoined) throws Exception {
+        RoomHistory history = newHistory();
+        List<ChatMsg> seed = seeds.remove(roomName);
+        if (seed != null) {
+            history.restore(seed);
+        }
+
+        final ChatRoom room = new ChatRoom(roomName, history, scheduler, quantum, roomLimit.newBucket());
+        boolean added = putIfAbsent(room, new Runnable() {
+            @Override
+            public void run() {
+                room.add(conn, onJoined);
+            }
+        });
+        if (!added) {
+            if (seed != null) {
+                seeds.putIfAbsent(roomName, seed);
+            }
+            history.clear();
+            throw new Exception(ErrorMsg.ROOM_EXIST);
+        }
+
+        return room;
+    }
+
+    public ChatRoom join(Connection conn, String roomName) throws Exception {
+        return join(conn, roomName, null);
+    }
+
+    /**
+     * 加入已存在的聊天室，与同一房间的删除操作互斥，不会加入一个正在被删除的房间。
+     * onJoined在房间的actor中紧接着加入执行
+     */
+    public ChatRoom join(final Connection conn, String roomName, final Runnable onJoined) throws Exception {
+        ChatRoom room = rooms.computeIfPresent(roomName, new BiFunction<String, ChatRoom, ChatRoom>() {
+            @Override
+            public ChatRoom apply(String name, ChatRoom room) {
+                room.add(conn, onJoined);
+                return room;
+            }
+        });
+
+        if (room == null) {
+            throw new Exception(ErrorMsg.ROOM_NOT_EXIST);
+        }
+
+        room.resume();
+        version.incrementAndGet();
+        return room;
+    }
+
+    /**
+     * 退出聊天室，没有成员时原子地删除房间
+     */
+    public void leave(final Connection conn, String roomName) throws Exception {
+        final boolean[] found = new boolean[1];  // 在房间中
+        final ChatRoom[] touched = new ChatRoom[1];
+        final ChatRoom[] removed = new ChatRoom[1];
+        rooms.computeIfPresent(roomName, new BiFunction<String, ChatRoom, ChatRoom>() {
+            @Override
+            public ChatRoom apply(String name, ChatRoom room) {
+                touched[0] = room;
+                found[0] = room.remove(conn);
+                return removeIfEmpty(room, removed);
+            }
+        });
+        resume(touched);
+        clearHistory(removed);
+        version.incrementAndGet();
+
+        if (touched[0] == null) {
+            throw new Exception(ErrorMsg.ROOM_NOT_EXIST);
+        }
+        if (!found[0]) {
+            throw new Exception(ErrorMsg.NOT_IN_THIS_ROOM);
+        }
+    }
+
+    /**
+     * 会话恢复时由新连接接替原来的连接在房间中的位置，房间不会因为短暂断开而被删除或重建，
+     * onReplaced在房间的actor中紧接着替换执行
+     */
+    public ChatRoom replace(final Connection previous, final Connection conn, String roomName,
+                            final Runnable onReplaced) throws Exception {
+        final boolean[] found = new boolean[1];
+        ChatRoom room = rooms.computeIfPresent(roomName, new BiFunction<String, ChatRoom, ChatRoom>() {
+            @Override
+            public ChatRoom apply(String name, ChatRoom room) {
+                found[0] = room.replace(previous, conn, onReplaced);
+                return room;
+            }
+        });
+
+        if (room == null) {
+            throw new Exception(ErrorMsg.ROOM_NOT_EXIST);
+        }
+        room.resume();
+        if (!found[0]) {
+            throw new Exception(ErrorMsg.NOT_IN_THIS_ROOM);
+        }
+
+        return room;
+    }
+
+    /**
+     * 集群模式下其他节点在本节点拥有的房间中的副本：加入副本房间，不存在时创建，
+     * 房间是否存在已经由拥有该房间的节点确认，onJoined在房间的actor中紧接着加入执行
+     */
+    public ChatRoom joinReplica(final Connection conn, String roomName, final Runnable onJoined) {
+        ChatRoom joined = rooms.compute(roomName, new BiFunction<String, ChatRoom, ChatRoom>() {
+            @Override
+            public ChatRoom apply(String name, ChatRoom room) {
+                if (room == null) {
+                    room = new ChatRoom(name, newHistory(), scheduler, quantum, roomLimit.newBucket());
+                    names.add(name);
+                }
+                room.add(conn, onJoined);
+                return room;
+            }
+        });
+        joined.resume();
+        version.incrementAndGet();
+        return joined;
+    }
+
+    /**
+     * 其他节点的用户创建本节点拥有的房间，node为该节点在此房间的代理连接，member为该用户的用户名
+     */
+    public ChatRoom createRemote(final Connection node, final String member, String roomName) throws Exception {
+        final ChatRoom room = new ChatRoom(roomName, newHistory(), scheduler, quantum, roomLimit.newBucket());
+        boolean added = putIfAbsent(room, new Runnable() {
+            @Override
+            public void run() {
+                room.addRemote(node, member);
+            }
+        });
+        if (!added) {
+            throw new Exception(ErrorMsg.ROOM_EXIST);
+        }
+
+        return room;
+    }
+
+    /**
+     * 其他节点的用户加入本节点拥有的房间，已经在房间中时不重复计入
+     */
+    public ChatRoom joinRemote(final Connection node, final String member, String roomName) throws Exception {
+        ChatRoom room = rooms.computeIfPresent(roomName, new BiFunction<String, ChatRoom, ChatRoom>() {
+            @Override
+            public ChatRoom apply(String name, ChatRoom room) {
+                room.addRemote(node, member);
+                return room;
+            }
+        });
+
+        if (room == null) {
+            throw new Exception(ErrorMsg.ROOM_NOT_EXIST);
+        }
+
+        room.resume();
+        version.incrementAndGet();
+        return room;
+    }
+
+    /**
+     * 其他节点的用户退出本节点拥有的房间，没有成员时删除房间，不在房间中时什么都不做
+     */
+    public void leaveRemote(final Connection node, final String member, String roomName) {
+        final ChatRoom[] touched = new ChatRoom[1];
+        final ChatRoom[] removed = new ChatRoom[1];
+        rooms.computeIfPresent(roomName, new BiFunction<String, ChatRoom, ChatRoom>() {
+            @Override
+            public ChatRoom apply(String name, ChatRoom room) {
+                touched[0] = room;
+                room.removeRemote(node, member);
+                return removeIfEmpty(room, removed);
+            }
+        });
+        resume(touched);
+        clearHistory(removed);
+        version.incrementAndGet();
+    }
+
+    /**
+     * 用其他节点上报的成员覆盖原有值，用于节点间连接重建后的同步(房间不存在时重新创建)
+     * 以及节点断开后清除它的成员(members为空)
+     */
+    public void syncRemote(final Connection node, String roomName, final Collection<String> members) {
+        final ChatRoom[] touched = new ChatRoom[1];
+        final ChatRoom[] removed = new ChatRoom[1];
+        rooms.compute(roomName, new BiFunction<String, ChatRoom, ChatRoom>() {
+            @Override
+            public ChatRoom apply(String name, ChatRoom room) {
+                if (room == null) {
+                    if (members.isEmpty()) {
+                        return null;
+                    }
+                    room = new ChatRoom(name, newHistory(), scheduler, quantum, roomLimit.newBucket());
+                    names.add(name);
+                }
+                touched[0] = room;
+                room.setRemote(node, members);
+                return removeIfEmpty(room, removed);
+            }
+        });
+        resume(touched);
+        clearHistory(removed);
+        version.incrementAndGet();
+    }
+
+    private RoomHistory newHistory() {
+        return new RoomHistory(historyCapacity, historyMaxBytes, pool);
+    }
+
+    /**
+     * 房间名不存在时放入房间并加入名称索引，返回是否放入。init在同一个compute中加入第一个成员，
+     * 房间不会在放入之后、有成员之前被其他操作删除；加入放入的actor任务在compute返回后调度
+     */
+    private boolean putIfAbsent(final ChatRoom room, final Runnable init) {
+        final boolean[] added = new boolean[1];
+        rooms.compute(room.getName(), new BiFunction<String, ChatRoom, ChatRoom>() {
+            @Override
+            public ChatRoom apply(String name, ChatRoom existing) {
+                if (existing != null) {
+                    return existing;
+                }
+                init.run();
+                names.add(name);
+                added[0] = true;
+                return room;
+            }
+        });
+        if (added[0]) {
+            room.resume();
+            version.incrementAndGet();
+        }
+
+        return added[0];
+    }
+
+    /**
+     * 在compute中调用，没有成员时返回null删除房间，并从名称索引中移除，记下被删除的房间
+     */
+    private ChatRoom removeIfEmpty(ChatRoom room, ChatRoom[] removed) {
+        if (room.getMemberCount() > 0) {
+            return room;
+        }
+
+        names.remove(room.getName());
+        removed[0] = room;
+        return null;
+    }
+
+    /**
+     * 在compute之外调度执行成员变化放入actor邮箱的任务
+     */
+    private static void resume(ChatRoom[] touched) {
+        if (touched[0] != null) {
+            touched[0].resume();
+        }
+    }
+
+    /**
+     * 在compute之外释放被删除房间的历史消息，不在桶锁内做释放
+     */
+    private static void clearHistory(ChatRoom[] removed) {
+        if (removed[0] != null) {
+            removed[0].getHistory().clear();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.lucky.session;
+
+import com.lucky.net.Connection;
+import com.lucky.net.TimingWheel;
+
+/**
+ * 一个客户端会话，连接断开后在宽限期内保留身份与房间成员关系，
+ * 客户端带着令牌重连后由新连接接替。状态只在持有该对象的锁时修改
+ */
+public class Session {
+
+    private final String token;
+    private final String userName;  // 会话创建时确定的用户名，重连后保持不变
+    private Connection conn;        // 当前(或断开前最后一个)连接
+    private long deadline;          // 断开后的过期时间，连接中为0
+    private boolean expired;
+    private TimingWheel.Timeout expiry;  // 宽限期的过期任务，连接中为null
+
+    Session(String token, String userName, Connection conn) {
+        this.token = token;
+        this.userName = userName;
+        this.conn = conn;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public String getUserName() {
+        return userName;
+    }
+
+    synchronized Connection getConn() {
+        return conn;
+    }
+
+    /**
+     * 断开后的过期时间，连接中或已过期时为0
+     */
+    synchronized long getDeadline() {
+        return expired ? 0 : deadline;
+    }
+
+    synchronized void setExpiry(TimingWheel.Timeout expiry) {
+        this.expiry = expiry;
+    }
+
+    /**
+     * 重连后取消宽限期的过期任务
+     */
+    synchronized void cancelExpiry() {
+        if (expiry != null) {
+            expiry.cancel();
+            expiry = null;
+        }
+    }
+
+    /**
+     * 连接断开，开始计算宽限期，连接已被新连接接替时返回false
+     */
+    synchronized boolean detach(Connection conn, long deadline) {
+        if (expired || this.conn != conn) {
+            return false;
+        }
+
+        this.deadline = deadline;
+        return true;
+    }
+
+    /**
+     * 由新连接接替，返回原来的连接，会话已过期时返回null
+     */
+    synchronized Connection attach(Connection conn) {
+        if (expired) {
+            return null;
+        }
+
+        Connection previous = this.conn;
+        this.conn = conn;
+        this.deadline = 0;
+        return previous;
+    }
+
+    /**
+     * 断开超过宽限期时标记为过期，返回断开前的连接，否则返回null
+     */
+    synchronized Connection expireIfDue(long now) {
+        if (expired || deadline == 0 || deadline > now) {
+            return null;
+        }
+
+        expired = true;
+        return conn;
+    }
+}
@@ -0,0 +1,192 @@
+package com.lucky.session;
+
+import com.lucky.Server;
+import com.lucky.net.Connection;
+import com.lucky.net.TimingWheel;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 会话管理，客户端请求后为连接分配会话令牌。连接断开后会话在宽限期内保留房间成员关系，
+ * 期间带着令牌重连可以直接接替原来的身份和房间，不需要退出再加入；
+ * 超过宽限期仍未重连时才把原来的连接从房间中移除。宽限期为0时断开即失效。
+ * 断开时在时间轮上为该会话添加一个过期任务，重连时取消，不需要定期扫描所有会话
+ */
+public class SessionManager {
+
+    private static final long TICK_MILLIS = 100;
+    private static final int WHEEL_SIZE = 512;
+
+    private final Server server;
+    private final long graceMillis;
+    private final SecureRandom random = new SecureRandom();
+    private final ConcurrentHashMap<String, Session> byToken = new ConcurrentHashMap<String, Session>();
+    // key为当前(或断开前最后一个)连接的id
+    private final ConcurrentHashMap<Long, Session> byConn = new ConcurrentHashMap<Long, Session>();
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final TimingWheel wheel = new TimingWheel("session-wheel", TICK_MILLIS, WHEEL_SIZE);
+    private ExecutorService expirer;  // 执行过期会话的清理，从房间中移除不在时间轮线程中执行
+
+    public SessionManager(Server server, long graceMillis) {
+        this.server = server;
+        this.graceMillis = graceMillis;
+    }
+
+    public void start() {
+        expirer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "session-expirer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (graceMillis > 0) {
+            wheel.start();
+        }
+    }
+
+    public void close() {
+        wheel.stop();
+        if (expirer != null) {
+            expirer.shutdownNow();
+        }
+    }
+
+    /**
+     * 为连接分配会话，已有会话时直接返回
+     */
+    public Session open(Connection conn) {
+        Session session = byConn.get(conn.getId());
+        if (session != null) {
+            return session;
+        }
+
+        session = new Session(newToken(), server.getUserName(conn), conn);
+        byToken.put(session.getToken(), session);
+        byConn.put(conn.getId(), session);
+        opened.increment();
+        return session;
+    }
+
+    /**
+     * 新连接接替令牌对应的会话，返回原来的连接，令牌不存在或会话已过期时返回null。
+     * 新连接之前分配的会话随之作废
+     */
+    public Connection resume(String token, Connection conn) {
+        Session session = byToken.get(token);
+        if (session == null) {
+            return null;
+        }
+
+        Connection previous = session.attach(conn);
+        if (previous == null) {
+            return null;
+        }
+        session.cancelExpiry();
+
+        byConn.remove(previous.getId(), session);
+        Session own = byConn.put(conn.getId(), session);
+        if (own != null && own != session) {
+            byToken.remove(own.getToken(), own);
+        }
+        resumed.increment();
+        return previous;
+    }
+
+    /**
+     * 连接断开，会话进入宽限期时返回true，此时不应把连接从房间中移除
+     */
+    public boolean detach(Connection conn) {
+        Session session = byConn.get(conn.getId());
+        if (session == null) {
+            return false;
+        }
+
+        if (graceMillis > 0 && session.detach(conn, System.currentTimeMillis() + graceMillis)) {
+            scheduleExpiry(session, graceMillis);
+            return true;
+        }
+
+        byConn.remove(conn.getId(), session);
+        if (session.getConn() == conn) {  // 没有被其他连接接替，会话随连接失效
+            byToken.remove(session.getToken(), session);
+        }
+        return false;
+    }
+
+    /**
+     * 连接所属会话的用户名，没有会话时返回null
+     */
+    public String getUserName(Connection conn) {
+        Session session = byConn.get(conn.getId());
+        return session == null ? null : session.getUserName();
+    }
+
+    public int size() {
+        return byToken.size();
+    }
+
+    @Override
+    public String toString() {
+        return "sessions=" + byToken.size() + ", opened=" + opened.sum() + ", resumed=" + resumed.sum()
+                + ", expired=" + expired.sum();
+    }
+
+    private void scheduleExpiry(final Session session, long delayMillis) {
+        session.setExpiry(wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                expirer.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        expire(session);
+                    }
+                });
+            }
+        }, TimeUnit.MILLISECONDS.toNanos(delayMillis)));
+    }
+
+    /**
+     * 过期任务到期，期间已重连时什么都不做，时间轮的精度为一格，提前到期时补上剩余的时间
+     */
+    private void expire(Session session) {
+        long now = System.currentTimeMillis();
+        Connection conn = session.expireIfDue(now);
+        if (conn == null) {
+            long remaining = session.getDeadline() - now;
+            if (remaining > 0) {
+                scheduleExpiry(session, remaining);
+            }
+            return;
+        }
+
+        byToken.remove(session.getToken(), session);
+        byConn.remove(conn.getId(), session);
+        expired.increment();
+        try {
+            server.sessionExpired(session, conn);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private String newToken() {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        StringBuilder sb = new StringBuilder(32);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return sb.toString();
+    }
+}
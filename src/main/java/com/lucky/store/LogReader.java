@@ -0,0 +1,101 @@
+package com.lucky.store;
+
+import com.lucky.bean.ChatMsg;
+import com.lucky.codec.FrameCodec;
+import com.lucky.codec.MsgCodecs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * 顺序读取消息日志，每个分段整体映射到内存后依次解析。
+ * 记录格式: int(负载长度) int(负载CRC32) 负载，负载为: short(房间名长度) 房间名 二进制编码的聊天消息。
+ * 遇到不完整或校验失败的记录时认为该分段到此结束(通常是宕机时写了一半的尾部)
+ */
+public class LogReader {
+
+    static final int RECORD_HEADER_LENGTH = 8;
+
+    private final File dir;
+
+    public LogReader(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * 按写入顺序读取所有记录，返回读取的记录数
+     */
+    public long read(final LogRecordHandler handler) throws IOException {
+        final long[] count = new long[1];
+        LogRecordHandler counting = new LogRecordHandler() {
+            @Override
+            public void onRecord(String roomName, ChatMsg chatMsg) {
+                count[0]++;
+                handler.onRecord(roomName, chatMsg);
+            }
+        };
+
+        for (File segment : LogSegments.list(dir)) {
+            readSegment(segment, counting);
+        }
+
+        return count[0];
+    }
+
+    /**
+     * 读取一个分段，handler为null时只做校验，返回最后一条完整记录之后的位置
+     */
+    static long readSegment(File segment, LogRecordHandler handler) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segment, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            if (size == 0) {
+                return 0;
+            }
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            CRC32 crc = new CRC32();
+            byte[] payload = new byte[256];
+            int pos = 0;
+            while (size - pos >= RECORD_HEADER_LENGTH) {
+                int length = buffer.getInt(pos);
+                if (length < 2 || length > size - pos - RECORD_HEADER_LENGTH) {
+                    break;
+                }
+
+                int storedCrc = buffer.getInt(pos + 4);
+                if (payload.length < length) {
+                    payload = new byte[Math.max(length, payload.length * 2)];
+                }
+                buffer.position(pos + RECORD_HEADER_LENGTH);
+                buffer.get(payload, 0, length);
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != storedCrc) {
+                    break;
+                }
+
+                int roomLength = ((payload[0] & 0xff) << 8) | (payload[1] & 0xff);
+                if (roomLength > length - 2) {
+                    break;
+                }
+                if (handler != null) {
+                    String roomName = FrameCodec.decodeString(payload, 2, roomLength);
+                    ChatMsg chatMsg = MsgCodecs.BINARY.decodeChatMsg(payload, 2 + roomLength, length - 2 - roomLength);
+                    handler.onRecord(roomName, chatMsg);
+                }
+
+                pos += RECORD_HEADER_LENGTH + length;
+            }
+
+            return pos;
+        } finally {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.lucky.store;
+
+import com.lucky.bean.ChatMsg;
+
+/**
+ * 顺序读取消息日志时每条记录的回调
+ */
+public interface LogRecordHandler {
+
+    void onRecord(String roomName, ChatMsg chatMsg);
+}
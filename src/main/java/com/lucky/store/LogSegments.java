@@ -0,0 +1,52 @@
+package com.lucky.store;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * 日志分段文件的命名与查找，文件名为该段第一条记录的全局编号，补齐20位，后缀.log
+ */
+final class LogSegments {
+
+    static final String SUFFIX = ".log";
+
+    private LogSegments() {
+    }
+
+    static String fileName(long baseOffset) {
+        return String.format("%020d", baseOffset) + SUFFIX;
+    }
+
+    static long baseOffset(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    /**
+     * 目录下所有分段文件，按起始编号从小到大
+     */
+    static File[] list(File dir) {
+        File[] files = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                String name = file.getName();
+                return file.isFile() && name.endsWith(SUFFIX)
+                        && name.length() == 20 + SUFFIX.length();
+            }
+        });
+
+        if (files == null) {
+            return new File[0];
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        return files;
+    }
+}
@@ -0,0 +1,302 @@
+package com.lucky.store;
+
+import com.lucky.bean.ChatMsg;
+import com.lucky.codec.FrameCodec;
+import com.lucky.codec.MsgCodecs;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * 追加写的消息日志，所有房间共用一组分段文件。
+ * 分发线程只把消息放入有界队列，队列满时丢弃并计数，永远不会阻塞分发；
+ * 单独的写线程批量取出消息，一次FileChannel写入、一次force完成一批(group commit)。
+ * 当前分段超过log.segmentBytes时滚动到新分段，并按总大小与保留时间删除最早的分段
+ */
+public class MessageLog {
+
+    private static final Logger logger = Logger.getLogger(MessageLog.class);
+
+    private final File dir;
+    private final long segmentBytes;     // 单个分段的最大字节数
+    private final long retentionBytes;   // 所有分段的最大总字节数
+    private final long retentionMillis;  // 分段的最长保留时间
+    private final boolean fsync;         // 每批写入后是否force到磁盘
+    private final int flushBatch;        // 每批最多写入的消息数
+    private final long flushIntervalMillis;
+    private final BlockingQueue<Entry> queue;
+    private final AtomicLong appended = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+    private final AtomicLong written = new AtomicLong(0);
+    private final AtomicLong commits = new AtomicLong(0);
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer writeBuffer = ByteBuffer.allocateDirect(1024 * 1024);
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private long segmentSize;   // 当前分段已写入的字节数
+    private long nextOffset;    // 下一条记录的全局编号
+    private Thread writer;
+    private volatile boolean alive;
+
+    public MessageLog(File dir, long segmentBytes, long retentionBytes, long retentionMillis,
+                      boolean fsync, int queueSize, int flushBatch, long flushIntervalMillis) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        this.fsync = fsync;
+        this.flushBatch = Math.max(1, flushBatch);
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.queue = new ArrayBlockingQueue<Entry>(queueSize);
+    }
+
+    /**
+     * 打开最后一个分段继续追加(截掉不完整的尾部)，并启动写线程
+     */
+    public void start() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can not create log dir: " + dir);
+        }
+
+        File[] segments = LogSegments.list(dir);
+        if (segments.length == 0) {
+            openSegment(0);
+        } else {
+            File last = segments[segments.length - 1];
+            final long[] records = new long[1];
+            long validEnd = LogReader.readSegment(last, new LogRecordHandler() {
+                @Override
+                public void onRecord(String roomName, ChatMsg chatMsg) {
+                    records[0]++;
+                }
+            });
+            nextOffset = LogSegments.baseOffset(last) + records[0];
+            file = new RandomAccessFile(last, "rw");
+            channel = file.getChannel();
+            if (channel.size() > validEnd) {
+                logger.info("truncate incomplete tail of " + last.getName() + " at " + validEnd);
+                channel.truncate(validEnd);
+            }
+            channel.position(validEnd);
+            segmentSize = validEnd;
+        }
+        applyRetention();
+
+        alive = true;
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "message-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        logger.info("message log started, dir: " + dir + ", next offset: " + nextOffset);
+    }
+
+    /**
+     * 追加一条消息，只放入队列，不做任何IO
+     * @return false表示队列已满，消息未被记录
+     */
+    public boolean append(String roomName, ChatMsg chatMsg) {
+        if (!alive) {
+            return false;
+        }
+
+        if (!queue.offer(new Entry(roomName, chatMsg))) {
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        appended.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * 停止写线程，写完队列中剩余的消息后关闭文件
+     */
+    public void close() {
+        alive = false;
+        if (writer != null) {
+            try {
+                writer.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    public int getBacklog() {
+        return queue.size();
+    }
+
+    @Override
+    public String toString() {
+        return "appended=" + appended.get() + ", written=" + written.get() + ", dropped=" + dropped.get()
+                + ", commits=" + commits.get() + ", backlog=" + queue.size();
+    }
+
+    private void writeLoop() {
+        List<Entry> batch = new ArrayList<Entry>(flushBatch);
+        try {
+            while (alive || !queue.isEmpty()) {
+                Entry first = queue.poll(flushIntervalMillis, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+
+                batch.add(first);
+                queue.drainTo(batch, flushBatch - 1);
+                writeBatch(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            logger.error("message log write failed, stop logging", e);
+            alive = false;
+            queue.clear();
+        } finally {
+            closeSegment();
+        }
+    }
+
+    /**
+     * 一批消息编码到同一个缓冲区，一次写入，一次force
+     */
+    private void writeBatch(List<Entry> batch) throws IOException {
+        writeBuffer.clear();
+        for (Entry entry : batch) {
+            byte[] room = entry.roomName.getBytes(FrameCodec.UTF_8);
+            byte[] body = MsgCodecs.BINARY.encodeChatMsg(entry.chatMsg);
+            int length = 2 + room.length + body.length;
+            int recordLength = LogReader.RECORD_HEADER_LENGTH + length;
+
+            if (segmentSize + writeBuffer.position() + recordLength > segmentBytes
+                    && segmentSize + writeBuffer.position() > 0) {
+                flushBuffer();
+                rollSegment();
+            }
+            if (writeBuffer.remaining() < recordLength) {
+                flushBuffer();
+                if (writeBuffer.capacity() < recordLength) {
+                    writeBuffer = ByteBuffer.allocateDirect(recordLength);
+                }
+            }
+
+            crc.reset();
+            crc.update(room.length >>> 8);
+            crc.update(room.length);
+            crc.update(room, 0, room.length);
+            crc.update(body, 0, body.length);
+            writeBuffer.putInt(length);
+            writeBuffer.putInt((int) crc.getValue());
+            writeBuffer.putShort((short) room.length);
+            writeBuffer.put(room);
+            writeBuffer.put(body);
+            nextOffset++;
+        }
+
+        flushBuffer();
+        if (fsync) {
+            channel.force(false);
+        }
+        commits.incrementAndGet();
+        written.addAndGet(batch.size());
+    }
+
+    private void flushBuffer() throws IOException {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            segmentSize += channel.write(writeBuffer);
+        }
+        writeBuffer.clear();
+    }
+
+    private void rollSegment() throws IOException {
+        if (fsync) {
+            channel.force(false);
+        }
+        closeSegment();
+        openSegment(nextOffset);
+        applyRetention();
+    }
+
+    private void openSegment(long baseOffset) throws IOException {
+        File segment = new File(dir, LogSegments.fileName(baseOffset));
+        file = new RandomAccessFile(segment, "rw");
+        channel = file.getChannel();
+        channel.position(channel.size());
+        segmentSize = channel.size();
+        nextOffset = baseOffset;
+    }
+
+    private void closeSegment() {
+        try {
+            if (file != null) {
+                file.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 从最早的分段开始删除，直到总大小与保留时间都满足要求，当前分段不会被删除
+     */
+    private void applyRetention() {
+        File[] segments = LogSegments.list(dir);
+        long total = 0;
+        for (File segment : segments) {
+            total += segment.length();
+        }
+
+        long expireBefore = System.currentTimeMillis() - retentionMillis;
+        for (int i = 0; i < segments.length - 1; i++) {
+            File segment = segments[i];
+            if (total <= retentionBytes && segment.lastModified() >= expireBefore) {
+                break;
+            }
+
+            long length = segment.length();
+            if (segment.delete()) {
+                total -= length;
+                logger.info("delete expired log segment " + segment.getName());
+            }
+        }
+    }
+
+    private static final class Entry {
+
+        private final String roomName;
+        private final ChatMsg chatMsg;
+
+        private Entry(String roomName, ChatMsg chatMsg) {
+            this.roomName = roomName;
+            this.chatMsg = chatMsg;
+        }
+    }
+}
@@ -1,22 +1,26 @@
 package com.lucky.thread;
 
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
 import com.lucky.Client;
 import com.lucky.bean.ChatMsg;
 import com.lucky.bean.Room;
+import com.lucky.codec.FrameCodec;
+import com.lucky.codec.FrameDecoder;
+import com.lucky.codec.FrameHandler;
+import com.lucky.codec.MsgCodec;
+import com.lucky.codec.MsgCodecs;
 import com.lucky.constant.MsgType;
 import com.lucky.constant.ResponseStatus;
 import org.apache.log4j.Logger;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.text.DateFormat;
 import java.util.List;
 
-public class ClientSocketThread extends Thread {
+public class ClientSocketThread implements Runnable, FrameHandler {
 
     private static final Logger logger = Logger.getLogger(ClientSocketThread.class);
 
@@ -25,29 +29,53 @@ public class ClientSocketThread extends Thread {
     private InputStream is;
     private boolean alive;
     private byte[] buffer = new byte[1024];
-    private String message;
-    private Gson gson = new Gson();
+    private FrameDecoder decoder;
+    private DateFormat dateFormat = DateFormat.getDateTimeInstance();  // 只在接收线程中使用
+    private boolean pinged;  // 读超时后已发送PING，尚未收到任何数据
 
     public ClientSocketThread(Client client) {
         this.client = client;
         this.socket = client.getSocket();
         this.is = client.getIs();
         alive = client.isAlive();
+        decoder = new FrameDecoder(client.getMaxFrameLength());
     }
 
+    /**
+     * 开启心跳时读操作带超时：超过心跳间隔没有收到数据时发送PING，再超时一次仍然没有数据则认为服务器已失效，
+     * 主动断开，不需要等待TCP发现连接中断(服务器宕机或网络中断时阻塞的读可能永远不会返回)
+     */
     @Override
     public void run() {
+        int heartbeat = client.getHeartbeatMillis();
+        if (heartbeat > 0) {
+            try {
+                socket.setSoTimeout(heartbeat);
+            } catch (SocketException e) {
+                logger.info("set read timeout failed: " + e.getMessage());
+            }
+        }
+
         while (alive) {  // 接收客户端socket发送的消息
             try {
-                int len = is.read(buffer);  // 假设数据都是一次读完，不存在组包
+                int len = is.read(buffer);
                 if (len == -1) {  // 客户端socket已经关闭
                     close();
                     break;
                 }
 
-                message = new String(buffer, 0, len);
-                //logger.info("receive message from server: " + message);
-                handlerMsg(message);
+                pinged = false;
+                decoder.decode(buffer, 0, len, this);  // 一次读取可能包含半个或多个帧
+            } catch (SocketTimeoutException e) {
+                if (!pinged) {
+                    pinged = true;
+                    client.sendHeartbeat(MsgType.PING, String.valueOf(System.currentTimeMillis()));
+                    continue;
+                }
+
+                logger.info("no response from server in " + 2 * heartbeat + " ms");
+                closeSocket();
+                close();
             } catch (IOException e) {
                 close();
                 logger.info("socket closed");
@@ -56,42 +84,101 @@ public class ClientSocketThread extends Thread {
     }
 
     /**
-     * 处理从服务器发来的消息
+     * 处理从服务器发来的消息，消息体为: 1字节消息类型 + 1字节状态 + 数据，
+     * 聊天消息与房间列表按照握手选定的编码方式解码，其余数据为UTF-8文本
      */
-    private void handlerMsg(String msg) {
-        if (msg.length() < 2) {
+    @Override
+    public void onFrame(byte[] buffer, int offset, int length) {
+        if (length < 2) {
             return;
         }
 
-        char type = msg.charAt(0);
-        char status = msg.charAt(1);
-        String data = msg.substring(2);
+        char type = (char) buffer[offset];
+        char status = (char) buffer[offset + 1];
+        int bodyOffset = offset + 2;
+        int bodyLength = length - 2;
         if (status == ResponseStatus.FAIL) {
-            logger.info("request failed, error message: " + data);
+            if (type == MsgType.HANDSHAKE) {  // 服务器不支持，退回默认编码
+                client.setCodec(MsgCodecs.JSON);
+            }
+            if (type == MsgType.SESSION) {
+                client.onSessionExpired();
+            }
+            if (type == MsgType.BUSY) {
+                client.onBusy(Long.parseLong(FrameCodec.decodeString(buffer, bodyOffset, bodyLength).trim()));
+                return;
+            }
+            logger.info("request failed, error message: " + FrameCodec.decodeString(buffer, bodyOffset, bodyLength));
             return;
         }
 
+        MsgCodec codec = client.getCodec();
         switch (type) {
             case MsgType.LIST_ROOM:
-                List<Room> rooms = gson.fromJson(data, new TypeToken<List<Room>>() {
-                }.getType());
-                printRooms(rooms);
+                printRooms(codec.decodeRooms(buffer, bodyOffset, bodyLength));
                 break;
+            case MsgType.CHAT:
+                ChatMsg chatMsg = codec.decodeChatMsg(buffer, bodyOffset, bodyLength);
+                if (!client.acceptChat(chatMsg.getRoom(), chatMsg.getSeq())) {  // 恢复会话时重复的补发消息
+                    break;
+                }
+                String prefix = chatMsg.getRoom() == null ? "" : "[" + chatMsg.getRoom() + "] ";
+                System.out.println(prefix + chatMsg.getUser() + ": " + chatMsg.getMsg() + "    " + dateFormat.format(chatMsg.getDate()));
+                break;
+            case MsgType.DIRECT:
+                ChatMsg directMsg = codec.decodeChatMsg(buffer, bodyOffset, bodyLength);
+                System.out.println("[direct] " + directMsg.getUser() + " -> " + directMsg.getTo() + ": "
+                        + directMsg.getMsg() + "    " + dateFormat.format(directMsg.getDate()));
+                break;
+            default:
+                handlerMsg(type, FrameCodec.decodeString(buffer, bodyOffset, bodyLength));
+        }
+    }
+
+    /**
+     * 处理从服务器发来的文本消息
+     */
+    private void handlerMsg(char type, String data) {
+        switch (type) {
             case MsgType.JOIN_ROOM:
                 logger.info("joined chat room " + data + " successfully");
-                client.setChatRoom(data);
+                client.onJoined(data);
                 break;
             case MsgType.QUIT_ROOM:
-                logger.info("quit chat room successfully");
-                client.setChatRoom("");
+                int space = data.indexOf(' ');
+                String current = space < 0 ? "" : data.substring(space + 1);
+                client.onQuit(space < 0 ? data : data.substring(0, space), current);
+                logger.info("quit chat room successfully" + ("".equals(current) ? "" : ", current chat room: " + current));
                 break;
             case MsgType.CREATE_ROOM:
                 logger.info("create chat room " + data + " successfully");
+                client.onJoined(data);
+                break;
+            case MsgType.SWITCH_ROOM:
+                logger.info("switch to chat room " + data);
                 client.setChatRoom(data);
                 break;
-            case MsgType.CHAT:
-                ChatMsg chatMsg = gson.fromJson(data, ChatMsg.class);
-                System.out.println(chatMsg.getUser() + ": " + chatMsg.getMsg() + "    " + chatMsg.getDate().toLocaleString());
+            case MsgType.HISTORY:
+                logger.info(data + " history messages replayed");
+                break;
+            case MsgType.HANDSHAKE:
+                logger.info("use " + data + " encoding");
+                break;
+            case MsgType.METRICS:
+                System.out.println(data);
+                break;
+            case MsgType.PING:  // 服务器检测空闲连接，原样回复
+                client.sendHeartbeat(MsgType.PONG, data);
+                break;
+            case MsgType.PONG:
+                break;
+            case MsgType.SESSION:
+                int index = data.indexOf(' ');
+                String room = index < 0 ? "" : data.substring(index + 1);
+                client.onSession(index < 0 ? data : data.substring(0, index), room);
+                if (!"".equals(room)) {
+                    logger.info("session resumed in chat room " + room);
+                }
                 break;
             default:
                 logger.info("invalid type");
@@ -108,12 +195,22 @@ public class ClientSocketThread extends Thread {
         for (Room room : rooms) {
             System.out.println("Room Name: " + room.getName() + "      User count: " + room.getUserCount());
         }
+        System.out.println("next page: '#1 after:" + rooms.get(rooms.size() - 1).getName() + "'");
         System.out.println("--------------------------");
     }
 
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     private void close() {
-        logger.info("clientSocket-" + this.getId() + " invoke close(), thread close");
+        logger.info(Thread.currentThread().getName() + " invoke close(), thread close");
         alive = false;
         client.setAlive(false);
+        client.ready();
     }
 }
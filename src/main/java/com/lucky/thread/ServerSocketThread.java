@@ -1,39 +1,59 @@
 package com.lucky.thread;
 
-import com.google.gson.Gson;
 import com.lucky.Server;
-import com.lucky.bean.ChatMsg;
-import com.lucky.constant.MsgType;
-import com.lucky.constant.ResponseStatus;
+import com.lucky.buffer.PooledBuffer;
+import com.lucky.codec.FrameCodec;
+import com.lucky.codec.FrameDecoder;
+import com.lucky.codec.FrameHandler;
+import com.lucky.codec.MsgCodec;
+import com.lucky.codec.MsgCodecs;
+import com.lucky.codec.SharedFrame;
+import com.lucky.net.Connection;
+import com.lucky.net.FlushPolicy;
+import com.lucky.net.OutboundQueue;
 import org.apache.log4j.Logger;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
-import java.util.Date;
-
-public class ServerSocketThread extends Thread {
-
-    private Logger logger = Logger.getLogger(ServerSocketThread.class);
-
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 阻塞模型下的一个客户端连接，由平台线程或虚拟线程执行(thread.mode)。
+ * 发送的帧先放入有界队列，由单独的写线程(thread.writerMode)写出，发送方不会被慢客户端阻塞，
+ * 因此每个连接有一个读线程和一个写线程。
+ * 写线程一次取出队列中积压的多个帧，拷贝到一个池化缓冲区后一次write，按FlushPolicy合并。
+ * 读写都直接使用socket流而不是Buffered流：Buffered流的读写方法是synchronized的，
+ * 在虚拟线程中阻塞于其中会占住载体线程
+ */
+public class ServerSocketThread implements Runnable, Connection, FrameHandler {
+
+    private static final Logger logger = Logger.getLogger(ServerSocketThread.class);
+    private static final AtomicLong idGenerator = new AtomicLong(0);
+
+    private long id;
     private Socket socket;
     private Server server;
-    private BufferedInputStream bis;
-    private BufferedOutputStream bos;
-    private boolean alive;
+    private InputStream is;
+    private OutputStream os;
+    private OutboundQueue outbound;  // 待发送队列，只有写线程写socket，帧不会交错
+    private volatile boolean alive;
     private byte[] buffer = new byte[1024];
-    private String message;
-    private String chatRoom = "";
-    private Gson gson = new Gson();
+    private FrameDecoder decoder;
+    private volatile String chatRoom = "";
+    private volatile MsgCodec codec = MsgCodecs.JSON;
 
     public ServerSocketThread(Socket socket, Server server) {
+        this.id = idGenerator.incrementAndGet();
         this.socket = socket;
         this.server = server;
+        this.decoder = new FrameDecoder(server.getMaxFrameLength());
+        this.outbound = server.newOutboundQueue();
         try {
-            bis = new BufferedInputStream(socket.getInputStream());
-            bos = new BufferedOutputStream(socket.getOutputStream());
+            is = socket.getInputStream();
+            os = socket.getOutputStream();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -43,20 +63,33 @@ public class ServerSocketThread extends Thread {
 
     @Override
     public void run() {
+        VirtualThreads.start(server.getWriterThreadMode(), "user-" + id + "-writer", new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        });
+
         while (alive) {  // 接收客户端socket发送的消息
+            int len;
             try {
-                int len = bis.read(buffer);  // 假设数据都是一次读完，不存在组包
+                len = is.read(buffer);
                 if (len == -1) {  // 客户端socket已经关闭
                     close();
                     break;
                 }
-
-                message = new String(buffer, 0, len);
-                //logger.info(this.getId() + ": " + message);
-                handlerMsg(message);
             } catch (IOException e) {
-                alive = false;
+                close();
                 e.printStackTrace();
+                break;
+            }
+
+            try {
+                decoder.decode(buffer, 0, len, this);  // 一次读取可能包含半个或多个帧
+            } catch (IOException e) {  // 帧长度非法
+                server.getMetrics().recordDecodeError();
+                logger.info("user-" + id + " sent an invalid frame: " + e.getMessage());
+                close();
             }
         }
 
@@ -64,94 +97,158 @@ public class ServerSocketThread extends Thread {
         server.socketDisconnect(this);
     }
 
+    @Override
+    public void onFrame(byte[] buffer, int offset, int length) {
+        String message = FrameCodec.decodeString(buffer, offset, length);
+        //logger.info(this.getId() + ": " + message);
+        server.getMsgHandler().handlerMsg(this, message);
+    }
+
+    @Override
+    public long getId() {
+        return id;
+    }
+
+    @Override
     public String getChatRoom() {
         return chatRoom;
     }
 
-    public void sendChatMsg(String msg) {
-        sendMsgWithType(MsgType.CHAT, ResponseStatus.OK, msg);
+    @Override
+    public void setChatRoom(String chatRoom) {
+        this.chatRoom = chatRoom;
     }
 
-    /**
-     * 处理从客户端发来的请求
-     */
-    private void handlerMsg(String msg) {
-        if (msg == null || "".equals(msg)) {
-            return;
-        }
+    @Override
+    public MsgCodec getCodec() {
+        return codec;
+    }
 
-        char type = msg.charAt(0);
-        String roomName;
-        switch (type) {
-            case MsgType.LIST_ROOM:
-                String data = server.getRoomList();
-                sendMsgWithType(type, ResponseStatus.OK, data);
-                break;
-            case MsgType.JOIN_ROOM:
-                roomName = msg.substring(1);
-                try {
-                    server.addSocketToRoom(this, roomName);
-                    sendMsgWithType(type, ResponseStatus.OK, roomName);
-                    chatRoom = roomName;
-                } catch (Exception e) {
-                    sendMsgWithType(type, ResponseStatus.FAIL, e.getMessage());
-                }
-                break;
-            case MsgType.QUIT_ROOM:
-                try {
-                    server.removeSocketFromRoom(this, chatRoom);
-                    sendMsgWithType(type, ResponseStatus.OK, null);
-                    chatRoom = "";
-                } catch (Exception e) {
-                    sendMsgWithType(type, ResponseStatus.FAIL, e.getMessage());
-                }
-                break;
-            case MsgType.CREATE_ROOM:
-                roomName = msg.substring(1);
-                try {
-                    server.createChatRoom(this, roomName);
-                    sendMsgWithType(type, ResponseStatus.OK, roomName);
-                    chatRoom = roomName;
-                } catch (Exception e) {
-                    sendMsgWithType(type, ResponseStatus.FAIL, e.getMessage());
-                }
-                break;
-            case MsgType.CHAT:
-                ChatMsg chatMsg = new ChatMsg("user-" + getId(), msg.substring(1), new Date());
-                try {
-                    server.deliverChatMsg(chatRoom, gson.toJson(chatMsg));
-                } catch (Exception e) {
-                    sendMsgWithType(type, ResponseStatus.FAIL, e.getMessage());
+    @Override
+    public void setCodec(MsgCodec codec) {
+        this.codec = codec;
+    }
 
-                }
-                break;
-            default:
-                logger.info("invalid message type");
-        }
+    @Override
+    public void sendMsgWithType(char type, char status, String data) {
+        sendFrame(SharedFrame.of(type, status, data));
     }
 
-    private void sendMsgWithType(char type, char status, String data) {
-        try {
-            StringBuilder sb = new StringBuilder();
-            sb.append(type).append(status).append(data);
-            bos.write(sb.toString().getBytes());
-            bos.flush();     // 使用bufferOutputStream要记得flush
-        } catch (IOException e) {
+    @Override
+    public void sendFrame(SharedFrame frame) {
+        if (!alive) {
+            return;
+        }
+
+        if (!outbound.offer(frame)) {
+            logger.info("user-" + id + " reads too slowly, disconnect");
             close();
-            e.printStackTrace();
         }
     }
 
-    private void close() {
+    @Override
+    public OutboundQueue getOutbound() {
+        return outbound;
+    }
+
+    @Override
+    public void close() {
         try {
             alive = false;
+            outbound.close();
             if (socket != null && !socket.isClosed()) {
-                bis.close();
-                bos.close();
                 socket.close();
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
+
+    /**
+     * 写线程，从待发送队列一次取出一批帧写到socket，队列关闭后退出。
+     * 有延迟预算时，取到的帧不足一批则在预算内继续等待后续的帧
+     */
+    private void writeLoop() {
+        FlushPolicy policy = server.getFlushPolicy();
+        SharedFrame[] batch = new SharedFrame[policy.getMaxBatchMessages()];
+        try {
+            int count;
+            while ((count = outbound.drain(batch, 0, policy.getMaxBatchBytes(), -1)) > 0) {
+                if (!policy.isImmediate()) {
+                    count = fill(batch, count, policy);
+                }
+                write(batch, count);
+            }
+        } catch (IOException e) {
+            close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (SharedFrame frame : batch) {  // 写出失败时还没有释放的帧
+                if (frame != null) {
+                    frame.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * 在延迟预算内继续取帧，直到凑满一批、超时或队列关闭
+     */
+    private int fill(SharedFrame[] batch, int count, FlushPolicy policy) throws InterruptedException {
+        long bytes = 0;
+        for (int i = 0; i < count; i++) {
+            bytes += batch[i].length();
+        }
+
+        long deadline = System.nanoTime() + policy.getMaxDelayNanos();
+        long remaining;
+        while (count < batch.length && bytes < policy.getMaxBatchBytes()
+                && (remaining = deadline - System.nanoTime()) > 0) {
+            int drained = outbound.drain(batch, count, policy.getMaxBatchBytes() - bytes, remaining);
+            if (drained == 0) {
+                break;
+            }
+            for (int i = count; i < count + drained; i++) {
+                bytes += batch[i].length();
+            }
+            count += drained;
+        }
+
+        return count;
+    }
+
+    /**
+     * 只有一个帧时直接写出共享的帧，多个帧先拷贝到一个缓冲区，合并为一次write
+     */
+    private void write(SharedFrame[] batch, int count) throws IOException {
+        if (count == 1) {
+            try {
+                batch[0].writeTo(os);  // 整帧一次写出，不需要再经过BufferedOutputStream
+            } finally {
+                batch[0].release();
+                batch[0] = null;
+            }
+            server.getMetrics().recordWrite(1);
+            return;
+        }
+
+        int bytes = 0;
+        for (int i = 0; i < count; i++) {
+            bytes += batch[i].length();
+        }
+        PooledBuffer lease = server.getBufferPool().allocateHeap(bytes);
+        try {
+            ByteBuffer buffer = lease.buffer();
+            for (int i = 0; i < count; i++) {
+                batch[i].copyTo(buffer);
+                batch[i].release();
+                batch[i] = null;
+            }
+            os.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+        } finally {
+            lease.release();
+        }
+        server.getMetrics().recordWrite(count);
+    }
 }
@@ -0,0 +1,63 @@
+package com.lucky.thread;
+
+import org.apache.log4j.Logger;
+
+import java.lang.reflect.Method;
+
+/**
+ * 启动连接处理线程，thread.mode=virtual时使用虚拟线程(JDK 21+)，
+ * 通过反射调用以保证在旧版本JDK上仍可编译运行，不支持时退回平台线程
+ */
+public class VirtualThreads {
+
+    private static final Logger logger = Logger.getLogger(VirtualThreads.class);
+
+    public static final String MODE_PLATFORM = "platform";
+    public static final String MODE_VIRTUAL = "virtual";
+
+    private static Method ofVirtual;
+    private static Method builderName;
+    private static Method builderStart;
+    private static volatile boolean warned;  // 不支持时只提示一次
+
+    static {
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builderName = builderClass.getMethod("name", String.class);
+            builderStart = builderClass.getMethod("start", Runnable.class);
+        } catch (Exception e) {
+            ofVirtual = null;
+        }
+    }
+
+    private VirtualThreads() {
+    }
+
+    public static boolean isSupported() {
+        return ofVirtual != null;
+    }
+
+    /**
+     * 按照指定模式启动线程
+     */
+    public static Thread start(String mode, String name, Runnable task) {
+        if (MODE_VIRTUAL.equals(mode)) {
+            if (isSupported()) {
+                try {
+                    Object builder = builderName.invoke(ofVirtual.invoke(null), name);
+                    return (Thread) builderStart.invoke(builder, task);
+                } catch (Exception e) {
+                    logger.info("start virtual thread failed, fall back to platform thread: " + e);
+                }
+            } else if (!warned) {
+                warned = true;
+                logger.info("virtual thread is not supported by this JDK, fall back to platform thread");
+            }
+        }
+
+        Thread thread = new Thread(task, name);
+        thread.start();
+        return thread;
+    }
+}